@@ -0,0 +1,79 @@
+package monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+final class BenchFixtures {
+  private static final String[] COMMANDS = {
+      "/usr/lib/systemd/systemd --switched-root --system --deserialize 31",
+      "/usr/bin/java -Xmx2g -jar /opt/app/service.jar --spring.profiles.active=prod",
+      "C:\\Program Files\\Google\\Chrome\\Application\\chrome.exe --type=renderer",
+      "/usr/sbin/sshd -D", "nginx: worker process", "postgres: checkpointer",
+      "python3 /srv/jobs/report.py --since \"last week\"", "[kworker/3:1-events]"};
+  private static final String[] USERS = {"root", "www-data", "postgres", "alice", "SYSTEM"};
+
+  private BenchFixtures() {
+  }
+
+  static ClientMain.Sample sample(int processes, long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    ClientMain.Sample sample = new ClientMain.Sample();
+    sample.ts = 1_700_000_000_000L + random.nextInt(1_000_000);
+    sample.cpuLoad = random.nextDouble();
+    sample.ramTotalMb = 16384;
+    sample.ramUsedMb = random.nextInt(16384);
+    sample.loadAvg = new double[] {random.nextDouble() * 4, random.nextDouble() * 4,
+        random.nextDouble() * 4};
+    sample.coreLoads = new double[8];
+    for (int i = 0; i < sample.coreLoads.length; i++) {
+      sample.coreLoads[i] = random.nextDouble();
+    }
+    sample.diskReadBps = random.nextInt(50_000_000);
+    sample.diskWriteBps = random.nextInt(50_000_000);
+    sample.netRxBps = random.nextInt(10_000_000);
+    sample.netTxBps = random.nextInt(10_000_000);
+    sample.collectMicros = 800 + random.nextInt(4000);
+    sample.agentCpuPct = random.nextDouble() * 2;
+    sample.agentAllocBps = random.nextInt(2_000_000);
+    List<ClientMain.ProcInfo> list = new ArrayList<>(processes);
+    for (int i = 0; i < processes; i++) {
+      list.add(new ClientMain.ProcInfo(100 + i * 7L, COMMANDS[random.nextInt(COMMANDS.length)],
+          USERS[random.nextInt(USERS.length)], sample.ts - random.nextInt(86_400_000),
+          random.nextInt(5_000_000)));
+    }
+    sample.processes = list;
+    return sample;
+  }
+
+  static String payload(String clientId, int processes, long seed) {
+    return ClientMain.buildPayload(clientId, sample(processes, seed));
+  }
+
+  static StatusReport report(String clientId, int processes, long seed) {
+    ClientSession session = new ClientSession("bench");
+    StatusReport parsed = ServerMain.parseStatus(session, payload(clientId, processes, seed));
+    if (parsed == null) {
+      throw new IllegalStateException("fixture payload did not parse");
+    }
+    return parsed;
+  }
+
+  static String clientId(int index) {
+    return "host-" + index + ".fleet.example.com";
+  }
+
+  static ServerMain populatedServer(int clients) {
+    ServerMain server = new ServerMain();
+    StatusReport report = report(clientId(0), 20, 1L);
+    boolean[] cameOnline = new boolean[1];
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < clients; i++) {
+      report.clientId = clientId(i);
+      report.cpuLoad = (i % 100) / 100.0;
+      server.upsertStatus(report, 20, now, cameOnline);
+      server.clientChanged(report.clientId);
+    }
+    return server;
+  }
+}
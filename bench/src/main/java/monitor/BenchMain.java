@@ -0,0 +1,24 @@
+package monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openjdk.jmh.Main;
+
+public final class BenchMain {
+  private BenchMain() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> options = new ArrayList<>(Arrays.asList(args));
+    if (!options.contains("-rf") && !options.contains("-h") && !options.contains("-l")) {
+      options.add(0, "json");
+      options.add(0, "-rf");
+      if (!options.contains("-rff")) {
+        options.add("-rff");
+        options.add("jmh-result.json");
+      }
+    }
+    Main.main(options.toArray(new String[0]));
+  }
+}
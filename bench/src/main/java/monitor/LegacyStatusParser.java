@@ -0,0 +1,104 @@
+package monitor;
+
+// The indexOf-based heartbeat parser StatusParser replaced, kept as a benchmark baseline. It reads
+// a handful of top-level fields and counts pids; it neither validates the line nor decodes the
+// process list.
+final class LegacyStatusParser {
+  private LegacyStatusParser() {
+  }
+
+  static StatusReport parse(String json, StatusReport report) {
+    report.clear();
+    report.clientId = extractString(json, "clientId");
+    report.timestamp = extractLong(json, "ts", 0L);
+    report.cpuLoad = extractDouble(json, "cpuLoad", -1.0);
+    report.ramUsedMb = extractLong(json, "ramUsedMb", -1L);
+    report.ramTotalMb = extractLong(json, "ramTotalMb", -1L);
+    report.processTotal = countOccurrences(json, "\"pid\":");
+    return report.clientId == null ? null : report;
+  }
+
+  private static String extractString(String json, String key) {
+    String needle = "\"" + key + "\":\"";
+    int idx = json.indexOf(needle);
+    if (idx < 0) {
+      return null;
+    }
+    int start = idx + needle.length();
+    StringBuilder sb = new StringBuilder();
+    boolean escape = false;
+    for (int i = start; i < json.length(); i++) {
+      char c = json.charAt(i);
+      if (escape) {
+        sb.append(c);
+        escape = false;
+        continue;
+      }
+      if (c == '\\') {
+        escape = true;
+        continue;
+      }
+      if (c == '"') {
+        return sb.toString();
+      }
+      sb.append(c);
+    }
+    return null;
+  }
+
+  private static long extractLong(String json, String key, long fallback) {
+    String token = extractNumberToken(json, key);
+    if (token == null) {
+      return fallback;
+    }
+    try {
+      return Long.parseLong(token);
+    } catch (NumberFormatException e) {
+      return fallback;
+    }
+  }
+
+  private static double extractDouble(String json, String key, double fallback) {
+    String token = extractNumberToken(json, key);
+    if (token == null) {
+      return fallback;
+    }
+    try {
+      return Double.parseDouble(token);
+    } catch (NumberFormatException e) {
+      return fallback;
+    }
+  }
+
+  private static String extractNumberToken(String json, String key) {
+    String needle = "\"" + key + "\":";
+    int idx = json.indexOf(needle);
+    if (idx < 0) {
+      return null;
+    }
+    int start = idx + needle.length();
+    int end = start;
+    while (end < json.length()) {
+      char c = json.charAt(end);
+      if ((c >= '0' && c <= '9') || c == '.' || c == '-') {
+        end++;
+      } else {
+        break;
+      }
+    }
+    if (end == start) {
+      return null;
+    }
+    return json.substring(start, end);
+  }
+
+  private static int countOccurrences(String text, String token) {
+    int count = 0;
+    int idx = 0;
+    while ((idx = text.indexOf(token, idx)) >= 0) {
+      count++;
+      idx += token.length();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,37 @@
+package monitor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadBenchmark {
+  @Param({"0", "50", "400"})
+  int processes;
+
+  private ClientMain.Sample sample;
+
+  @Setup
+  public void setUp() {
+    sample = BenchFixtures.sample(processes, 42L);
+  }
+
+  @Benchmark
+  public String buildPayload() {
+    return ClientMain.buildPayload("host-1.fleet.example.com", sample);
+  }
+}
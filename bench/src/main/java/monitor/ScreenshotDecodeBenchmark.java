@@ -0,0 +1,94 @@
+package monitor;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ScreenshotDecodeBenchmark {
+  @Param({"1366x768", "1920x1080", "2560x1440"})
+  String screen;
+
+  private String line;
+  private String data;
+
+  @Setup
+  public void setUp() throws IOException {
+    int x = screen.indexOf('x');
+    byte[] png = desktop(Integer.parseInt(screen.substring(0, x)),
+        Integer.parseInt(screen.substring(x + 1)));
+    data = Base64.getEncoder().encodeToString(png);
+    line = "SCREENSHOT clientId=host-1.fleet.example.com granted=true format=png data=" + data;
+  }
+
+  @Benchmark
+  public byte[] decodeLine() {
+    return ServerMain.decodeScreenshotData(line);
+  }
+
+  @Benchmark
+  public byte[] decodeBase64() {
+    return Base64.getDecoder().decode(data);
+  }
+
+  // A flat desktop with a few windows of text, so PNG sizes land near real screenshots.
+  private static byte[] desktop(int width, int height) throws IOException {
+    SplittableRandom random = new SplittableRandom(7L);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, new Color(30, 60, 110), width, height,
+        new Color(90, 40, 80)));
+    g.fillRect(0, 0, width, height);
+    g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+    for (int w = 0; w < 5; w++) {
+      int left = random.nextInt(width / 2);
+      int top = random.nextInt(height / 2);
+      int right = Math.min(width, left + width / 3 + random.nextInt(width / 3));
+      int bottom = Math.min(height, top + height / 3 + random.nextInt(height / 3));
+      g.setColor(new Color(235, 235, 235));
+      g.fillRect(left, top, right - left, bottom - top);
+      g.setColor(new Color(60, 60, 70));
+      g.fillRect(left, top, right - left, 24);
+      g.setColor(Color.DARK_GRAY);
+      for (int y = top + 42; y < bottom - 6; y += 16) {
+        StringBuilder text = new StringBuilder();
+        int chars = random.nextInt(20, 120);
+        for (int c = 0; c < chars; c++) {
+          text.append((char) ('a' + random.nextInt(26)));
+          if (random.nextInt(6) == 0) {
+            text.append(' ');
+          }
+        }
+        g.drawString(text.toString(), left + 8, y);
+      }
+    }
+    g.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,65 @@
+package monitor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Status versions start at 0 and every clientChanged() bumps them by one, so the bench can
+// track the delta cursor without parsing the responses.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class StatusJsonBenchmark {
+  private static final int CHANGED_PER_DELTA = 10;
+
+  @Param({"100", "10000", "100000"})
+  int clients;
+
+  private ServerMain server;
+  private long version;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    server = BenchFixtures.populatedServer(clients);
+    version = clients;
+    server.buildStatusJson();
+  }
+
+  @Benchmark
+  public String fullCached() {
+    return server.buildStatusJson();
+  }
+
+  @Benchmark
+  public String fullAllChanged() {
+    for (int i = 0; i < clients; i++) {
+      server.clientChanged(BenchFixtures.clientId(i));
+    }
+    version += clients;
+    return server.buildStatusJson();
+  }
+
+  @Benchmark
+  public String delta() {
+    long since = version;
+    for (int i = 0; i < CHANGED_PER_DELTA; i++) {
+      server.clientChanged(BenchFixtures.clientId(next));
+      next = (next + 1) % clients;
+    }
+    version += CHANGED_PER_DELTA;
+    return server.buildStatusJson(since);
+  }
+}
@@ -0,0 +1,44 @@
+package monitor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusParseBenchmark {
+  @Param({"50", "500", "5000"})
+  int processes;
+
+  private final ClientSession session = new ClientSession("bench");
+  private final StatusReport legacyReport = new StatusReport();
+  private String payload;
+
+  @Setup
+  public void setUp() {
+    payload = BenchFixtures.payload("host-1.fleet.example.com", processes, 42L);
+  }
+
+  @Benchmark
+  public StatusReport parseStatus() {
+    return ServerMain.parseStatus(session, payload);
+  }
+
+  @Benchmark
+  public StatusReport legacyIndexOf() {
+    return LegacyStatusParser.parse(payload, legacyReport);
+  }
+}
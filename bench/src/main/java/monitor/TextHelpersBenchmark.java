@@ -0,0 +1,48 @@
+package monitor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextHelpersBenchmark {
+  private final String plain =
+      "/usr/bin/java -Xmx2g -jar /opt/app/service.jar --spring.profiles.active=prod";
+  private final String quoted = "C:\\Program Files\\App\\app.exe --title \"Quarterly\treport\"\n";
+  private final String hello = WireProtocol.HELLO + " clientId=host-1.fleet.example.com proto="
+      + WireProtocol.BINARY_V1 + " caps=" + WireProtocol.CAP_PUSH + "," + WireProtocol.CAP_RESULT;
+  private final String query =
+      "clientId=host-1.fleet.example.com&size=thumb&from=1700000000000&since=123456";
+
+  @Benchmark
+  public String escapePlain() {
+    return ClientMain.escape(plain);
+  }
+
+  @Benchmark
+  public String escapeQuoted() {
+    return ClientMain.escape(quoted);
+  }
+
+  @Benchmark
+  public String extractTokenValue() {
+    return ServerMain.extractTokenValue(hello, "caps");
+  }
+
+  @Benchmark
+  public String extractQueryParam() {
+    return ServerMain.extractQueryParam(query, "since");
+  }
+}
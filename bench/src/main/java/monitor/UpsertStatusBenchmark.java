@@ -0,0 +1,69 @@
+package monitor;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class UpsertStatusBenchmark {
+  @State(Scope.Benchmark)
+  public static class Fleet {
+    @Param({"1", "100", "10000"})
+    int clients;
+
+    ServerMain server;
+    String[] ids;
+
+    @Setup
+    public void setUp() {
+      server = BenchFixtures.populatedServer(clients);
+      ids = new String[clients];
+      for (int i = 0; i < clients; i++) {
+        ids[i] = BenchFixtures.clientId(i);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Agent {
+    final boolean[] cameOnline = new boolean[1];
+    final SplittableRandom random = new SplittableRandom();
+    StatusReport report;
+
+    @Setup
+    public void setUp() {
+      report = BenchFixtures.report(BenchFixtures.clientId(0), 20, random.nextLong());
+    }
+  }
+
+  @Benchmark
+  public Object upsert(Fleet fleet, Agent agent) {
+    agent.report.clientId = fleet.ids[agent.random.nextInt(fleet.ids.length)];
+    return fleet.server.upsertStatus(agent.report, 20, System.currentTimeMillis(),
+        agent.cameOnline);
+  }
+
+  @Benchmark
+  public void upsertAndPublish(Fleet fleet, Agent agent) {
+    String clientId = fleet.ids[agent.random.nextInt(fleet.ids.length)];
+    agent.report.clientId = clientId;
+    fleet.server.upsertStatus(agent.report, 20, System.currentTimeMillis(), agent.cameOnline);
+    fleet.server.clientChanged(clientId);
+  }
+}
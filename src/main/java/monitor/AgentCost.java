@@ -0,0 +1,56 @@
+package monitor;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+
+final class AgentCost {
+  private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final OperatingSystemMXBean os =
+      (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+  private long startNanos;
+  private long collectNanos;
+  private long previousNanos;
+  private long previousCpuNanos = -1L;
+  private long previousAllocated = -1L;
+
+  void begin() {
+    startNanos = System.nanoTime();
+  }
+
+  void pause() {
+    collectNanos += System.nanoTime() - startNanos;
+  }
+
+  void end(ClientMain.Sample sample) {
+    long now = System.nanoTime();
+    collectNanos += now - startNanos;
+    sample.collectMicros = collectNanos / 1000L;
+    collectNanos = 0L;
+    long cpuNanos = os.getProcessCpuTime();
+    long allocated = allocatedBytes();
+    long elapsed = now - previousNanos;
+    if (previousCpuNanos >= 0 && cpuNanos >= 0 && elapsed > 0) {
+      sample.agentCpuPct = 100.0 * (cpuNanos - previousCpuNanos) / elapsed;
+    }
+    if (previousAllocated >= 0 && allocated >= 0 && elapsed > 0) {
+      sample.agentAllocBps = Math.max(0L, (long) ((allocated - previousAllocated) * 1e9 / elapsed));
+    }
+    previousNanos = now;
+    previousCpuNanos = cpuNanos;
+    previousAllocated = allocated;
+  }
+
+  private long allocatedBytes() {
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+      return -1L;
+    }
+    long total = 0L;
+    for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (allocated > 0) {
+        total += allocated;
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,200 @@
+package monitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class AgentSimulator {
+  private static final int DEFAULT_PORT = 5050;
+  private static final int DEFAULT_AGENTS = 1000;
+  private static final int HEARTBEAT_SECONDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "127.0.0.1";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+    int agents = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_AGENTS;
+    new AgentSimulator().run(new InetSocketAddress(host, port), agents);
+  }
+
+  private void run(InetSocketAddress address, int agents) throws IOException {
+    Selector selector = Selector.open();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < agents; i++) {
+      SocketChannel channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.connect(address);
+      Agent agent = new Agent("sim-" + i, channel);
+      agent.nextSend = now + ThreadLocalRandom.current().nextLong(HEARTBEAT_SECONDS * 1000L);
+      channel.register(selector, SelectionKey.OP_CONNECT, agent);
+    }
+    System.out.println("Simulating " + agents + " agents against " + address);
+    long acks = 0;
+    long ackNanos = 0;
+    long maxAckNanos = 0;
+    AckHistogram ackLatency = new AckHistogram();
+    long nextReport = now + 5000;
+    ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    while (true) {
+      selector.select(50);
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        Agent agent = (Agent) key.attachment();
+        try {
+          if (key.isConnectable() && agent.channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+          } else if (key.isReadable()) {
+            readBuffer.clear();
+            int read = agent.channel.read(readBuffer);
+            if (read < 0) {
+              key.cancel();
+              agent.channel.close();
+              continue;
+            }
+            String reply = new String(readBuffer.array(), 0, read, StandardCharsets.UTF_8);
+            if (reply.startsWith("CMD:" + WireProtocol.REDIRECT + " ")) {
+              key.cancel();
+              agent.channel.close();
+              agent.redirect(selector, reply);
+              continue;
+            }
+            for (int i = 0; i < read; i++) {
+              if (readBuffer.get(i) == '\n' && agent.sentAt > 0) {
+                long elapsed = System.nanoTime() - agent.sentAt;
+                agent.sentAt = 0;
+                ackLatency.record(elapsed);
+                acks++;
+                ackNanos += elapsed;
+                maxAckNanos = Math.max(maxAckNanos, elapsed);
+              }
+            }
+          }
+        } catch (IOException e) {
+          key.cancel();
+          agent.channel.close();
+        }
+      }
+      now = System.currentTimeMillis();
+      for (SelectionKey key : selector.keys()) {
+        Agent agent = (Agent) key.attachment();
+        if (key.isValid() && agent.channel.isConnected() && now >= agent.nextSend) {
+          agent.nextSend = now + HEARTBEAT_SECONDS * 1000L;
+          agent.send();
+        }
+      }
+      if (now >= nextReport) {
+        nextReport = now + 5000;
+        long p99 = ackLatency.percentile(0.99);
+        System.out.println(String.format(Locale.US,
+            "connected=%d acks=%d avgAckMs=%.2f p99AckMs=%.2f maxAckMs=%.2f",
+            selector.keys().size(), acks,
+            acks == 0 ? 0.0 : ackNanos / (double) acks / 1_000_000.0,
+            p99 / 1_000_000.0, maxAckNanos / 1_000_000.0));
+        acks = 0;
+        ackNanos = 0;
+        maxAckNanos = 0;
+        ackLatency.reset();
+      }
+    }
+  }
+
+  // Log-linear microsecond buckets, eight per power of two, so percentiles are within 12.5%.
+  private static final class AckHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private final long[] counts = new long[SUB_BUCKETS * 40];
+    private long total;
+
+    void record(long nanos) {
+      long micros = Math.max(0L, nanos / 1000);
+      counts[Math.min(counts.length - 1, index(micros))]++;
+      total++;
+    }
+
+    long percentile(double fraction) {
+      long rank = (long) Math.ceil(total * fraction);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return upperMicros(i) * 1000;
+        }
+      }
+      return 0;
+    }
+
+    void reset() {
+      Arrays.fill(counts, 0L);
+      total = 0;
+    }
+
+    private static int index(long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros) - 3;
+      return exponent * SUB_BUCKETS / 2 + (int) (micros >>> exponent);
+    }
+
+    private static long upperMicros(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int exponent = index / (SUB_BUCKETS / 2) - 1;
+      long mantissa = index - exponent * SUB_BUCKETS / 2;
+      return ((mantissa + 1) << exponent) - 1;
+    }
+  }
+
+  private static final class Agent {
+    final String clientId;
+    SocketChannel channel;
+    long nextSend;
+    long sentAt;
+
+    Agent(String clientId, SocketChannel channel) {
+      this.clientId = clientId;
+      this.channel = channel;
+    }
+
+    void redirect(Selector selector, String reply) throws IOException {
+      String line = reply.trim();
+      String host = WireProtocol.token(line, "host");
+      String port = WireProtocol.token(line, "port");
+      if (host == null || port == null) {
+        return;
+      }
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.connect(new InetSocketAddress(host, Integer.parseInt(port)));
+      channel.register(selector, SelectionKey.OP_CONNECT, this);
+      sentAt = 0;
+      nextSend = System.currentTimeMillis();
+    }
+
+    void send() throws IOException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      String payload = "{\"clientId\":\"" + clientId + "\","
+          + "\"ts\":" + System.currentTimeMillis() + ","
+          + "\"cpuLoad\":" + String.format(Locale.US, "%.4f", random.nextDouble()) + ","
+          + "\"ramUsedMb\":" + random.nextInt(2048, 16384) + ","
+          + "\"ramTotalMb\":16384,"
+          + "\"processes\":[{\"pid\":1,\"cmd\":\"init\"}]}\n";
+      ByteBuffer buffer = ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8));
+      sentAt = System.nanoTime();
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) == 0) {
+          break;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package monitor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+final class AlertEngine {
+  private static final int LOG_SIZE = 1000;
+  private static final long TICK_MS = 100L;
+
+  private final AlertRule[] rules;
+  private final Consumer<Alert> sink;
+  private final long budgetNanos;
+  private final Map<String, ClientState> states = new ConcurrentHashMap<>();
+  private final Map<String, Alert> active = new ConcurrentHashMap<>();
+  private final ArrayDeque<Alert> log = new ArrayDeque<>();
+  private final Queue<Alert> unpublished = new ConcurrentLinkedQueue<>();
+  private final AtomicLong ids = new AtomicLong();
+  private final TimerWheel offlineTimers =
+      new TimerWheel(TICK_MS, 512, System.currentTimeMillis());
+  private final LongAdder evaluations = new LongAdder();
+  private final LongAdder evaluationNanos = new LongAdder();
+  private final LongAdder overBudget = new LongAdder();
+
+  AlertEngine(List<AlertRule> rules, long budgetMicros, Consumer<Alert> sink) {
+    this.rules = rules.toArray(new AlertRule[0]);
+    this.budgetNanos = budgetMicros * 1000L;
+    this.sink = sink;
+  }
+
+  static List<AlertRule> load(String path) throws IOException {
+    InputStream input = path == null || path.isEmpty()
+        ? AlertEngine.class.getClassLoader().getResourceAsStream("alerts.rules")
+        : Files.newInputStream(Paths.get(path));
+    List<AlertRule> rules = new ArrayList<>();
+    if (input == null) {
+      return rules;
+    }
+    try (BufferedReader reader =
+             new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        number++;
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+          continue;
+        }
+        try {
+          rules.add(AlertRule.parse(trimmed));
+        } catch (IllegalArgumentException e) {
+          System.out.println("Skipping alert rule on line " + number + ": " + e.getMessage());
+        }
+      }
+    }
+    return rules;
+  }
+
+  int ruleCount() {
+    return rules.length;
+  }
+
+  void evaluate(String clientId, String tag, StatusReport report, int processCount, long now) {
+    long started = System.nanoTime();
+    ClientState state = states.computeIfAbsent(clientId, id -> new ClientState(rules.length));
+    synchronized (state) {
+      state.tag = tag;
+      for (int i = 0; i < rules.length; i++) {
+        AlertRule rule = rules[i];
+        if (rule.metric == AlertRule.OFFLINE || !rule.appliesTo(tag)) {
+          continue;
+        }
+        double value = AlertRule.value(rule.metric, report, processCount);
+        if (value < 0) {
+          continue;
+        }
+        if (rule.rate) {
+          double previous = state.lastValue[i];
+          long previousAt = state.lastAt[i];
+          state.lastValue[i] = value;
+          state.lastAt[i] = now;
+          if (previousAt == 0L || now <= previousAt) {
+            continue;
+          }
+          value = (value - previous) * 1000.0 / (now - previousAt);
+        }
+        step(i, rule, clientId, state, value, now);
+      }
+    }
+    long elapsed = System.nanoTime() - started;
+    evaluations.increment();
+    evaluationNanos.add(elapsed);
+    if (budgetNanos > 0 && elapsed > budgetNanos) {
+      overBudget.increment();
+    }
+  }
+
+  private void step(int index, AlertRule rule, String clientId, ClientState state, double value,
+      long now) {
+    if (state.firing[index]) {
+      if (!rule.holding(value)) {
+        resolve(index, clientId, state, value, now);
+      }
+      return;
+    }
+    if (!rule.breached(value)) {
+      state.since[index] = 0L;
+      return;
+    }
+    if (state.since[index] == 0L) {
+      state.since[index] = now;
+    }
+    if (now - state.since[index] >= rule.forMs) {
+      fire(index, clientId, state, value, now);
+    }
+  }
+
+  void presenceChanged(String clientId, boolean online, long at) {
+    ClientState state = states.computeIfAbsent(clientId, id -> new ClientState(rules.length));
+    synchronized (state) {
+      state.offlineSince = online ? 0L : at;
+      for (int i = 0; i < rules.length; i++) {
+        AlertRule rule = rules[i];
+        if (rule.metric != AlertRule.OFFLINE) {
+          continue;
+        }
+        if (online) {
+          offlineTimers.cancel(activeKey(i, clientId));
+          if (state.firing[i]) {
+            resolve(i, clientId, state, 0.0, at);
+          }
+        } else if (state.firing[i] || !rule.appliesTo(state.tag)) {
+          continue;
+        } else if (rule.forMs <= 0) {
+          fire(i, clientId, state, 0.0, at);
+        } else {
+          offlineTimers.schedule(activeKey(i, clientId), at + rule.forMs);
+        }
+      }
+    }
+  }
+
+  void advance(long now) {
+    Alert alert;
+    while ((alert = unpublished.poll()) != null) {
+      sink.accept(alert);
+    }
+    for (String key : offlineTimers.advance(now)) {
+      int colon = key.indexOf(':');
+      int index = Integer.parseInt(key.substring(0, colon));
+      String clientId = key.substring(colon + 1);
+      ClientState state = states.get(clientId);
+      if (state == null) {
+        continue;
+      }
+      synchronized (state) {
+        long since = state.offlineSince;
+        if (since > 0 && !state.firing[index] && now - since >= rules[index].forMs) {
+          fire(index, clientId, state, 0.0, now);
+        }
+      }
+    }
+  }
+
+  void remove(String clientId) {
+    states.remove(clientId);
+    for (int i = 0; i < rules.length; i++) {
+      active.remove(activeKey(i, clientId));
+      offlineTimers.cancel(activeKey(i, clientId));
+    }
+  }
+
+  private void fire(int index, String clientId, ClientState state, double value, long now) {
+    state.firing[index] = true;
+    state.since[index] = 0L;
+    Alert alert = new Alert(ids.incrementAndGet(), rules[index], clientId, true, value, now);
+    active.put(activeKey(index, clientId), alert);
+    record(alert);
+  }
+
+  private void resolve(int index, String clientId, ClientState state, double value, long now) {
+    state.firing[index] = false;
+    state.since[index] = 0L;
+    active.remove(activeKey(index, clientId));
+    record(new Alert(ids.incrementAndGet(), rules[index], clientId, false, value, now));
+  }
+
+  private static String activeKey(int index, String clientId) {
+    return index + ":" + clientId;
+  }
+
+  private void record(Alert alert) {
+    synchronized (log) {
+      log.addLast(alert);
+      if (log.size() > LOG_SIZE) {
+        log.removeFirst();
+      }
+    }
+    unpublished.add(alert);
+  }
+
+  void appendJson(StringBuilder sb, long since) {
+    List<Alert> firing = new ArrayList<>(active.values());
+    firing.sort((a, b) -> Long.compare(a.id, b.id));
+    sb.append("\"active\":[");
+    for (int i = 0; i < firing.size(); i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      firing.get(i).appendJson(sb);
+    }
+    sb.append("],\"events\":[");
+    boolean first = true;
+    synchronized (log) {
+      for (Alert alert : log) {
+        if (alert.id <= since) {
+          continue;
+        }
+        if (!first) {
+          sb.append(",");
+        }
+        first = false;
+        alert.appendJson(sb);
+      }
+    }
+    sb.append("],\"rules\":[");
+    for (int i = 0; i < rules.length; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append("{\"name\":\"").append(ServerMain.escape(rules[i].name)).append("\",");
+      sb.append("\"condition\":\"").append(ServerMain.escape(rules[i].text)).append("\"}");
+    }
+    long count = evaluations.sum();
+    sb.append("],\"stats\":{\"evaluations\":").append(count);
+    sb.append(",\"avgNanos\":").append(count > 0 ? evaluationNanos.sum() / count : 0L);
+    sb.append(",\"budgetNanos\":").append(budgetNanos);
+    sb.append(",\"overBudget\":").append(overBudget.sum()).append("}");
+  }
+
+  private static final class ClientState {
+    final boolean[] firing;
+    final long[] since;
+    final double[] lastValue;
+    final long[] lastAt;
+    String tag;
+    long offlineSince;
+
+    ClientState(int rules) {
+      firing = new boolean[rules];
+      since = new long[rules];
+      lastValue = new double[rules];
+      lastAt = new long[rules];
+    }
+  }
+
+  static final class Alert {
+    final long id;
+    final AlertRule rule;
+    final String clientId;
+    final boolean firing;
+    final double value;
+    final long at;
+
+    Alert(long id, AlertRule rule, String clientId, boolean firing, double value, long at) {
+      this.id = id;
+      this.rule = rule;
+      this.clientId = clientId;
+      this.firing = firing;
+      this.value = value;
+      this.at = at;
+    }
+
+    void appendJson(StringBuilder sb) {
+      sb.append("{\"id\":").append(id);
+      sb.append(",\"rule\":\"").append(ServerMain.escape(rule.name)).append("\"");
+      sb.append(",\"clientId\":\"").append(ServerMain.escape(clientId)).append("\"");
+      sb.append(",\"state\":\"").append(firing ? "firing" : "resolved").append("\"");
+      sb.append(",\"message\":\"").append(ServerMain.escape(rule.describe(value))).append("\"");
+      sb.append(",\"at\":").append(at).append("}");
+    }
+
+    String toJson() {
+      StringBuilder sb = new StringBuilder(192);
+      appendJson(sb);
+      return sb.toString();
+    }
+  }
+}
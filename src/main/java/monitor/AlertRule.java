@@ -0,0 +1,215 @@
+package monitor;
+
+import java.util.Locale;
+
+final class AlertRule {
+  static final String[] METRICS = {
+      "cpuLoad", "ramPct", "ramUsedMb", "processCount", "load1", "diskReadBps",
+      "diskWriteBps", "netRxBps", "netTxBps", "agentCpuPct"};
+  static final int OFFLINE = -1;
+
+  private static final int GT = 0;
+  private static final int GE = 1;
+  private static final int LT = 2;
+  private static final int LE = 3;
+  private static final String[] OPS = {">", ">=", "<", "<="};
+
+  final String name;
+  final String text;
+  final int metric;
+  final boolean rate;
+  final int op;
+  final double threshold;
+  final double clear;
+  final long forMs;
+  final String tag;
+
+  private AlertRule(String name, String text, int metric, boolean rate, int op, double threshold,
+      double clear, long forMs, String tag) {
+    this.name = name;
+    this.text = text;
+    this.metric = metric;
+    this.rate = rate;
+    this.op = op;
+    this.threshold = threshold;
+    this.clear = clear;
+    this.forMs = forMs;
+    this.tag = tag;
+  }
+
+  static AlertRule parse(String line) {
+    int colon = line.indexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("expected <name>: <condition>");
+    }
+    String name = line.substring(0, colon).trim();
+    String text = line.substring(colon + 1).trim();
+    String[] tokens = text.split("\\s+");
+    int pos = 0;
+    int metric;
+    boolean rate = false;
+    int op = GT;
+    double threshold = 0.0;
+    if (tokens[pos].equalsIgnoreCase("offline")) {
+      metric = OFFLINE;
+      pos++;
+    } else {
+      String target = tokens[pos++];
+      if (target.startsWith("rate(") && target.endsWith(")")) {
+        rate = true;
+        target = target.substring("rate(".length(), target.length() - 1);
+      }
+      metric = metricIndex(target);
+      if (pos >= tokens.length) {
+        throw new IllegalArgumentException("missing comparison after " + target);
+      }
+      op = opIndex(tokens[pos++]);
+      if (pos >= tokens.length) {
+        throw new IllegalArgumentException("missing threshold");
+      }
+      threshold = parseNumber(tokens[pos++]);
+    }
+    double clear = threshold;
+    long forMs = 0L;
+    String tag = null;
+    while (pos < tokens.length) {
+      String keyword = tokens[pos++].toLowerCase(Locale.ROOT);
+      if (pos >= tokens.length) {
+        throw new IllegalArgumentException("missing value after " + keyword);
+      }
+      String value = tokens[pos++];
+      switch (keyword) {
+        case "for":
+          forMs = parseDuration(value);
+          break;
+        case "clear":
+          clear = parseNumber(value);
+          break;
+        case "tag":
+          tag = value;
+          break;
+        default:
+          throw new IllegalArgumentException("unknown keyword " + keyword);
+      }
+    }
+    return new AlertRule(name, text, metric, rate, op, threshold, clear, forMs, tag);
+  }
+
+  boolean appliesTo(String clientTag) {
+    return tag == null || tag.equals(clientTag);
+  }
+
+  boolean breached(double value) {
+    return compare(value, threshold);
+  }
+
+  boolean holding(double value) {
+    return compare(value, clear);
+  }
+
+  private boolean compare(double value, double limit) {
+    switch (op) {
+      case GT:
+        return value > limit;
+      case GE:
+        return value >= limit;
+      case LT:
+        return value < limit;
+      default:
+        return value <= limit;
+    }
+  }
+
+  static double value(int metric, StatusReport report, int processCount) {
+    switch (metric) {
+      case 0:
+        return report.cpuLoad;
+      case 1:
+        return report.ramTotalMb > 0 && report.ramUsedMb >= 0
+            ? (double) report.ramUsedMb / report.ramTotalMb : -1.0;
+      case 2:
+        return report.ramUsedMb;
+      case 3:
+        return processCount;
+      case 4:
+        return report.loadAvg[0];
+      case 5:
+        return report.diskReadBps;
+      case 6:
+        return report.diskWriteBps;
+      case 7:
+        return report.netRxBps;
+      case 8:
+        return report.netTxBps;
+      default:
+        return report.agentCpuPct;
+    }
+  }
+
+  String describe(double value) {
+    if (metric == OFFLINE) {
+      return name + ": offline" + (forMs > 0 ? " for " + (forMs / 1000) + "s" : "");
+    }
+    return name + ": " + (rate ? "rate(" + METRICS[metric] + ")" : METRICS[metric]) + " "
+        + OPS[op] + " " + format(threshold) + " (value "
+        + format(value) + ")";
+  }
+
+  private static String format(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return String.format(Locale.US, "%.3f", value);
+  }
+
+  private static int metricIndex(String name) {
+    for (int i = 0; i < METRICS.length; i++) {
+      if (METRICS[i].equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("unknown metric " + name);
+  }
+
+  private static int opIndex(String token) {
+    for (int i = 0; i < OPS.length; i++) {
+      if (OPS[i].equals(token)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("unknown comparison " + token);
+  }
+
+  private static double parseNumber(String token) {
+    String value = token.endsWith("%") ? token.substring(0, token.length() - 1) : token;
+    try {
+      double number = Double.parseDouble(value);
+      return token.endsWith("%") ? number / 100.0 : number;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("bad number " + token);
+    }
+  }
+
+  private static long parseDuration(String token) {
+    String lower = token.toLowerCase(Locale.ROOT);
+    long unit = 1000L;
+    String digits = lower;
+    if (lower.endsWith("ms")) {
+      unit = 1L;
+      digits = lower.substring(0, lower.length() - 2);
+    } else if (lower.endsWith("s")) {
+      digits = lower.substring(0, lower.length() - 1);
+    } else if (lower.endsWith("m")) {
+      unit = 60_000L;
+      digits = lower.substring(0, lower.length() - 1);
+    } else if (lower.endsWith("h")) {
+      unit = 3_600_000L;
+      digits = lower.substring(0, lower.length() - 1);
+    }
+    try {
+      return Long.parseLong(digits) * unit;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("bad duration " + token);
+    }
+  }
+}
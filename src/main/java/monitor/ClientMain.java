@@ -7,20 +7,30 @@ import java.awt.Rectangle;
 import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
@@ -28,8 +38,26 @@ import javax.swing.JOptionPane;
 public class ClientMain {
   private static final int DEFAULT_PORT = 5050;
   private static final int HEARTBEAT_SECONDS = 5;
-  private static final int MAX_PROCESSES = 50;
+  private static final int MAX_REDIRECTS = 3;
+  private static final int READ_TIMEOUT_MS = 15000;
+  private static final long SAMPLE_MS = Long.getLong("monitor.sampleMs", 1000L);
+  private static final long REPORT_MIN_MS = Long.getLong("monitor.report.minMs", SAMPLE_MS);
+  private static final long REPORT_MAX_MS = Long.getLong("monitor.report.maxMs", 10000L);
+  private static final long REPORT_FAST_WINDOW_MS = 30000L;
+  private static final double SHARP_CPU_DELTA = 0.2;
+  private static final double SHARP_RAM_FRACTION = 0.1;
+  private static final int MAX_BATCH = 120;
   private static final String SCREENSHOT_FORMAT = "png";
+  private static final int CHUNK_BYTES = 64 * 1024;
+  private static final int STREAM_DEFAULT_FPS = 5;
+  private static final int STREAM_MAX_FPS = 15;
+  private static final boolean SCREENSHOT_DELTA =
+      Boolean.parseBoolean(System.getProperty("monitor.screenshot.delta", "true"));
+  private static final String PROTOCOL = System.getProperty("monitor.protocol", "binary");
+  private static final String TAG = System.getProperty("monitor.tag", "");
+  private static final String COLLECTOR = System.getProperty("monitor.collector", "auto");
+  private static final ProcCollector PROC_COLLECTOR = createProcCollector();
+  private static final AgentCost AGENT_COST = new AgentCost();
 
   public static void main(String[] args) throws Exception {
     String host = args.length > 0 ? args[0] : "127.0.0.1";
@@ -43,108 +71,330 @@ public class ClientMain {
     }
     String clientId = args.length > 2 ? args[2] : defaultClientId();
 
+    String targetHost = host;
+    int targetPort = port;
+    int redirects = 0;
     while (true) {
-      boolean monitoringApproved = false;
-      try (Socket socket = new Socket(host, port)) {
-        socket.setSoTimeout(15000);
-        System.out.println("Connected to " + host + ":" + port + " as " + clientId);
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        while (true) {
-          String payload = buildPayload(clientId);
-          writer.write(payload);
-          writer.write("\n");
-          writer.flush();
-          String ack = reader.readLine();
-          if (ack == null) {
-            throw new IOException("server closed connection");
-          }
-          if (ack.startsWith("CMD:")) {
-            String command = ack.substring("CMD:".length()).trim();
-            if ("REQUEST_MONITORING".equalsIgnoreCase(command)) {
-              System.out.println("Received REQUEST_MONITORING");
-              boolean granted = requestMonitoringApproval(clientId);
-              monitoringApproved = granted;
-              System.out.println("Monitoring approval: " + granted);
-              writer.write(buildApprovalLine(clientId, granted));
-              writer.write("\n");
-              writer.flush();
-              reader.readLine();
-              if (granted) {
-                TimeUnit.SECONDS.sleep(2);
-                String screenshotLine = buildScreenshotLine(clientId, true);
-                System.out.println("Sending screenshot: "
-                    + (screenshotLine.contains("granted=true") ? "granted" : "denied"));
-                writer.write(screenshotLine);
-                writer.write("\n");
-                writer.flush();
-                reader.readLine();
-              }
-            } else if ("REQUEST_SCREENSHOT".equalsIgnoreCase(command)) {
-              System.out.println("Received REQUEST_SCREENSHOT");
-              writer.write(buildScreenshotLine(clientId, monitoringApproved));
-              writer.write("\n");
-              writer.flush();
-              reader.readLine();
-            }
-          }
+      try (Socket socket = new Socket(targetHost, targetPort)) {
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        Transport transport = Transport.open(socket, clientId);
+        System.out.println("Connected to " + targetHost + ":" + targetPort + " as " + clientId
+            + " (" + transport.name() + ")");
+        redirects = 0;
+        try {
+          runSession(transport, clientId);
+        } finally {
+          transport.stopStream();
+        }
+      } catch (Redirect e) {
+        System.out.println("Redirected to " + e.host + ":" + e.port);
+        targetHost = e.host;
+        targetPort = e.port;
+        if (++redirects > MAX_REDIRECTS) {
+          redirects = 0;
           TimeUnit.SECONDS.sleep(HEARTBEAT_SECONDS);
         }
       } catch (IOException e) {
         System.out.println("Connection error: " + e.getMessage());
+        targetHost = host;
+        targetPort = port;
         TimeUnit.SECONDS.sleep(HEARTBEAT_SECONDS);
       }
     }
   }
 
-  private static String buildPayload(String clientId) {
+  private static void runSession(Transport transport, String clientId)
+      throws IOException, InterruptedException {
+    boolean monitoringApproved = false;
+    ProcessTable processTable = new ProcessTable();
+    List<Sample> batch = new ArrayList<>();
+    Sample reported = null;
+    long interval = REPORT_MIN_MS;
+    long nextReportAt = 0L;
+    long fastUntil = 0L;
+    while (true) {
+      long started = System.currentTimeMillis();
+      Sample sample = collectSample();
+      boolean sharp = reported != null && movedSharply(reported, sample);
+      if (started < nextReportAt && !sharp && batch.size() < MAX_BATCH) {
+        AGENT_COST.pause();
+        batch.add(sample);
+      } else {
+        completeSample(sample);
+        if (!transport.procDeltas) {
+          // Servers that did not accept procdelta count the processes they are sent, so every
+          // report carries the whole table.
+          processTable.reset();
+        }
+        String command = transport.sendStatus(clientId, sample,
+            processTable.diff(sample.processes), batch);
+        batch.clear();
+        reported = sample;
+        if (command != null) {
+          fastUntil = started + REPORT_FAST_WINDOW_MS;
+          monitoringApproved =
+              handleCommand(transport, clientId, command, monitoringApproved, processTable);
+        }
+        if (sharp || started < fastUntil) {
+          interval = REPORT_MIN_MS;
+        } else {
+          interval = Math.min(REPORT_MAX_MS, interval * 2);
+        }
+        nextReportAt = started + interval;
+      }
+      String pushed;
+      while ((pushed = transport.pollCommand(started + SAMPLE_MS - System.currentTimeMillis()))
+          != null) {
+        long now = System.currentTimeMillis();
+        fastUntil = now + REPORT_FAST_WINDOW_MS;
+        nextReportAt = Math.min(nextReportAt, now + REPORT_MIN_MS);
+        monitoringApproved =
+            handleCommand(transport, clientId, pushed, monitoringApproved, processTable);
+      }
+    }
+  }
+
+  private static boolean movedSharply(Sample reported, Sample sample) {
+    if (Math.abs(sample.cpuLoad - reported.cpuLoad) >= SHARP_CPU_DELTA) {
+      return true;
+    }
+    return sample.ramTotalMb > 0
+        && Math.abs(sample.ramUsedMb - reported.ramUsedMb) >= sample.ramTotalMb * SHARP_RAM_FRACTION;
+  }
+
+  private static boolean handleCommand(Transport transport, String clientId, String command,
+      boolean monitoringApproved, ProcessTable processTable)
+      throws IOException, InterruptedException {
+    if (command.startsWith(WireProtocol.REDIRECT + " ")) {
+      throw Redirect.parse(command);
+    }
+    long id = -1L;
+    int idAt = command.lastIndexOf(" id=");
+    if (idAt >= 0) {
+      try {
+        id = Long.parseLong(command.substring(idAt + " id=".length()).trim());
+        command = command.substring(0, idAt).trim();
+      } catch (NumberFormatException ignored) {
+        id = -1L;
+      }
+    }
+    boolean ok = true;
+    String detail = "ok";
+    if ("RESYNC_PROCESSES".equalsIgnoreCase(command)) {
+      System.out.println("Received RESYNC_PROCESSES");
+      processTable.reset();
+    } else if ("REQUEST_MONITORING".equalsIgnoreCase(command)) {
+      System.out.println("Received REQUEST_MONITORING");
+      boolean granted = requestMonitoringApproval(clientId);
+      System.out.println("Monitoring approval: " + granted);
+      transport.sendApproval(clientId, granted);
+      if (granted) {
+        TimeUnit.SECONDS.sleep(2);
+        boolean sent = transport.sendScreenshot(clientId, true);
+        System.out.println("Sending screenshot: " + (sent ? "granted" : "denied"));
+      }
+      monitoringApproved = granted;
+      ok = granted;
+      detail = granted ? "granted" : "denied";
+    } else if ("REQUEST_SCREENSHOT".equalsIgnoreCase(command)) {
+      System.out.println("Received REQUEST_SCREENSHOT");
+      ok = transport.sendScreenshot(clientId, monitoringApproved);
+      detail = ok ? "sent" : monitoringApproved ? "capture failed" : "not approved";
+    } else if (command.toUpperCase(Locale.ROOT).startsWith("START_STREAM")) {
+      System.out.println("Received " + command);
+      ok = monitoringApproved && transport.startStream(clientId, parseFps(command));
+      detail = ok ? "streaming" : monitoringApproved ? "unsupported" : "not approved";
+    } else if ("STOP_STREAM".equalsIgnoreCase(command)) {
+      System.out.println("Received STOP_STREAM");
+      transport.stopStream();
+    } else {
+      ok = false;
+      detail = "unknown command";
+    }
+    if (id >= 0) {
+      transport.sendResult(id, ok, detail);
+    }
+    return monitoringApproved;
+  }
+
+  private static int parseFps(String command) {
+    int idx = command.indexOf("fps=");
+    if (idx < 0) {
+      return STREAM_DEFAULT_FPS;
+    }
+    try {
+      return Math.max(1, Math.min(STREAM_MAX_FPS,
+          Integer.parseInt(command.substring(idx + "fps=".length()).trim())));
+    } catch (NumberFormatException e) {
+      return STREAM_DEFAULT_FPS;
+    }
+  }
+
+  private static ProcCollector createProcCollector() {
+    if ("jmx".equalsIgnoreCase(COLLECTOR)) {
+      return null;
+    }
+    if (!ProcCollector.available()) {
+      if ("proc".equalsIgnoreCase(COLLECTOR)) {
+        System.out.println("/proc is not readable, using the JMX collector");
+      }
+      return null;
+    }
+    return new ProcCollector();
+  }
+
+  private static Sample collectSample() {
+    AGENT_COST.begin();
+    Sample sample = new Sample();
+    sample.ts = System.currentTimeMillis();
+    if (PROC_COLLECTOR != null) {
+      try {
+        PROC_COLLECTOR.sample(sample);
+        return sample;
+      } catch (IOException e) {
+        System.out.println("/proc collection failed: " + e.getMessage());
+      }
+    }
+    sampleJmx(sample);
+    return sample;
+  }
+
+  private static void completeSample(Sample sample) {
+    boolean completed = false;
+    if (PROC_COLLECTOR != null) {
+      try {
+        PROC_COLLECTOR.complete(sample);
+        completed = true;
+      } catch (IOException e) {
+        System.out.println("/proc collection failed: " + e.getMessage());
+      }
+    }
+    if (!completed) {
+      OperatingSystemMXBean os =
+          (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+      sample.loadAvg[0] = os.getSystemLoadAverage();
+      sample.processes = collectProcesses();
+    }
+    AGENT_COST.end(sample);
+  }
+
+  private static void sampleJmx(Sample sample) {
     OperatingSystemMXBean os =
         (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
-    double cpuLoad = os.getSystemCpuLoad();
-    if (cpuLoad < 0) {
-      cpuLoad = 0.0;
+    sample.cpuLoad = os.getSystemCpuLoad();
+    if (sample.cpuLoad < 0) {
+      sample.cpuLoad = 0.0;
     }
     long total = os.getTotalPhysicalMemorySize();
     long free = os.getFreePhysicalMemorySize();
-    long used = total - free;
+    sample.ramUsedMb = (total - free) / (1024 * 1024);
+    sample.ramTotalMb = total / (1024 * 1024);
+  }
 
-    List<ProcInfo> processes = collectProcesses();
+  static String buildPayload(String clientId) {
+    Sample sample = collectSample();
+    completeSample(sample);
+    return buildPayload(clientId, sample);
+  }
 
-    StringBuilder sb = new StringBuilder();
+  static String buildPayload(String clientId, Sample sample) {
+    return buildPayload(clientId, sample, null, Collections.emptyList());
+  }
+
+  static String buildPayload(String clientId, Sample sample, ProcessTable.Delta delta,
+      List<Sample> batch) {
+    List<ProcInfo> processes = delta == null ? sample.processes : delta.changed;
+    StringBuilder sb = new StringBuilder(128 + processes.size() * 96);
     sb.append("{\"clientId\":\"").append(escape(clientId)).append("\",");
-    sb.append("\"ts\":").append(System.currentTimeMillis()).append(",");
-    sb.append("\"cpuLoad\":")
-        .append(String.format(Locale.US, "%.4f", cpuLoad))
-        .append(",");
-    sb.append("\"ramUsedMb\":").append(used / (1024 * 1024)).append(",");
-    sb.append("\"ramTotalMb\":").append(total / (1024 * 1024)).append(",");
-    sb.append("\"processes\":[");
+    if (!TAG.isEmpty()) {
+      sb.append("\"tag\":\"").append(escape(TAG)).append("\",");
+    }
+    sb.append("\"ts\":").append(sample.ts).append(",");
+    sb.append("\"cpuLoad\":").append(formatDecimal(sample.cpuLoad)).append(",");
+    sb.append("\"ramUsedMb\":").append(sample.ramUsedMb).append(",");
+    sb.append("\"ramTotalMb\":").append(sample.ramTotalMb).append(",");
+    sb.append("\"loadAvg\":[").append(formatDecimal(sample.loadAvg[0])).append(",")
+        .append(formatDecimal(sample.loadAvg[1])).append(",")
+        .append(formatDecimal(sample.loadAvg[2])).append("],");
+    sb.append("\"cores\":[");
+    for (int i = 0; i < sample.coreLoads.length; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(formatDecimal(sample.coreLoads[i]));
+    }
+    sb.append("],");
+    sb.append("\"diskReadBps\":").append(sample.diskReadBps).append(",");
+    sb.append("\"diskWriteBps\":").append(sample.diskWriteBps).append(",");
+    sb.append("\"netRxBps\":").append(sample.netRxBps).append(",");
+    sb.append("\"netTxBps\":").append(sample.netTxBps).append(",");
+    sb.append("\"collectUs\":").append(sample.collectMicros).append(",");
+    sb.append("\"agentCpuPct\":").append(formatDecimal(sample.agentCpuPct)).append(",");
+    sb.append("\"agentAllocBps\":").append(sample.agentAllocBps).append(",");
+    if (!batch.isEmpty()) {
+      sb.append("\"samples\":[");
+      for (int i = 0; i < batch.size(); i++) {
+        Sample earlier = batch.get(i);
+        if (i > 0) {
+          sb.append(",");
+        }
+        sb.append("[").append(earlier.ts).append(",").append(formatDecimal(earlier.cpuLoad))
+            .append(",").append(earlier.ramUsedMb).append("]");
+      }
+      sb.append("],");
+    }
+    if (delta != null) {
+      sb.append("\"procSeq\":").append(delta.seq).append(",");
+      sb.append("\"procBase\":").append(delta.base).append(",");
+      sb.append("\"processCount\":").append(delta.total).append(",");
+    }
+    sb.append(delta == null || delta.full ? "\"processes\":[" : "\"procChanged\":[");
     for (int i = 0; i < processes.size(); i++) {
       ProcInfo proc = processes.get(i);
       if (i > 0) {
         sb.append(",");
       }
       sb.append("{\"pid\":").append(proc.pid).append(",\"cmd\":\"");
-      sb.append(escape(proc.cmd)).append("\"}");
+      sb.append(escape(proc.cmd)).append("\",\"user\":\"");
+      sb.append(escape(proc.user)).append("\",\"startMs\":").append(proc.startMs);
+      sb.append(",\"cpuMs\":").append(proc.cpuMs).append("}");
+    }
+    sb.append("]");
+    if (delta != null && !delta.full) {
+      sb.append(",\"procRemoved\":[");
+      for (int i = 0; i < delta.removed.length; i++) {
+        if (i > 0) {
+          sb.append(",");
+        }
+        sb.append(delta.removed[i]);
+      }
+      sb.append("]");
     }
-    sb.append("]}");
+    sb.append("}");
     return sb.toString();
   }
 
+  private static String formatDecimal(double value) {
+    return String.format(Locale.US, "%.4f", value);
+  }
+
   private static List<ProcInfo> collectProcesses() {
     List<ProcInfo> list = new ArrayList<>();
-    ProcessHandle.allProcesses().limit(MAX_PROCESSES).forEach(ph -> {
+    ProcessHandle.allProcesses().forEach(ph -> {
       ProcessHandle.Info info = ph.info();
       String cmd = info.command().orElse("");
       if (cmd.isEmpty()) {
         cmd = info.commandLine().orElse("unknown");
       }
-      list.add(new ProcInfo(ph.pid(), cmd));
+      list.add(new ProcInfo(ph.pid(), cmd, info.user().orElse(""),
+          info.startInstant().map(Instant::toEpochMilli).orElse(-1L),
+          info.totalCpuDuration().map(Duration::toMillis).orElse(-1L)));
     });
+    list.sort((a, b) -> Long.compare(a.pid, b.pid));
     return list;
   }
 
-  private static String escape(String value) {
+  static String escape(String value) {
     if (value == null) {
       return "";
     }
@@ -206,27 +456,560 @@ public class ClientMain {
     if (GraphicsEnvironment.isHeadless()) {
       return "SCREENSHOT clientId=" + clientId + " granted=false reason=headless";
     }
+    byte[] image = captureScreen();
+    if (image == null) {
+      return "SCREENSHOT clientId=" + clientId + " granted=false reason=capture_failed";
+    }
+    String encoded = Base64.getEncoder().encodeToString(image);
+    return "SCREENSHOT clientId=" + clientId + " granted=true format="
+        + SCREENSHOT_FORMAT + " data=" + encoded;
+  }
+
+  private static byte[] captureScreen() {
+    BufferedImage image = captureImage();
+    if (image == null) {
+      return null;
+    }
     try {
-      BufferedImage image =
-          new Robot()
-              .createScreenCapture(new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()));
       ByteArrayOutputStream buffer = new ByteArrayOutputStream();
       ImageIO.write(image, SCREENSHOT_FORMAT, buffer);
-      String encoded = Base64.getEncoder().encodeToString(buffer.toByteArray());
-      return "SCREENSHOT clientId=" + clientId + " granted=true format="
-          + SCREENSHOT_FORMAT + " data=" + encoded;
-    } catch (AWTException | IOException e) {
-      return "SCREENSHOT clientId=" + clientId + " granted=false reason=capture_failed";
+      return buffer.toByteArray();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static BufferedImage captureImage() {
+    if (GraphicsEnvironment.isHeadless()) {
+      return null;
+    }
+    try {
+      return new Robot()
+          .createScreenCapture(new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()));
+    } catch (AWTException | SecurityException e) {
+      return null;
+    }
+  }
+
+  private static final class ChunkOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private int size;
+
+    ChunkOutputStream(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      chunk[size++] = (byte) b;
+      if (size == chunk.length) {
+        flushChunk();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int count = Math.min(len, chunk.length - size);
+        System.arraycopy(b, off, chunk, size, count);
+        size += count;
+        off += count;
+        len -= count;
+        if (size == chunk.length) {
+          flushChunk();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flushChunk();
+    }
+
+    private void flushChunk() throws IOException {
+      if (size == 0) {
+        return;
+      }
+      synchronized (out) {
+        out.writeInt(1 + size);
+        out.writeByte(WireProtocol.SCREENSHOT_CHUNK);
+        out.write(chunk, 0, size);
+      }
+      size = 0;
+    }
+  }
+
+  static class Sample {
+    long ts;
+    double cpuLoad;
+    long ramUsedMb;
+    long ramTotalMb;
+    List<ProcInfo> processes;
+    double[] coreLoads = new double[0];
+    double[] loadAvg = {-1.0, -1.0, -1.0};
+    long diskReadBps = -1L;
+    long diskWriteBps = -1L;
+    long netRxBps = -1L;
+    long netTxBps = -1L;
+    long collectMicros = -1L;
+    double agentCpuPct = -1.0;
+    long agentAllocBps = -1L;
+  }
+
+  private static final class Redirect extends IOException {
+    private static final long serialVersionUID = 1L;
+    final String host;
+    final int port;
+
+    private Redirect(String host, int port) {
+      super("redirected to " + host + ":" + port);
+      this.host = host;
+      this.port = port;
+    }
+
+    static Redirect parse(String line) throws IOException {
+      String host = WireProtocol.token(line, "host");
+      String port = WireProtocol.token(line, "port");
+      try {
+        if (host != null && port != null) {
+          return new Redirect(host, Integer.parseInt(port));
+        }
+      } catch (NumberFormatException ignored) {
+        // fall through to the protocol error below
+      }
+      throw new IOException("bad redirect: " + line);
+    }
+  }
+
+  private abstract static class Transport {
+    final InputStream input;
+    final OutputStream output;
+    boolean procDeltas;
+
+    Transport(InputStream input, OutputStream output) {
+      this.input = input;
+      this.output = output;
+    }
+
+    static Transport open(Socket socket, String clientId) throws IOException {
+      InputStream input = new BufferedInputStream(socket.getInputStream());
+      OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+      Transport transport;
+      String reply;
+      if (!WireProtocol.TEXT.equalsIgnoreCase(PROTOCOL)) {
+        writeLine(output, WireProtocol.helloLine(WireProtocol.BINARY_V1, clientId,
+            WireProtocol.CAP_PUSH + "," + WireProtocol.CAP_RESULT + ","
+                + WireProtocol.CAP_PROC_DELTA));
+        reply = readHelloReply(input);
+        if (reply.startsWith(WireProtocol.HELLO + " proto=" + WireProtocol.BINARY_V1)) {
+          socket.setSoTimeout(0);
+          transport = new BinaryTransport(input, output);
+        } else {
+          transport = new TextTransport(input, output);
+        }
+      } else {
+        writeLine(output, WireProtocol.helloLine(WireProtocol.TEXT, clientId,
+            WireProtocol.CAP_RESULT + "," + WireProtocol.CAP_PROC_DELTA));
+        reply = readHelloReply(input);
+        transport = new TextTransport(input, output);
+      }
+      transport.procDeltas =
+          WireProtocol.hasCap(WireProtocol.token(reply, "caps"), WireProtocol.CAP_PROC_DELTA);
+      return transport;
+    }
+
+    private static String readHelloReply(InputStream input) throws IOException {
+      String reply = WireProtocol.readLine(input);
+      if (reply == null) {
+        throw new IOException("server closed connection");
+      }
+      if (reply.startsWith(WireProtocol.REDIRECT + " ")) {
+        throw Redirect.parse(reply);
+      }
+      return reply;
+    }
+
+    static void writeLine(OutputStream output, String line) throws IOException {
+      output.write(line.getBytes(StandardCharsets.UTF_8));
+      output.write('\n');
+      output.flush();
+    }
+
+    abstract String name();
+
+    abstract String sendStatus(String clientId, Sample sample, ProcessTable.Delta delta,
+        List<Sample> batch) throws IOException;
+
+    abstract void sendApproval(String clientId, boolean granted) throws IOException;
+
+    abstract boolean sendScreenshot(String clientId, boolean allowed) throws IOException;
+
+    abstract void sendResult(long id, boolean ok, String detail) throws IOException;
+
+    String pollCommand(long timeoutMs) throws IOException, InterruptedException {
+      TimeUnit.MILLISECONDS.sleep(Math.max(0L, timeoutMs));
+      return null;
+    }
+
+    boolean startStream(String clientId, int fps) {
+      System.out.println("Live streaming needs the binary protocol");
+      return false;
+    }
+
+    void stopStream() {
+    }
+  }
+
+  private static final class TextTransport extends Transport {
+    TextTransport(InputStream input, OutputStream output) {
+      super(input, output);
+    }
+
+    @Override
+    String name() {
+      return "text";
+    }
+
+    @Override
+    String sendStatus(String clientId, Sample sample, ProcessTable.Delta delta,
+        List<Sample> batch) throws IOException {
+      writeLine(output, buildPayload(clientId, sample, delta, batch));
+      String ack = readAck();
+      if (ack.startsWith("CMD:")) {
+        return ack.substring("CMD:".length()).trim();
+      }
+      return null;
+    }
+
+    @Override
+    void sendApproval(String clientId, boolean granted) throws IOException {
+      writeLine(output, buildApprovalLine(clientId, granted));
+      readAck();
+    }
+
+    @Override
+    boolean sendScreenshot(String clientId, boolean allowed) throws IOException {
+      String line = buildScreenshotLine(clientId, allowed);
+      writeLine(output, line);
+      readAck();
+      return line.contains("granted=true");
+    }
+
+    @Override
+    void sendResult(long id, boolean ok, String detail) throws IOException {
+      writeLine(output, "RESULT id=" + id + " ok=" + ok + " detail=" + detail);
+      readAck();
+    }
+
+    private String readAck() throws IOException {
+      String ack = WireProtocol.readLine(input);
+      if (ack == null) {
+        throw new IOException("server closed connection");
+      }
+      return ack;
+    }
+  }
+
+  private static final class BinaryTransport extends Transport {
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+    private final DataInputStream frames;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(4096);
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final ScreenTiles.Encoder tiles = new ScreenTiles.Encoder();
+    private final BlockingQueue<ByteBuffer> replies = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> pushed = new LinkedBlockingQueue<>();
+    private long lastAck;
+    private boolean tilesRefused;
+    private volatile Thread streamer;
+
+    BinaryTransport(InputStream input, OutputStream output) {
+      super(input, output);
+      this.frames = new DataInputStream(input);
+      this.out = new DataOutputStream(output);
+      Thread reader = new Thread(this::readFrames, "frame-reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    private void readFrames() {
+      try {
+        ByteBuffer frame;
+        while ((frame = WireProtocol.readFrame(frames, false)) != null) {
+          if (frame.get(0) == WireProtocol.PUSH_COMMAND) {
+            frame.get();
+            long id = frame.getLong();
+            pushed.add(WireProtocol.readString(frame).trim() + " id=" + id);
+          } else {
+            replies.add(frame);
+          }
+        }
+      } catch (IOException e) {
+        System.out.println("Connection lost: " + e.getMessage());
+      }
+      replies.add(CLOSED);
+    }
+
+    @Override
+    String name() {
+      return WireProtocol.BINARY_V1;
+    }
+
+    @Override
+    String sendStatus(String clientId, Sample sample, ProcessTable.Delta delta,
+        List<Sample> batch) throws IOException {
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.STATUS_DELTA);
+      WireProtocol.writeString(payloadOut, clientId);
+      payloadOut.writeLong(sample.ts);
+      payloadOut.writeDouble(sample.cpuLoad);
+      payloadOut.writeLong(sample.ramUsedMb);
+      payloadOut.writeLong(sample.ramTotalMb);
+      payloadOut.writeBoolean(delta.full);
+      payloadOut.writeLong(delta.seq);
+      payloadOut.writeLong(delta.base);
+      payloadOut.writeInt(delta.total);
+      payloadOut.writeInt(delta.changed.size());
+      for (ProcInfo proc : delta.changed) {
+        payloadOut.writeLong(proc.pid);
+        payloadOut.writeLong(proc.startMs);
+        payloadOut.writeLong(proc.cpuMs);
+        WireProtocol.writeString(payloadOut, proc.user);
+        WireProtocol.writeString(payloadOut, proc.cmd);
+      }
+      payloadOut.writeInt(delta.removed.length);
+      for (long pid : delta.removed) {
+        payloadOut.writeLong(pid);
+      }
+      for (double load : sample.loadAvg) {
+        payloadOut.writeDouble(load);
+      }
+      payloadOut.writeInt(sample.coreLoads.length);
+      for (double load : sample.coreLoads) {
+        payloadOut.writeDouble(load);
+      }
+      payloadOut.writeLong(sample.diskReadBps);
+      payloadOut.writeLong(sample.diskWriteBps);
+      payloadOut.writeLong(sample.netRxBps);
+      payloadOut.writeLong(sample.netTxBps);
+      payloadOut.writeLong(sample.collectMicros);
+      payloadOut.writeDouble(sample.agentCpuPct);
+      payloadOut.writeLong(sample.agentAllocBps);
+      payloadOut.writeInt(batch.size());
+      for (Sample earlier : batch) {
+        payloadOut.writeLong(earlier.ts);
+        payloadOut.writeDouble(earlier.cpuLoad);
+        payloadOut.writeLong(earlier.ramUsedMb);
+      }
+      WireProtocol.writeString(payloadOut, TAG);
+      return sendPayload();
+    }
+
+    @Override
+    void sendApproval(String clientId, boolean granted) throws IOException {
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.APPROVAL);
+      WireProtocol.writeString(payloadOut, clientId);
+      payloadOut.writeBoolean(granted);
+      sendPayload();
+    }
+
+    @Override
+    boolean sendScreenshot(String clientId, boolean allowed) throws IOException {
+      BufferedImage image = allowed ? captureImage() : null;
+      if (image == null) {
+        payload.reset();
+        payloadOut.writeByte(WireProtocol.SCREENSHOT);
+        WireProtocol.writeString(payloadOut, clientId);
+        payloadOut.writeBoolean(false);
+        WireProtocol.writeString(payloadOut, SCREENSHOT_FORMAT);
+        sendPayload();
+        return false;
+      }
+      if (SCREENSHOT_DELTA && !tilesRefused) {
+        sendTiles(clientId, image);
+        if (lastAck < 0 && tiles.baseFrameId() == 0) {
+          sendTiles(clientId, image);
+        }
+        if (lastAck > 0) {
+          return true;
+        }
+        // The server refused even a keyframe (too large or over its memory budget), so this
+        // connection uploads whole images in chunks from now on.
+        tilesRefused = true;
+      }
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.SCREENSHOT_BEGIN);
+      WireProtocol.writeString(payloadOut, clientId);
+      WireProtocol.writeString(payloadOut, SCREENSHOT_FORMAT);
+      writePayload();
+      boolean ok;
+      try (ChunkOutputStream chunks = new ChunkOutputStream(out)) {
+        ok = ImageIO.write(image, SCREENSHOT_FORMAT, chunks);
+      }
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.SCREENSHOT_END);
+      WireProtocol.writeString(payloadOut, clientId);
+      payloadOut.writeBoolean(ok);
+      sendPayload();
+      return ok;
+    }
+
+    private void sendTiles(String clientId, BufferedImage image) throws IOException {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      int[] pixels = ScreenTiles.pixels(image);
+      long frameId = tiles.prepare(pixels, width, height);
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.TILES_BEGIN);
+      WireProtocol.writeString(payloadOut, clientId);
+      payloadOut.writeLong(tiles.baseFrameId());
+      payloadOut.writeInt(width);
+      payloadOut.writeInt(height);
+      writePayload();
+      int sent = 0;
+      for (int i = 0; i < tiles.tileCount(); i++) {
+        if (tiles.changed(i)) {
+          payload.reset();
+          payloadOut.writeByte(WireProtocol.TILE);
+          tiles.writeTile(payloadOut, pixels, i);
+          writePayload();
+          sent++;
+        }
+      }
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.TILES_END);
+      WireProtocol.writeString(payloadOut, clientId);
+      payloadOut.writeLong(frameId);
+      sendPayload();
+      tiles.acknowledge(lastAck);
+      System.out.println("Sent " + sent + "/" + tiles.tileCount() + " screen tiles, ack " + lastAck);
+    }
+
+    @Override
+    void sendResult(long id, boolean ok, String detail) throws IOException {
+      payload.reset();
+      payloadOut.writeByte(WireProtocol.RESULT);
+      payloadOut.writeLong(id);
+      payloadOut.writeBoolean(ok);
+      WireProtocol.writeString(payloadOut, detail);
+      sendPayload();
+    }
+
+    @Override
+    String pollCommand(long timeoutMs) throws IOException, InterruptedException {
+      String command = pushed.poll(Math.max(0L, timeoutMs), TimeUnit.MILLISECONDS);
+      if (command == null && replies.peek() == CLOSED) {
+        throw new IOException("server closed connection");
+      }
+      return command;
+    }
+
+    @Override
+    boolean startStream(String clientId, int fps) {
+      stopStream();
+      Thread thread = new Thread(() -> streamFrames(clientId, fps), "live-stream");
+      thread.setDaemon(true);
+      streamer = thread;
+      thread.start();
+      return true;
+    }
+
+    @Override
+    void stopStream() {
+      Thread thread = streamer;
+      streamer = null;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    private void streamFrames(String clientId, int fps) {
+      long intervalNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+      ByteArrayOutputStream jpeg = new ByteArrayOutputStream(256 * 1024);
+      byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+      try {
+        while (streamer == Thread.currentThread()) {
+          long started = System.nanoTime();
+          BufferedImage image = captureImage();
+          if (image == null) {
+            break;
+          }
+          jpeg.reset();
+          ImageIO.write(image, "jpg", jpeg);
+          synchronized (out) {
+            out.writeInt(1 + 4 + id.length + jpeg.size());
+            out.writeByte(WireProtocol.STREAM_FRAME);
+            out.writeInt(id.length);
+            out.write(id);
+            jpeg.writeTo(out);
+            out.flush();
+          }
+          long remaining = intervalNanos - (System.nanoTime() - started);
+          if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+          }
+        }
+      } catch (IOException e) {
+        System.out.println("Live stream stopped: " + e.getMessage());
+      } catch (InterruptedException ignored) {
+        // stopped
+      }
+    }
+
+    private void writePayload() throws IOException {
+      synchronized (out) {
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+      }
+    }
+
+    private String sendPayload() throws IOException {
+      synchronized (out) {
+        writePayload();
+        out.flush();
+      }
+      return readReply();
+    }
+
+    private String readReply() throws IOException {
+      ByteBuffer frame;
+      try {
+        frame = replies.poll(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted waiting for the server");
+      }
+      if (frame == null) {
+        throw new IOException("timed out waiting for the server");
+      }
+      if (frame == CLOSED) {
+        replies.add(CLOSED);
+        throw new IOException("server closed connection");
+      }
+      byte type = frame.get();
+      if (type == WireProtocol.COMMAND) {
+        return WireProtocol.readString(frame).trim();
+      }
+      lastAck = frame.remaining() >= 8 ? frame.getLong() : 0;
+      return null;
     }
   }
 
-  private static class ProcInfo {
+  static class ProcInfo {
     final long pid;
     final String cmd;
+    final String user;
+    final long startMs;
+    final long cpuMs;
 
-    ProcInfo(long pid, String cmd) {
+    ProcInfo(long pid, String cmd, String user, long startMs, long cpuMs) {
       this.pid = pid;
       this.cmd = cmd;
+      this.user = user;
+      this.startMs = startMs;
+      this.cpuMs = cpuMs;
     }
   }
 }
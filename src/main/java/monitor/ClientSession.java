@@ -0,0 +1,35 @@
+package monitor;
+
+import java.nio.ByteBuffer;
+
+class ClientSession {
+  final String remote;
+  final StatusParser statusParser = new StatusParser();
+  final StatusReport report = new StatusReport();
+  volatile String lastClientId;
+  volatile boolean binary;
+  volatile boolean pushCommands;
+  volatile boolean commandResults;
+  volatile boolean redirected;
+  volatile boolean identified;
+  volatile Pusher pusher;
+  ScreenshotBuffer upload;
+  String uploadClientId;
+  ScreenTiles.Reference tileTarget;
+  String tileClientId;
+  boolean tileRejected;
+  long bytesRead;
+
+  ClientSession(String remote) {
+    this.remote = remote;
+  }
+
+  boolean push(ByteBuffer frame) {
+    Pusher target = pusher;
+    return target != null && target.push(frame);
+  }
+
+  interface Pusher {
+    boolean push(ByteBuffer frame);
+  }
+}
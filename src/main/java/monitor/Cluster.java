@@ -0,0 +1,562 @@
+package monitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+final class Cluster {
+  static final String FORWARDED_HEADER = "X-Monitor-Forwarded";
+  static final int COMMAND_ID_BITS = 40;
+  private static final int COMMAND_PREFIXES = 1 << 12;
+  private static final int VIRTUAL_NODES = 160;
+  private static final String[] REQUEST_HEADERS = {
+      "Content-Type", "Accept-Encoding", "If-None-Match", "If-Modified-Since"};
+  private static final String[] RESPONSE_HEADERS = {
+      "Content-Type", "Content-Encoding", "ETag", "Last-Modified", "Cache-Control", "Vary",
+      "Retry-After"};
+
+  private final String selfId;
+  private final String spec;
+  private final long fanOutTimeoutMs;
+  private final long proxyTimeoutMs;
+  private final HttpClient http;
+  private volatile Ring ring;
+  private long specModified;
+
+  Cluster(String spec, String selfId, long fanOutTimeoutMs, long proxyTimeoutMs)
+      throws IOException {
+    this.spec = spec;
+    this.selfId = selfId;
+    this.fanOutTimeoutMs = fanOutTimeoutMs;
+    this.proxyTimeoutMs = proxyTimeoutMs;
+    this.http = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(fanOutTimeoutMs))
+        .build();
+    this.ring = new Ring(parseNodes(readSpec()));
+    if (ring.byId(selfId) == null) {
+      throw new IllegalArgumentException("cluster node " + selfId + " is not in " + spec);
+    }
+  }
+
+  private String readSpec() throws IOException {
+    if (!spec.startsWith("@")) {
+      return spec;
+    }
+    Path file = Paths.get(spec.substring(1));
+    specModified = Files.getLastModifiedTime(file).toMillis();
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+
+  boolean reload() throws IOException {
+    if (!spec.startsWith("@")
+        || Files.getLastModifiedTime(Paths.get(spec.substring(1))).toMillis() == specModified) {
+      return false;
+    }
+    Ring next = new Ring(parseNodes(readSpec()));
+    if (next.sameNodes(ring)) {
+      return false;
+    }
+    ring = next;
+    return true;
+  }
+
+  static List<Node> parseNodes(String text) {
+    List<Node> nodes = new ArrayList<>();
+    for (String item : text.split("[,\\s]+")) {
+      if (item.isEmpty() || item.startsWith("#")) {
+        continue;
+      }
+      int equals = item.indexOf('=');
+      String[] address = item.substring(equals + 1).split(":");
+      if (equals <= 0 || address.length != 3) {
+        throw new IllegalArgumentException("expected id=host:ingestPort:httpPort, got " + item);
+      }
+      try {
+        nodes.add(new Node(item.substring(0, equals), address[0], Integer.parseInt(address[1]),
+            Integer.parseInt(address[2])));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("bad port in " + item);
+      }
+    }
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("no cluster nodes");
+    }
+    return nodes;
+  }
+
+  Node self() {
+    return ring.byId(selfId);
+  }
+
+  List<Node> nodes() {
+    return ring.nodes;
+  }
+
+  Node owner(String clientId) {
+    return ring.owner(clientId);
+  }
+
+  boolean isLocal(String clientId) {
+    return ring.owner(clientId).id.equals(selfId);
+  }
+
+  // Command ids carry the issuing node's prefix above COMMAND_ID_BITS so they are unique
+  // cluster-wide and stay below 2^53 for JavaScript clients.
+  static int commandPrefix(String nodeId) {
+    return 1 + (int) Long.remainderUnsigned(hash(nodeId), COMMAND_PREFIXES - 1);
+  }
+
+  Node commandOwner(long commandId) {
+    return ring.byCommandPrefix((int) (commandId >>> COMMAND_ID_BITS));
+  }
+
+  static boolean isForwarded(HttpExchange exchange) {
+    return exchange.getRequestHeaders().containsKey(FORWARDED_HEADER);
+  }
+
+  String mergeStatus(String since, Function<String, String> local) {
+    Map<String, String> cursors = parseCursor(since);
+    List<Node> nodes = ring.nodes;
+    List<StatusPart> parts = fetchStatus(nodes, cursors, local);
+    boolean anyFull = false;
+    boolean anyDelta = false;
+    for (StatusPart part : parts) {
+      if (part != null) {
+        anyFull |= part.full;
+        anyDelta |= !part.full;
+      }
+    }
+    if (anyFull && anyDelta) {
+      parts = fetchStatus(nodes, Collections.emptyMap(), local);
+      anyFull = true;
+    }
+    StringBuilder clients = new StringBuilder();
+    StringBuilder removed = new StringBuilder();
+    StringBuilder version = new StringBuilder();
+    StringBuilder unavailable = new StringBuilder();
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      StatusPart part = parts.get(i);
+      String cursor = part != null ? part.version : anyFull ? null : cursors.get(node.id);
+      if (cursor != null) {
+        version.append(version.length() > 0 ? "," : "");
+        version.append(node.id).append(':').append(cursor);
+      }
+      if (part == null) {
+        unavailable.append(unavailable.length() > 0 ? "," : "")
+            .append(ServerMain.formatJsonString(node.id));
+        continue;
+      }
+      append(clients, part.clients);
+      append(removed, part.removed);
+    }
+    StringBuilder sb = new StringBuilder(64 + clients.length() + removed.length());
+    sb.append("{\"serverTime\":").append(System.currentTimeMillis()).append(",");
+    sb.append("\"version\":").append(ServerMain.formatJsonString(version.toString())).append(",");
+    sb.append("\"full\":").append(anyFull).append(",");
+    sb.append("\"clients\":[").append(clients).append("],");
+    sb.append("\"removed\":[").append(removed).append("],");
+    sb.append("\"unavailable\":[").append(unavailable).append("]}");
+    return sb.toString();
+  }
+
+  private static void append(StringBuilder target, String items) {
+    if (items.isEmpty()) {
+      return;
+    }
+    if (target.length() > 0) {
+      target.append(",");
+    }
+    target.append(items);
+  }
+
+  private List<StatusPart> fetchStatus(List<Node> nodes, Map<String, String> cursors,
+      Function<String, String> local) {
+    List<CompletableFuture<String>> pending = new ArrayList<>(nodes.size());
+    for (Node node : nodes) {
+      String cursor = cursors.get(node.id);
+      if (node.id.equals(selfId)) {
+        pending.add(CompletableFuture.completedFuture(local.apply(cursor)));
+      } else {
+        String query = cursor == null ? "" : "&since=" + cursor;
+        pending.add(fetch(node, "/api/status?local=1" + query));
+      }
+    }
+    long deadline = System.currentTimeMillis() + fanOutTimeoutMs;
+    List<StatusPart> parts = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      try {
+        long wait = Math.max(1L, deadline - System.currentTimeMillis());
+        String body = pending.get(i).get(wait, TimeUnit.MILLISECONDS);
+        parts.add(body == null ? null : StatusPart.parse(body));
+      } catch (ExecutionException | TimeoutException | IllegalArgumentException e) {
+        System.out.println("Cluster node " + nodes.get(i).id + " status unavailable: " + e);
+        pending.get(i).cancel(true);
+        parts.add(null);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        parts.add(null);
+      }
+    }
+    return parts;
+  }
+
+  private static Map<String, String> parseCursor(String since) {
+    Map<String, String> cursors = new LinkedHashMap<>();
+    if (since == null) {
+      return cursors;
+    }
+    for (String item : since.split(",")) {
+      int colon = item.indexOf(':');
+      if (colon > 0) {
+        cursors.put(item.substring(0, colon), item.substring(colon + 1));
+      }
+    }
+    return cursors;
+  }
+
+  private CompletableFuture<HttpResponse<String>> get(Node node, String pathAndQuery,
+      long timeoutMs) {
+    HttpRequest request = HttpRequest.newBuilder(node.uri(pathAndQuery))
+        .timeout(Duration.ofMillis(timeoutMs))
+        .header(FORWARDED_HEADER, selfId)
+        .GET()
+        .build();
+    return http.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  private CompletableFuture<String> fetch(Node node, String pathAndQuery) {
+    return get(node, pathAndQuery, fanOutTimeoutMs)
+        .thenApply(response -> response.statusCode() == 200 ? response.body() : null);
+  }
+
+  void proxy(HttpExchange exchange, Node node) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    HttpRequest.Builder builder = HttpRequest.newBuilder(
+            node.uri(exchange.getRequestURI().getRawPath() + (query == null ? "" : "?" + query)))
+        .timeout(Duration.ofMillis(proxyTimeoutMs))
+        .header(FORWARDED_HEADER, selfId);
+    for (String name : REQUEST_HEADERS) {
+      String value = exchange.getRequestHeaders().getFirst(name);
+      if (value != null) {
+        builder.header(name, value);
+      }
+    }
+    byte[] body;
+    try (InputStream input = exchange.getRequestBody()) {
+      body = input.readAllBytes();
+    }
+    builder.method(exchange.getRequestMethod(), body.length == 0
+        ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+    HttpResponse<InputStream> response;
+    try {
+      response = http.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+    } catch (IOException e) {
+      System.out.println("Cluster proxy to " + node.id + " failed: " + e.getMessage());
+      exchange.sendResponseHeaders(502, -1);
+      exchange.close();
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exchange.sendResponseHeaders(503, -1);
+      exchange.close();
+      return;
+    }
+    for (String name : RESPONSE_HEADERS) {
+      response.headers().firstValue(name)
+          .ifPresent(value -> exchange.getResponseHeaders().set(name, value));
+    }
+    int status = response.statusCode();
+    long length = response.headers().firstValueAsLong("Content-Length").orElse(0L);
+    boolean empty = status == 204 || status == 304 || "HEAD".equals(exchange.getRequestMethod());
+    try (InputStream input = response.body()) {
+      exchange.sendResponseHeaders(status, empty || (length == 0 && status >= 400) ? -1 : length);
+      if (!empty) {
+        OutputStream out = exchange.getResponseBody();
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+          out.flush();
+        }
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  static final class Node {
+    final String id;
+    final String host;
+    final int ingestPort;
+    final int httpPort;
+    final int commandPrefix;
+
+    Node(String id, String host, int ingestPort, int httpPort) {
+      this.id = id;
+      this.commandPrefix = commandPrefix(id);
+      this.host = host;
+      this.ingestPort = ingestPort;
+      this.httpPort = httpPort;
+    }
+
+    URI uri(String pathAndQuery) {
+      return URI.create("http://" + host + ":" + httpPort + pathAndQuery);
+    }
+
+    String redirect() {
+      return WireProtocol.redirectLine(host, ingestPort);
+    }
+
+    @Override
+    public String toString() {
+      return id + "=" + host + ":" + ingestPort + ":" + httpPort;
+    }
+  }
+
+  private static final class Ring {
+    final List<Node> nodes;
+    final long[] points;
+    final Node[] owners;
+
+    Ring(List<Node> nodes) {
+      Map<Integer, Node> prefixes = new HashMap<>();
+      for (Node node : nodes) {
+        Node clash = prefixes.putIfAbsent(node.commandPrefix, node);
+        if (clash != null && !clash.id.equals(node.id)) {
+          throw new IllegalArgumentException("cluster nodes " + clash.id + " and " + node.id
+              + " share command id prefix " + node.commandPrefix + "; rename one of them");
+        }
+      }
+      this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+      long[][] entries = new long[nodes.size() * VIRTUAL_NODES][];
+      int count = 0;
+      for (int n = 0; n < nodes.size(); n++) {
+        for (int v = 0; v < VIRTUAL_NODES; v++) {
+          entries[count++] = new long[] {hash(nodes.get(n).id + "#" + v), n};
+        }
+      }
+      Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+      points = new long[count];
+      owners = new Node[count];
+      for (int i = 0; i < count; i++) {
+        points[i] = entries[i][0];
+        owners[i] = nodes.get((int) entries[i][1]);
+      }
+    }
+
+    Node owner(String key) {
+      int index = Arrays.binarySearch(points, hash(key));
+      if (index < 0) {
+        index = -index - 1;
+      }
+      return owners[index == points.length ? 0 : index];
+    }
+
+    Node byId(String id) {
+      for (Node node : nodes) {
+        if (node.id.equals(id)) {
+          return node;
+        }
+      }
+      return null;
+    }
+
+    Node byCommandPrefix(int prefix) {
+      for (Node node : nodes) {
+        if (node.commandPrefix == prefix) {
+          return node;
+        }
+      }
+      return null;
+    }
+
+    boolean sameNodes(Ring other) {
+      return nodes.toString().equals(other.nodes.toString());
+    }
+  }
+
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    for (byte b : bytes) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static final class StatusPart {
+    String version;
+    boolean full = true;
+    String clients;
+    String removed;
+
+    // Walks the top-level object so field order and whitespace do not matter.
+    static StatusPart parse(String json) {
+      StatusPart part = new StatusPart();
+      int[] pos = {skipSpace(json, 0)};
+      expect(json, pos, '{');
+      if (peek(json, pos) == '}') {
+        pos[0]++;
+      } else {
+        while (true) {
+          String key = readString(json, pos);
+          expect(json, pos, ':');
+          int start = skipSpace(json, pos[0]);
+          int end = skipValue(json, start);
+          pos[0] = end;
+          if ("version".equals(key)) {
+            part.version = json.charAt(start) == '"'
+                ? readString(json, new int[] {start}) : json.substring(start, end);
+          } else if ("full".equals(key)) {
+            part.full = !json.startsWith("false", start);
+          } else if ("clients".equals(key)) {
+            part.clients = arrayItems(json, start, end);
+          } else if ("removed".equals(key)) {
+            part.removed = arrayItems(json, start, end);
+          }
+          char next = peek(json, pos);
+          pos[0]++;
+          if (next == '}') {
+            break;
+          }
+          if (next != ',') {
+            throw new IllegalArgumentException("unexpected status payload at " + (pos[0] - 1));
+          }
+        }
+      }
+      if (part.version == null || part.clients == null || part.removed == null) {
+        throw new IllegalArgumentException("unexpected status payload");
+      }
+      return part;
+    }
+
+    private static String arrayItems(String json, int start, int end) {
+      if (json.charAt(start) != '[') {
+        throw new IllegalArgumentException("expected array at " + start);
+      }
+      return json.substring(start + 1, end - 1).trim();
+    }
+
+    private static int skipValue(String json, int index) {
+      if (index >= json.length()) {
+        throw new IllegalArgumentException("truncated status payload");
+      }
+      char c = json.charAt(index);
+      if (c == '"') {
+        int[] pos = {index};
+        readString(json, pos);
+        return pos[0];
+      }
+      if (c != '{' && c != '[') {
+        int end = index;
+        while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) < 0) {
+          end++;
+        }
+        if (end == index) {
+          throw new IllegalArgumentException("expected value at " + index);
+        }
+        return end;
+      }
+      int depth = 0;
+      for (int i = index; i < json.length(); i++) {
+        char ch = json.charAt(i);
+        if (ch == '"') {
+          int[] pos = {i};
+          readString(json, pos);
+          i = pos[0] - 1;
+        } else if (ch == '{' || ch == '[') {
+          depth++;
+        } else if ((ch == '}' || ch == ']') && --depth == 0) {
+          return i + 1;
+        }
+      }
+      throw new IllegalArgumentException("truncated status payload");
+    }
+
+    private static String readString(String json, int[] pos) {
+      int i = skipSpace(json, pos[0]);
+      if (i >= json.length() || json.charAt(i) != '"') {
+        throw new IllegalArgumentException("expected string at " + i);
+      }
+      StringBuilder sb = null;
+      int start = ++i;
+      for (; i < json.length(); i++) {
+        char c = json.charAt(i);
+        if (c == '"') {
+          pos[0] = i + 1;
+          return sb == null ? json.substring(start, i) : sb.append(json, start, i).toString();
+        }
+        if (c == '\\') {
+          if (sb == null) {
+            sb = new StringBuilder();
+          }
+          sb.append(json, start, i);
+          if (++i >= json.length()) {
+            break;
+          }
+          char e = json.charAt(i);
+          if (e == 'u' && i + 4 < json.length()) {
+            sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+            i += 4;
+          } else {
+            sb.append(e == 'n' ? '\n' : e == 't' ? '\t' : e == 'r' ? '\r' : e == 'b' ? '\b'
+                : e == 'f' ? '\f' : e);
+          }
+          start = i + 1;
+        }
+      }
+      throw new IllegalArgumentException("unterminated string in status payload");
+    }
+
+    private static char peek(String json, int[] pos) {
+      pos[0] = skipSpace(json, pos[0]);
+      if (pos[0] >= json.length()) {
+        throw new IllegalArgumentException("truncated status payload");
+      }
+      return json.charAt(pos[0]);
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+      if (peek(json, pos) != c) {
+        throw new IllegalArgumentException("expected '" + c + "' at " + pos[0]);
+      }
+      pos[0]++;
+    }
+
+    private static int skipSpace(String json, int index) {
+      while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+        index++;
+      }
+      return index;
+    }
+  }
+}
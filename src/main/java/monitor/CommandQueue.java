@@ -0,0 +1,180 @@
+package monitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class CommandQueue {
+  private static final long RETAIN_FINISHED_MS = 300_000L;
+
+  enum State {
+    QUEUED, SENT, DONE, FAILED, EXPIRED
+  }
+
+  private final AtomicLong ids;
+  private final Map<String, ArrayDeque<Command>> queuedByClient = new HashMap<>();
+  private final Map<Long, Command> byId = new ConcurrentHashMap<>();
+
+  CommandQueue() {
+    this(0);
+  }
+
+  CommandQueue(int idPrefix) {
+    ids = new AtomicLong((long) idPrefix << Cluster.COMMAND_ID_BITS);
+  }
+
+  Command enqueue(String clientId, String text, long timeoutMs) {
+    long now = System.currentTimeMillis();
+    Command command = new Command(ids.incrementAndGet(), clientId, text, now, now + timeoutMs);
+    byId.put(command.id, command);
+    synchronized (this) {
+      queuedByClient.computeIfAbsent(clientId, id -> new ArrayDeque<>()).add(command);
+    }
+    return command;
+  }
+
+  synchronized Command poll(String clientId) {
+    ArrayDeque<Command> queue = queuedByClient.get(clientId);
+    if (queue == null) {
+      return null;
+    }
+    Command command = queue.poll();
+    if (queue.isEmpty()) {
+      queuedByClient.remove(clientId);
+    }
+    if (command != null) {
+      command.state = State.SENT;
+    }
+    return command;
+  }
+
+  synchronized List<Command> drain(String clientId) {
+    ArrayDeque<Command> queue = queuedByClient.remove(clientId);
+    if (queue == null) {
+      return new ArrayList<>(0);
+    }
+    for (Command command : queue) {
+      command.state = State.SENT;
+    }
+    return new ArrayList<>(queue);
+  }
+
+  synchronized String peek(String clientId) {
+    ArrayDeque<Command> queue = queuedByClient.get(clientId);
+    Command head = queue == null ? null : queue.peek();
+    return head == null ? null : head.text;
+  }
+
+  Command get(long id) {
+    return byId.get(id);
+  }
+
+  boolean complete(long id, boolean ok, String result) {
+    Command command = byId.get(id);
+    return command != null && command.finish(ok ? State.DONE : State.FAILED, result);
+  }
+
+  void failSent(String clientId, String reason) {
+    for (Command command : byId.values()) {
+      if (command.state == State.SENT && command.clientId.equals(clientId)) {
+        command.finish(State.FAILED, reason);
+      }
+    }
+  }
+
+  void cancel(String clientId, String reason) {
+    List<Command> dropped = drain(clientId);
+    for (Command command : dropped) {
+      command.finish(State.FAILED, reason);
+    }
+    failSent(clientId, reason);
+  }
+
+  int count(State state) {
+    int count = 0;
+    for (Command command : byId.values()) {
+      if (command.state == state) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  List<String> expire(long now) {
+    List<String> changed = new ArrayList<>();
+    synchronized (this) {
+      Iterator<ArrayDeque<Command>> queues = queuedByClient.values().iterator();
+      while (queues.hasNext()) {
+        ArrayDeque<Command> queue = queues.next();
+        Iterator<Command> commands = queue.iterator();
+        while (commands.hasNext()) {
+          Command command = commands.next();
+          if (now >= command.deadline) {
+            commands.remove();
+            changed.add(command.clientId);
+          }
+        }
+        if (queue.isEmpty()) {
+          queues.remove();
+        }
+      }
+    }
+    Iterator<Command> all = byId.values().iterator();
+    while (all.hasNext()) {
+      Command command = all.next();
+      if (command.isFinished()) {
+        if (now - command.completedAt > RETAIN_FINISHED_MS) {
+          all.remove();
+        }
+      } else if (now >= command.deadline) {
+        command.finish(State.EXPIRED, "timed out");
+      }
+    }
+    return changed;
+  }
+
+  static final class Command {
+    final long id;
+    final String clientId;
+    final String text;
+    final long createdAt;
+    final long deadline;
+    final CompletableFuture<Command> completion = new CompletableFuture<>();
+    volatile State state = State.QUEUED;
+    volatile String result;
+    volatile long completedAt;
+
+    Command(long id, String clientId, String text, long createdAt, long deadline) {
+      this.id = id;
+      this.clientId = clientId;
+      this.text = text;
+      this.createdAt = createdAt;
+      this.deadline = deadline;
+    }
+
+    String wireText() {
+      return text + " id=" + id;
+    }
+
+    boolean isFinished() {
+      return state == State.DONE || state == State.FAILED || state == State.EXPIRED;
+    }
+
+    synchronized boolean finish(State outcome, String detail) {
+      if (isFinished()) {
+        return false;
+      }
+      result = detail;
+      completedAt = System.currentTimeMillis();
+      state = outcome;
+      completion.complete(this);
+      return true;
+    }
+  }
+}
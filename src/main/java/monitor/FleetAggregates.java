@@ -0,0 +1,152 @@
+package monitor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+final class FleetAggregates {
+  private static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99};
+  private static final String[] QUANTILE_NAMES = {"p50", "p90", "p95", "p99"};
+  // Sums are fixed-point so that removing a member subtracts exactly what adding it added.
+  private static final double FIXED_POINT = 1e6;
+
+  private final Group fleet = new Group();
+  private final Map<String, Group> byTag = new HashMap<>();
+  private final Map<String, Member> members = new HashMap<>();
+
+  synchronized void update(String clientId, String tag, boolean online, double cpuLoad,
+      long ramUsedMb, long ramTotalMb) {
+    Member member = members.get(clientId);
+    if (member == null) {
+      member = new Member();
+      members.put(clientId, member);
+    } else {
+      apply(member, -1);
+    }
+    member.tag = tag;
+    member.online = online;
+    member.ramUsedMb = ramUsedMb;
+    member.ramTotalMb = ramTotalMb;
+    member.cpuBucket = cpuLoad >= 0 ? LogHistogram.bucketOf(cpuLoad) : -1;
+    member.cpuFixed = cpuLoad >= 0 ? Math.round(cpuLoad * FIXED_POINT) : 0L;
+    double ramFraction = ramTotalMb > 0 ? (double) ramUsedMb / ramTotalMb : -1.0;
+    member.ramBucket = ramTotalMb > 0 && ramUsedMb >= 0 ? LogHistogram.bucketOf(ramFraction) : -1;
+    member.ramFixed = member.ramBucket >= 0 ? Math.round(ramFraction * FIXED_POINT) : 0L;
+    apply(member, 1);
+  }
+
+  synchronized void setOnline(String clientId, boolean online) {
+    Member member = members.get(clientId);
+    if (member == null || member.online == online) {
+      return;
+    }
+    apply(member, -1);
+    member.online = online;
+    apply(member, 1);
+  }
+
+  synchronized void remove(String clientId) {
+    Member member = members.remove(clientId);
+    if (member != null) {
+      apply(member, -1);
+    }
+  }
+
+  private void apply(Member member, int sign) {
+    fleet.apply(member, sign);
+    if (member.tag == null) {
+      return;
+    }
+    Group group = byTag.computeIfAbsent(member.tag, tag -> new Group());
+    group.apply(member, sign);
+    if (group.clients == 0) {
+      byTag.remove(member.tag);
+    }
+  }
+
+  synchronized void appendJson(StringBuilder sb, String tag, double threshold) {
+    sb.append("\"above\":").append(ServerMain.formatDouble(threshold)).append(",");
+    sb.append("\"fleet\":");
+    fleet.appendJson(sb, threshold);
+    sb.append(",\"tags\":{");
+    boolean first = true;
+    for (Map.Entry<String, Group> entry : new TreeMap<>(byTag).entrySet()) {
+      if (tag != null && !tag.equals(entry.getKey())) {
+        continue;
+      }
+      if (!first) {
+        sb.append(",");
+      }
+      first = false;
+      sb.append("\"").append(ServerMain.escape(entry.getKey())).append("\":");
+      entry.getValue().appendJson(sb, threshold);
+    }
+    sb.append("}");
+  }
+
+  private static final class Member {
+    String tag;
+    boolean online;
+    long cpuFixed;
+    long ramFixed;
+    long ramUsedMb;
+    long ramTotalMb;
+    int cpuBucket;
+    int ramBucket;
+  }
+
+  private static final class Group {
+    final LogHistogram cpu = new LogHistogram();
+    final LogHistogram ram = new LogHistogram();
+    int clients;
+    int online;
+    long cpuSum;
+    long ramSum;
+    long ramUsedMb;
+    long ramTotalMb;
+
+    void apply(Member member, int sign) {
+      clients += sign;
+      if (!member.online) {
+        return;
+      }
+      online += sign;
+      if (member.cpuBucket >= 0) {
+        cpu.add(member.cpuBucket, sign);
+        cpuSum += sign * member.cpuFixed;
+      }
+      if (member.ramBucket >= 0) {
+        ram.add(member.ramBucket, sign);
+        ramSum += sign * member.ramFixed;
+        ramUsedMb += sign * member.ramUsedMb;
+        ramTotalMb += sign * member.ramTotalMb;
+      }
+    }
+
+    void appendJson(StringBuilder sb, double threshold) {
+      sb.append("{\"clients\":").append(clients);
+      sb.append(",\"online\":").append(online);
+      sb.append(",\"ramUsedMb\":").append(ramUsedMb);
+      sb.append(",\"ramTotalMb\":").append(ramTotalMb);
+      sb.append(",\"cpu\":");
+      appendDistribution(sb, cpu, cpuSum, threshold);
+      sb.append(",\"ram\":");
+      appendDistribution(sb, ram, ramSum, threshold);
+      sb.append("}");
+    }
+
+    private static void appendDistribution(StringBuilder sb, LogHistogram histogram, long sum,
+        double threshold) {
+      long count = histogram.total();
+      sb.append("{\"count\":").append(count);
+      sb.append(",\"mean\":").append(ServerMain.formatDouble(count > 0 ? sum / FIXED_POINT / count : -1.0));
+      for (int i = 0; i < QUANTILES.length; i++) {
+        sb.append(",\"").append(QUANTILE_NAMES[i]).append("\":")
+            .append(ServerMain.formatDouble(histogram.quantile(QUANTILES[i])));
+      }
+      sb.append(",\"max\":").append(ServerMain.formatDouble(histogram.quantile(1.0)));
+      sb.append(",\"above\":").append(histogram.countAtLeast(threshold));
+      sb.append("}");
+    }
+  }
+}
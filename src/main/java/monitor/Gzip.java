@@ -0,0 +1,71 @@
+package monitor;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+final class Gzip {
+  private static final int MAX_POOLED = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+  private static final ConcurrentLinkedQueue<Deflater> POOL = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger POOLED = new AtomicInteger();
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private Gzip() {
+  }
+
+  static byte[] compress(byte[] data, int level) {
+    Deflater deflater = acquire();
+    try {
+      deflater.setLevel(level);
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] out = Arrays.copyOf(HEADER, Math.max(256, data.length / 3 + HEADER.length + 8));
+      int length = HEADER.length;
+      while (!deflater.finished()) {
+        if (length == out.length) {
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        length += deflater.deflate(out, length, out.length - length);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      if (out.length - length < 8) {
+        out = Arrays.copyOf(out, length + 8);
+      }
+      length = putIntLe(out, length, (int) crc.getValue());
+      length = putIntLe(out, length, data.length);
+      return length == out.length ? out : Arrays.copyOf(out, length);
+    } finally {
+      release(deflater);
+    }
+  }
+
+  private static int putIntLe(byte[] out, int pos, int value) {
+    out[pos] = (byte) value;
+    out[pos + 1] = (byte) (value >>> 8);
+    out[pos + 2] = (byte) (value >>> 16);
+    out[pos + 3] = (byte) (value >>> 24);
+    return pos + 4;
+  }
+
+  private static Deflater acquire() {
+    Deflater deflater = POOL.poll();
+    if (deflater == null) {
+      return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+    POOLED.decrementAndGet();
+    return deflater;
+  }
+
+  private static void release(Deflater deflater) {
+    deflater.reset();
+    if (POOLED.incrementAndGet() <= MAX_POOLED) {
+      POOL.add(deflater);
+    } else {
+      POOLED.decrementAndGet();
+      deflater.end();
+    }
+  }
+}
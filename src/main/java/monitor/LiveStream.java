@@ -0,0 +1,81 @@
+package monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Viewers park in awaitNewer for as long as they watch, so this uses a Lock and Condition
+// rather than wait/notify, which would pin a virtual thread's carrier.
+final class LiveStream {
+  private final Lock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private byte[] frame;
+  private long sequence;
+  private int viewers;
+  private boolean closed;
+
+  int addViewer() {
+    lock.lock();
+    try {
+      return ++viewers;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int removeViewer() {
+    lock.lock();
+    try {
+      return --viewers;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void publish(byte[] jpeg) {
+    lock.lock();
+    try {
+      frame = jpeg;
+      sequence++;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long sequence() {
+    lock.lock();
+    try {
+      return sequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  byte[] awaitNewer(long seenSequence, long timeoutMs) throws InterruptedException {
+    lock.lock();
+    try {
+      long wait = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (sequence <= seenSequence) {
+        if (closed || wait <= 0) {
+          return null;
+        }
+        wait = changed.awaitNanos(wait);
+      }
+      return frame;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
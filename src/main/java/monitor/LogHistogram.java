@@ -0,0 +1,67 @@
+package monitor;
+
+final class LogHistogram {
+  private static final double GAMMA = 1.02;
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+  private static final double MIN_VALUE = 1e-4;
+  private static final int LOWEST = (int) Math.ceil(Math.log(MIN_VALUE) / LOG_GAMMA);
+  static final int BUCKETS = 2 - LOWEST;
+
+  private final long[] counts = new long[BUCKETS];
+  private long total;
+
+  static int bucketOf(double value) {
+    if (value < MIN_VALUE) {
+      return 0;
+    }
+    if (value >= 1.0) {
+      return BUCKETS - 1;
+    }
+    int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    return Math.max(1, index - LOWEST + 1);
+  }
+
+  static double valueOf(int bucket) {
+    if (bucket == 0) {
+      return 0.0;
+    }
+    double upper = Math.pow(GAMMA, bucket - 1 + LOWEST);
+    return Math.min(1.0, 2.0 * upper / (GAMMA + 1.0));
+  }
+
+  void add(int bucket, long delta) {
+    counts[bucket] += delta;
+    total += delta;
+  }
+
+  long total() {
+    return total;
+  }
+
+  double quantile(double q) {
+    if (total <= 0) {
+      return -1.0;
+    }
+    long rank = (long) Math.floor(q * (total - 1));
+    long seen = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen > rank) {
+        return valueOf(i);
+      }
+    }
+    return valueOf(BUCKETS - 1);
+  }
+
+  long countAtLeast(double threshold) {
+    int first = bucketOf(threshold);
+    if (valueOf(first) < threshold && first < BUCKETS - 1) {
+      first++;
+    }
+    long count = 0L;
+    for (int i = first; i < BUCKETS; i++) {
+      count += counts[i];
+    }
+    return count;
+  }
+}
@@ -0,0 +1,291 @@
+package monitor;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+final class Metrics {
+  static final double NANOS = 1e-9;
+  static final double BYTES = 1.0;
+
+  private final List<Family> families = new CopyOnWriteArrayList<>();
+
+  Counter counter(String name, String help) {
+    return counter(name, help, null, null);
+  }
+
+  Counter counter(String name, String help, String label, String value) {
+    Counter counter = new Counter();
+    family(name, help, "counter", label).children.add(new Child(value, counter));
+    return counter;
+  }
+
+  Histogram histogram(String name, String help, String label, String value, int minShift,
+      int maxShift, double scale) {
+    Histogram histogram = new Histogram(minShift, maxShift, scale);
+    family(name, help, "histogram", label).children.add(new Child(value, histogram));
+    return histogram;
+  }
+
+  Histogram latency(String name, String help, String label, String value) {
+    return histogram(name, help, label, value, 10, 35, NANOS);
+  }
+
+  Histogram size(String name, String help, String label, String value) {
+    return histogram(name, help, label, value, 6, 30, BYTES);
+  }
+
+  void gauge(String name, String help, DoubleSupplier supplier) {
+    gauge(name, help, null, null, supplier);
+  }
+
+  void gauge(String name, String help, String label, String value, DoubleSupplier supplier) {
+    family(name, help, "gauge", label).children.add(new Child(value, supplier));
+  }
+
+  TrackedExecutor track(String name, Executor executor) {
+    TrackedExecutor tracked = new TrackedExecutor(executor);
+    gauge("monitor_executor_queued", "Tasks submitted but not yet started", "executor", name,
+        tracked.queued::sum);
+    gauge("monitor_executor_active", "Tasks currently running", "executor", name,
+        tracked.active::sum);
+    return tracked;
+  }
+
+  private synchronized Family family(String name, String help, String type, String label) {
+    for (Family family : families) {
+      if (family.name.equals(name)) {
+        if (!family.type.equals(type)) {
+          throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        return family;
+      }
+    }
+    Family family = new Family(name, help, type, label);
+    families.add(family);
+    return family;
+  }
+
+  void write(StringBuilder sb) {
+    for (Family family : families) {
+      sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+      sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+      for (Child child : family.children) {
+        String labels = family.label == null ? ""
+            : family.label + "=\"" + escape(child.labelValue) + "\"";
+        if (child.metric instanceof Counter) {
+          sample(sb, family.name, labels, ((Counter) child.metric).adder.sum());
+        } else if (child.metric instanceof Histogram) {
+          ((Histogram) child.metric).write(sb, family.name, labels);
+        } else {
+          sample(sb, family.name, labels, ((DoubleSupplier) child.metric).getAsDouble());
+        }
+      }
+    }
+    writeJvm(sb);
+  }
+
+  private static void writeJvm(StringBuilder sb) {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+    String[] names = {"jvm_memory_bytes_used", "jvm_memory_bytes_committed",
+        "jvm_memory_bytes_max"};
+    String[] helps = {"Used bytes of a given JVM memory area",
+        "Committed bytes of a given JVM memory area", "Max bytes of a given JVM memory area"};
+    for (int i = 0; i < names.length; i++) {
+      sb.append("# HELP ").append(names[i]).append(' ').append(helps[i]).append('\n');
+      sb.append("# TYPE ").append(names[i]).append(" gauge\n");
+      sample(sb, names[i], "area=\"heap\"", memory(heap, i));
+      sample(sb, names[i], "area=\"nonheap\"", memory(nonHeap, i));
+    }
+    sb.append("# HELP jvm_gc_collection_seconds Time spent in a given JVM garbage collector\n");
+    sb.append("# TYPE jvm_gc_collection_seconds summary\n");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      String labels = "gc=\"" + escape(gc.getName()) + "\"";
+      sample(sb, "jvm_gc_collection_seconds_count", labels, Math.max(0L, gc.getCollectionCount()));
+      sample(sb, "jvm_gc_collection_seconds_sum", labels,
+          Math.max(0L, gc.getCollectionTime()) / 1000.0);
+    }
+    sb.append("# HELP jvm_threads_current Current thread count of the JVM\n");
+    sb.append("# TYPE jvm_threads_current gauge\n");
+    sample(sb, "jvm_threads_current", "", ManagementFactory.getThreadMXBean().getThreadCount());
+    sb.append("# HELP process_uptime_seconds Seconds since the JVM started\n");
+    sb.append("# TYPE process_uptime_seconds gauge\n");
+    sample(sb, "process_uptime_seconds", "",
+        ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    long resident = residentBytes();
+    if (resident >= 0) {
+      sb.append("# HELP process_resident_memory_bytes Resident memory size in bytes\n");
+      sb.append("# TYPE process_resident_memory_bytes gauge\n");
+      sample(sb, "process_resident_memory_bytes", "", resident);
+    }
+  }
+
+  // Linux only. VmRSS is reported in kB whatever the page size.
+  private static long residentBytes() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"),
+          StandardCharsets.US_ASCII)) {
+        if (line.startsWith("VmRSS:")) {
+          String[] fields = line.substring("VmRSS:".length()).trim().split("\\s+");
+          return Long.parseLong(fields[0]) * 1024L;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      return -1L;
+    }
+    return -1L;
+  }
+
+  private static long memory(MemoryUsage usage, int which) {
+    return which == 0 ? usage.getUsed() : which == 1 ? usage.getCommitted() : usage.getMax();
+  }
+
+  private static void sample(StringBuilder sb, String name, String labels, double value) {
+    sb.append(name);
+    if (!labels.isEmpty()) {
+      sb.append('{').append(labels).append('}');
+    }
+    sb.append(' ').append(format(value)).append('\n');
+  }
+
+  static String format(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static final class Family {
+    final String name;
+    final String help;
+    final String type;
+    final String label;
+    final List<Child> children = new CopyOnWriteArrayList<>();
+
+    Family(String name, String help, String type, String label) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+      this.label = label;
+    }
+  }
+
+  private static final class Child {
+    final String labelValue;
+    final Object metric;
+
+    Child(String labelValue, Object metric) {
+      this.labelValue = labelValue;
+      this.metric = metric;
+    }
+  }
+
+  static final class Counter {
+    private final LongAdder adder = new LongAdder();
+
+    void increment() {
+      adder.increment();
+    }
+
+    void add(long delta) {
+      adder.add(delta);
+    }
+
+    long sum() {
+      return adder.sum();
+    }
+  }
+
+  // Bucket i counts values in (2^(minShift+i-1), 2^(minShift+i)]; the last bucket is +Inf.
+  static final class Histogram {
+    private final int minShift;
+    private final double scale;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(int minShift, int maxShift, double scale) {
+      this.minShift = minShift;
+      this.scale = scale;
+      this.buckets = new LongAdder[maxShift - minShift + 2];
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void observe(long value) {
+      long clamped = Math.max(0L, value);
+      int shift = clamped <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(clamped - 1);
+      buckets[Math.min(buckets.length - 1, Math.max(0, shift - minShift))].increment();
+      sum.add(clamped);
+    }
+
+    void observeSince(long startNanos) {
+      observe(System.nanoTime() - startNanos);
+    }
+
+    private void write(StringBuilder sb, String name, String labels) {
+      String prefix = labels.isEmpty() ? "" : labels + ",";
+      long cumulative = 0L;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        String le = i == buckets.length - 1 ? "+Inf"
+            : format(Math.scalb(1.0, minShift + i) * scale);
+        sample(sb, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+      }
+      sample(sb, name + "_sum", labels, sum.sum() * scale);
+      sample(sb, name + "_count", labels, cumulative);
+    }
+  }
+
+  static final class TrackedExecutor implements Executor {
+    private final Executor delegate;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder active = new LongAdder();
+
+    TrackedExecutor(Executor delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      queued.increment();
+      try {
+        delegate.execute(() -> {
+          queued.decrement();
+          active.increment();
+          try {
+            task.run();
+          } finally {
+            active.decrement();
+          }
+        });
+      } catch (RuntimeException e) {
+        queued.decrement();
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package monitor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class MetricsHistory {
+  static final int BYTES_PER_SAMPLE = 8 + 4 + 4 + 4 + 1;
+
+  private final int capacity;
+  private final long resolutionMs;
+  private final long budgetBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final Map<String, Ring> ringByClient = new ConcurrentHashMap<>();
+  private volatile boolean budgetWarned;
+
+  // Samples closer together than rangeMs / capacity are averaged into one slot, so each ring
+  // spans rangeMs however often agents report.
+  MetricsHistory(long rangeMs, int capacity, long budgetBytes) {
+    this.capacity = Math.max(2, capacity);
+    this.resolutionMs = Math.max(1L, (rangeMs + this.capacity - 1) / this.capacity);
+    this.budgetBytes = budgetBytes;
+  }
+
+  void record(String clientId, long ts, double cpuLoad, long ramUsedMb, int processCount) {
+    Ring ring = ringByClient.get(clientId);
+    if (ring == null) {
+      ring = allocate(clientId);
+      if (ring == null) {
+        return;
+      }
+    }
+    ring.add(ts, cpuLoad < 0 ? Float.NaN : (float) cpuLoad,
+        (int) Math.min(Integer.MAX_VALUE, ramUsedMb), processCount);
+  }
+
+  Buckets query(String clientId, long from, long to, long step) {
+    Ring ring = ringByClient.get(clientId);
+    if (ring == null) {
+      return null;
+    }
+    return ring.downsample(from, to, step);
+  }
+
+  void remove(String clientId) {
+    if (ringByClient.remove(clientId) != null) {
+      usedBytes.addAndGet(-ringBytes());
+    }
+  }
+
+  long usedBytes() {
+    return usedBytes.get();
+  }
+
+  private Ring allocate(String clientId) {
+    return ringByClient.computeIfAbsent(clientId, id -> {
+      if (usedBytes.addAndGet(ringBytes()) > budgetBytes) {
+        usedBytes.addAndGet(-ringBytes());
+        if (!budgetWarned) {
+          budgetWarned = true;
+          System.out.println("History budget of " + budgetBytes
+              + " bytes reached, new clients are not recorded");
+        }
+        return null;
+      }
+      return new Ring(capacity, resolutionMs);
+    });
+  }
+
+  private long ringBytes() {
+    return (long) capacity * BYTES_PER_SAMPLE;
+  }
+
+  static final class Buckets {
+    final int count;
+    final long[] ts;
+    final int[] samples;
+    final float[] cpuMin;
+    final float[] cpuMax;
+    final double[] cpuSum;
+    final int[] cpuSamples;
+    final int[] ramMin;
+    final int[] ramMax;
+    final long[] ramSum;
+    final int[] procMin;
+    final int[] procMax;
+    final long[] procSum;
+
+    Buckets(int count) {
+      this.count = count;
+      ts = new long[count];
+      samples = new int[count];
+      cpuMin = new float[count];
+      cpuMax = new float[count];
+      cpuSum = new double[count];
+      cpuSamples = new int[count];
+      ramMin = new int[count];
+      ramMax = new int[count];
+      ramSum = new long[count];
+      procMin = new int[count];
+      procMax = new int[count];
+      procSum = new long[count];
+    }
+  }
+
+  private static final class Ring {
+    private final long[] ts;
+    private final float[] cpu;
+    private final int[] ram;
+    private final int[] proc;
+    private final byte[] merged;
+    private final long resolutionMs;
+    private int head;
+    private int size;
+
+    Ring(int capacity, long resolutionMs) {
+      ts = new long[capacity];
+      cpu = new float[capacity];
+      ram = new int[capacity];
+      proc = new int[capacity];
+      merged = new byte[capacity];
+      this.resolutionMs = resolutionMs;
+    }
+
+    synchronized void add(long sampleTs, float cpuLoad, int ramUsedMb, int processCount) {
+      if (size > 0) {
+        int last = index(size - 1);
+        if (sampleTs < ts[last]) {
+          return;
+        }
+        if (sampleTs / resolutionMs == ts[last] / resolutionMs) {
+          merge(last, sampleTs, cpuLoad, ramUsedMb, processCount);
+          return;
+        }
+      }
+      int slot = (head + size) % ts.length;
+      if (size == ts.length) {
+        head = (head + 1) % ts.length;
+      } else {
+        size++;
+      }
+      ts[slot] = sampleTs;
+      cpu[slot] = cpuLoad;
+      ram[slot] = ramUsedMb;
+      proc[slot] = processCount;
+      merged[slot] = 1;
+    }
+
+    private void merge(int slot, long sampleTs, float cpuLoad, int ramUsedMb, int processCount) {
+      int n = merged[slot] & 0xff;
+      double keep = n / (n + 1.0);
+      ts[slot] = sampleTs;
+      if (Float.isNaN(cpu[slot])) {
+        cpu[slot] = cpuLoad;
+      } else if (!Float.isNaN(cpuLoad)) {
+        cpu[slot] = (float) (cpu[slot] * keep + cpuLoad / (n + 1.0));
+      }
+      ram[slot] = (int) Math.round(ram[slot] * keep + ramUsedMb / (n + 1.0));
+      proc[slot] = (int) Math.round(proc[slot] * keep + processCount / (n + 1.0));
+      merged[slot] = (byte) Math.min(255, n + 1);
+    }
+
+    synchronized Buckets downsample(long from, long to, long step) {
+      int count = (int) Math.max(1, (to - from + step - 1) / step);
+      Buckets out = new Buckets(count);
+      for (int b = 0; b < count; b++) {
+        out.ts[b] = from + b * step;
+      }
+      for (int i = firstAtOrAfter(from); i < size; i++) {
+        int slot = index(i);
+        long sampleTs = ts[slot];
+        if (sampleTs >= to) {
+          break;
+        }
+        int b = (int) ((sampleTs - from) / step);
+        boolean first = out.samples[b] == 0;
+        out.samples[b]++;
+        float c = cpu[slot];
+        if (!Float.isNaN(c)) {
+          if (out.cpuSamples[b] == 0 || c < out.cpuMin[b]) {
+            out.cpuMin[b] = c;
+          }
+          if (out.cpuSamples[b] == 0 || c > out.cpuMax[b]) {
+            out.cpuMax[b] = c;
+          }
+          out.cpuSum[b] += c;
+          out.cpuSamples[b]++;
+        }
+        int r = ram[slot];
+        int p = proc[slot];
+        out.ramMin[b] = first ? r : Math.min(out.ramMin[b], r);
+        out.ramMax[b] = first ? r : Math.max(out.ramMax[b], r);
+        out.ramSum[b] += r;
+        out.procMin[b] = first ? p : Math.min(out.procMin[b], p);
+        out.procMax[b] = first ? p : Math.max(out.procMax[b], p);
+        out.procSum[b] += p;
+      }
+      return out;
+    }
+
+    private int firstAtOrAfter(long from) {
+      int lo = 0;
+      int hi = size;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (ts[index(mid)] < from) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    private int index(int logical) {
+      return (head + logical) % ts.length;
+    }
+  }
+}
@@ -0,0 +1,351 @@
+package monitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class NioIngestServer {
+  private static final int READ_BUFFER_BYTES = 16 * 1024;
+  private static final int READS_PER_PASS = 4;
+  private static final int REUSED_FRAME_BYTES = ScreenshotBuffer.CHUNK_BYTES + 1024;
+
+  private final int port;
+  private final ServerMain server;
+  private final Worker[] workers;
+  private final AtomicInteger openConnections = new AtomicInteger();
+
+  NioIngestServer(int port, int selectorThreads, ServerMain server) {
+    this.port = port;
+    this.server = server;
+    this.workers = new Worker[Math.max(1, selectorThreads)];
+  }
+
+  void run() throws IOException {
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(Selector.open());
+      Thread thread = new Thread(workers[i], "nio-selector-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+      acceptor.bind(new InetSocketAddress(port), 1024);
+      int next = 0;
+      while (true) {
+        SocketChannel channel = acceptor.accept();
+        try {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+          closeQuietly(channel);
+          continue;
+        }
+        workers[next].register(channel);
+        next = (next + 1) % workers.length;
+      }
+    }
+  }
+
+  int openConnections() {
+    return openConnections.get();
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // already closed
+    }
+  }
+
+  private final class Worker implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pushReady = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+
+    Worker(Selector selector) {
+      this.selector = selector;
+    }
+
+    void register(SocketChannel channel) {
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+          registerPending();
+          flushPushes();
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection conn = (Connection) key.attachment();
+            if (!key.isValid()) {
+              conn.close();
+              continue;
+            }
+            try {
+              if (key.isReadable()) {
+                conn.onReadable();
+              }
+              if (key.isValid() && key.isWritable()) {
+                conn.onWritable();
+              }
+            } catch (IOException e) {
+              System.out.println("Client disconnected: " + conn.session.remote
+                  + " (" + e.getMessage() + ")");
+              conn.close();
+            } catch (RuntimeException | OutOfMemoryError e) {
+              fail(conn, e);
+            }
+          }
+        } catch (IOException e) {
+          System.out.println("Selector error: " + e.getMessage());
+        } catch (RuntimeException e) {
+          System.out.println("Selector loop error: " + e);
+          e.printStackTrace();
+        }
+      }
+    }
+
+    private void fail(Connection conn, Throwable e) {
+      System.out.println("Closing " + conn.session.remote + " after an internal error: " + e);
+      e.printStackTrace();
+      conn.close();
+    }
+
+    private void registerPending() {
+      SocketChannel channel;
+      while ((channel = pending.poll()) != null) {
+        ClientSession session = new ClientSession(String.valueOf(remoteAddress(channel)));
+        try {
+          Connection conn = new Connection(channel, session);
+          conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+          session.pusher = conn::push;
+          openConnections.incrementAndGet();
+          System.out.println("Client connected: " + session.remote);
+        } catch (ClosedChannelException e) {
+          closeQuietly(channel);
+        }
+      }
+    }
+
+    private void flushPushes() {
+      Connection conn;
+      while ((conn = pushReady.poll()) != null) {
+        try {
+          conn.flushPushes();
+        } catch (IOException e) {
+          System.out.println("Client disconnected: " + conn.session.remote
+              + " (" + e.getMessage() + ")");
+          conn.close();
+        } catch (RuntimeException e) {
+          fail(conn, e);
+        }
+      }
+    }
+
+    private Object remoteAddress(SocketChannel channel) {
+      try {
+        return channel.getRemoteAddress();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    private final class Connection {
+      private final SocketChannel channel;
+      private final ClientSession session;
+      private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+      private final Queue<ByteBuffer> pushQueue = new ConcurrentLinkedQueue<>();
+      private final ByteBuffer frameHeader = ByteBuffer.allocate(5);
+      private ByteBuffer frame;
+      private ByteBuffer frameStore;
+      private byte[] line = new byte[256];
+      private int lineLength;
+      private SelectionKey key;
+      private volatile boolean closed;
+
+      Connection(SocketChannel channel, ClientSession session) {
+        this.channel = channel;
+        this.session = session;
+      }
+
+      // Reads at most READS_PER_PASS buffers so one busy uploader cannot starve the other
+      // connections on this selector; the key stays readable and is picked up next pass.
+      void onReadable() throws IOException {
+        for (int pass = 0; pass < READS_PER_PASS; pass++) {
+          readBuffer.clear();
+          int read = channel.read(readBuffer);
+          if (read < 0) {
+            close();
+            return;
+          }
+          if (read == 0) {
+            return;
+          }
+          server.onBytesRead(session, read);
+          readBuffer.flip();
+          while (readBuffer.hasRemaining()) {
+            if (session.binary) {
+              readFrameBytes();
+              if (closed || session.redirected) {
+                return;
+              }
+              continue;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+              dispatchLine();
+              if (closed || session.redirected) {
+                return;
+              }
+            } else {
+              append(b);
+            }
+          }
+        }
+      }
+
+      private void append(byte b) throws IOException {
+        if (lineLength == line.length) {
+          if (line.length >= WireProtocol.MAX_LINE_BYTES) {
+            throw new IOException("line exceeds " + WireProtocol.MAX_LINE_BYTES + " bytes");
+          }
+          line = Arrays.copyOf(line, Math.min(WireProtocol.MAX_LINE_BYTES, line.length * 2));
+        }
+        line[lineLength++] = b;
+      }
+
+      private void dispatchLine() throws IOException {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+          length--;
+        }
+        String text = new String(line, 0, length, StandardCharsets.UTF_8);
+        lineLength = 0;
+        if (line.length > READ_BUFFER_BYTES) {
+          line = new byte[256];
+        }
+        String reply = server.handleLine(session, text);
+        send(ByteBuffer.wrap((reply + "\n").getBytes(StandardCharsets.UTF_8)));
+        closeIfRedirected();
+      }
+
+      private void readFrameBytes() throws IOException {
+        if (frame == null) {
+          while (frameHeader.hasRemaining() && readBuffer.hasRemaining()) {
+            frameHeader.put(readBuffer.get());
+            if (frameHeader.position() == 4 && frameHeader.getInt(0) < 1) {
+              throw new IOException("bad frame length " + frameHeader.getInt(0));
+            }
+          }
+          if (frameHeader.hasRemaining()) {
+            return;
+          }
+          byte type = frameHeader.get(4);
+          int length =
+              WireProtocol.checkFrameLength(frameHeader.getInt(0), type, session.identified);
+          if (frameStore != null && frameStore.capacity() >= length) {
+            frameStore.clear().limit(length);
+            frame = frameStore;
+          } else {
+            frame = ByteBuffer.allocate(length);
+            if (length <= REUSED_FRAME_BYTES) {
+              frameStore = frame;
+            }
+          }
+          frame.put(type);
+        }
+        int count = Math.min(readBuffer.remaining(), frame.remaining());
+        ByteBuffer slice = readBuffer.duplicate();
+        slice.limit(slice.position() + count);
+        frame.put(slice);
+        readBuffer.position(readBuffer.position() + count);
+        if (frame.hasRemaining()) {
+          return;
+        }
+        frame.flip();
+        ByteBuffer reply = server.handleFrame(session, frame);
+        frame = null;
+        frameHeader.clear();
+        send(reply);
+        closeIfRedirected();
+      }
+
+      private void closeIfRedirected() {
+        if (session.redirected && writeQueue.isEmpty()) {
+          close();
+        }
+      }
+
+      boolean push(ByteBuffer data) {
+        if (closed) {
+          return false;
+        }
+        pushQueue.add(data);
+        pushReady.add(this);
+        selector.wakeup();
+        return true;
+      }
+
+      void flushPushes() throws IOException {
+        ByteBuffer data;
+        while (!closed && (data = pushQueue.poll()) != null) {
+          send(data);
+        }
+      }
+
+      private void send(ByteBuffer data) throws IOException {
+        if (data == null) {
+          return;
+        }
+        writeQueue.add(data);
+        onWritable();
+      }
+
+      void onWritable() throws IOException {
+        while (!writeQueue.isEmpty()) {
+          ByteBuffer head = writeQueue.peek();
+          channel.write(head);
+          if (head.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+          }
+          writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        closeIfRedirected();
+      }
+
+      void close() {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (key != null) {
+          key.cancel();
+        }
+        closeQuietly(channel);
+        openConnections.decrementAndGet();
+        server.handleDisconnect(session);
+      }
+    }
+  }
+}
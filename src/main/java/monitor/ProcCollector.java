@@ -0,0 +1,414 @@
+package monitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+final class ProcCollector {
+  private static final long CLOCK_TICKS = Long.getLong("monitor.proc.clockTicks", 100L);
+  private static final File PROC = new File("/proc");
+
+  private byte[] buffer = new byte[16 * 1024];
+  private int length;
+  private int pos;
+  private long[] previousTotal = new long[0];
+  private long[] previousIdle = new long[0];
+  private double[] loads = new double[0];
+  private long bootTimeMs;
+  private long previousCountersAt;
+  private long previousDiskRead = -1L;
+  private long previousDiskWrite = -1L;
+  private long previousNetRx = -1L;
+  private long previousNetTx = -1L;
+  private final Set<String> disks = new HashSet<>();
+  private final Map<Long, Cached> processes = new HashMap<>();
+  private Map<Integer, String> userNames;
+  private long generation;
+
+  static boolean available() {
+    return new File("/proc/stat").canRead() && new File("/proc/self/stat").canRead();
+  }
+
+  ProcCollector() {
+    String[] blocks = new File("/sys/block").list();
+    if (blocks != null) {
+      for (String name : blocks) {
+        if (!name.startsWith("loop") && !name.startsWith("ram")) {
+          disks.add(name);
+        }
+      }
+    }
+  }
+
+  void sample(ClientMain.Sample sample) throws IOException {
+    readCpu(sample);
+    readMemory(sample);
+  }
+
+  void complete(ClientMain.Sample sample) throws IOException {
+    readLoadAverage(sample);
+    readCounters(sample, sample.ts);
+    sample.processes = readProcesses();
+  }
+
+  private void readCpu(ClientMain.Sample sample) throws IOException {
+    read("/proc/stat");
+    int line = 0;
+    while (pos < length) {
+      if (startsWith("cpu")) {
+        pos += 3;
+        if (pos < length && buffer[pos] != ' ') {
+          skipToken();
+        }
+        long total = 0L;
+        long idle = 0L;
+        for (int field = 0; field < 8; field++) {
+          long value = nextLong();
+          total += value;
+          if (field == 3 || field == 4) {
+            idle += value;
+          }
+        }
+        if (line >= previousTotal.length) {
+          previousTotal = Arrays.copyOf(previousTotal, line + 1);
+          previousIdle = Arrays.copyOf(previousIdle, line + 1);
+          loads = Arrays.copyOf(loads, line + 1);
+        }
+        long totalDelta = total - previousTotal[line];
+        long idleDelta = idle - previousIdle[line];
+        loads[line] = totalDelta > 0 ? 1.0 - (double) idleDelta / totalDelta : 0.0;
+        previousTotal[line] = total;
+        previousIdle[line] = idle;
+        line++;
+      } else if (startsWith("btime")) {
+        pos += 5;
+        bootTimeMs = nextLong() * 1000L;
+      }
+      skipLine();
+    }
+    sample.cpuLoad = line > 0 ? loads[0] : 0.0;
+    sample.coreLoads = line > 1 ? Arrays.copyOfRange(loads, 1, line) : new double[0];
+  }
+
+  private void readMemory(ClientMain.Sample sample) throws IOException {
+    read("/proc/meminfo");
+    long totalKb = -1L;
+    long availableKb = -1L;
+    long freeKb = -1L;
+    while (pos < length) {
+      if (startsWith("MemTotal:")) {
+        pos += 9;
+        totalKb = nextLong();
+      } else if (startsWith("MemAvailable:")) {
+        pos += 13;
+        availableKb = nextLong();
+      } else if (startsWith("MemFree:")) {
+        pos += 8;
+        freeKb = nextLong();
+      }
+      skipLine();
+    }
+    long unusedKb = availableKb >= 0 ? availableKb : freeKb;
+    sample.ramTotalMb = totalKb / 1024;
+    sample.ramUsedMb = (totalKb - unusedKb) / 1024;
+  }
+
+  private void readLoadAverage(ClientMain.Sample sample) throws IOException {
+    read("/proc/loadavg");
+    for (int i = 0; i < 3; i++) {
+      sample.loadAvg[i] = nextDecimal();
+    }
+  }
+
+  private void readCounters(ClientMain.Sample sample, long now) throws IOException {
+    long diskRead = 0L;
+    long diskWrite = 0L;
+    read("/proc/diskstats");
+    while (pos < length) {
+      nextLong();
+      nextLong();
+      skipSpaces();
+      int nameStart = pos;
+      skipToken();
+      String name = new String(buffer, nameStart, pos - nameStart, StandardCharsets.US_ASCII);
+      if (disks.contains(name)) {
+        nextLong();
+        nextLong();
+        diskRead += nextLong() * 512L;
+        nextLong();
+        nextLong();
+        nextLong();
+        diskWrite += nextLong() * 512L;
+      }
+      skipLine();
+    }
+    long netRx = 0L;
+    long netTx = 0L;
+    read("/proc/net/dev");
+    skipLine();
+    skipLine();
+    while (pos < length) {
+      skipSpaces();
+      int nameStart = pos;
+      while (pos < length && buffer[pos] != ':') {
+        pos++;
+      }
+      boolean loopback =
+          pos - nameStart == 2 && buffer[nameStart] == 'l' && buffer[nameStart + 1] == 'o';
+      pos++;
+      long rx = nextLong();
+      for (int i = 0; i < 7; i++) {
+        nextLong();
+      }
+      long tx = nextLong();
+      if (!loopback) {
+        netRx += rx;
+        netTx += tx;
+      }
+      skipLine();
+    }
+    long elapsed = now - previousCountersAt;
+    if (previousDiskRead >= 0 && elapsed > 0) {
+      sample.diskReadBps = Math.max(0L, (diskRead - previousDiskRead) * 1000L / elapsed);
+      sample.diskWriteBps = Math.max(0L, (diskWrite - previousDiskWrite) * 1000L / elapsed);
+      sample.netRxBps = Math.max(0L, (netRx - previousNetRx) * 1000L / elapsed);
+      sample.netTxBps = Math.max(0L, (netTx - previousNetTx) * 1000L / elapsed);
+    }
+    previousDiskRead = diskRead;
+    previousDiskWrite = diskWrite;
+    previousNetRx = netRx;
+    previousNetTx = netTx;
+    previousCountersAt = now;
+  }
+
+  private List<ClientMain.ProcInfo> readProcesses() {
+    String[] names = PROC.list();
+    List<ClientMain.ProcInfo> list = new ArrayList<>(names == null ? 0 : names.length);
+    if (names == null) {
+      return list;
+    }
+    generation++;
+    for (String name : names) {
+      if (name.isEmpty() || name.charAt(0) < '0' || name.charAt(0) > '9') {
+        continue;
+      }
+      long pid;
+      try {
+        pid = Long.parseLong(name);
+        read("/proc/" + name + "/stat");
+      } catch (NumberFormatException | IOException e) {
+        continue;
+      }
+      ClientMain.ProcInfo proc = readProcess(pid, name);
+      if (proc != null) {
+        list.add(proc);
+      }
+    }
+    Iterator<Cached> cached = processes.values().iterator();
+    while (cached.hasNext()) {
+      if (cached.next().generation != generation) {
+        cached.remove();
+      }
+    }
+    list.sort((a, b) -> Long.compare(a.pid, b.pid));
+    return list;
+  }
+
+  private ClientMain.ProcInfo readProcess(long pid, String name) {
+    int commEnd = length - 1;
+    while (commEnd > 0 && buffer[commEnd] != ')') {
+      commEnd--;
+    }
+    if (commEnd <= 0) {
+      return null;
+    }
+    int commStart = 0;
+    while (commStart < commEnd && buffer[commStart] != '(') {
+      commStart++;
+    }
+    pos = commEnd + 1;
+    skipToken();
+    for (int field = 4; field < 14; field++) {
+      nextLong();
+    }
+    long cpuTicks = nextLong() + nextLong();
+    for (int field = 16; field < 22; field++) {
+      nextLong();
+    }
+    long startTicks = nextLong();
+    long cpuMs = cpuTicks * 1000L / CLOCK_TICKS;
+
+    Cached entry = processes.get(pid);
+    if (entry == null || entry.startTicks != startTicks) {
+      String comm = new String(buffer, commStart + 1, commEnd - commStart - 1,
+          StandardCharsets.UTF_8);
+      entry = new Cached(startTicks, readCommand(name, comm), readUser(name));
+      processes.put(pid, entry);
+    }
+    entry.generation = generation;
+    if (entry.last == null || entry.last.cpuMs != cpuMs) {
+      long startMs = bootTimeMs > 0 ? bootTimeMs + startTicks * 1000L / CLOCK_TICKS : -1L;
+      entry.last = new ClientMain.ProcInfo(pid, entry.command, entry.user, startMs, cpuMs);
+    }
+    return entry.last;
+  }
+
+  private String readCommand(String name, String comm) {
+    try {
+      read("/proc/" + name + "/cmdline");
+    } catch (IOException e) {
+      return comm;
+    }
+    int end = length;
+    while (end > 0 && buffer[end - 1] == 0) {
+      end--;
+    }
+    if (end == 0) {
+      return "[" + comm + "]";
+    }
+    for (int i = 0; i < end; i++) {
+      if (buffer[i] == 0) {
+        buffer[i] = ' ';
+      }
+    }
+    return new String(buffer, 0, end, StandardCharsets.UTF_8);
+  }
+
+  private String readUser(String name) {
+    try {
+      read("/proc/" + name + "/status");
+    } catch (IOException e) {
+      return "";
+    }
+    while (pos < length) {
+      if (startsWith("Uid:")) {
+        pos += 4;
+        int uid = (int) nextLong();
+        String user = userNames().get(uid);
+        return user != null ? user : Integer.toString(uid);
+      }
+      skipLine();
+    }
+    return "";
+  }
+
+  private Map<Integer, String> userNames() {
+    if (userNames != null) {
+      return userNames;
+    }
+    userNames = new HashMap<>();
+    try {
+      read("/etc/passwd");
+    } catch (IOException e) {
+      return userNames;
+    }
+    String[] lines = new String(buffer, 0, length, StandardCharsets.UTF_8).split("\n");
+    for (String line : lines) {
+      String[] fields = line.split(":");
+      if (fields.length > 2) {
+        try {
+          userNames.put(Integer.parseInt(fields[2]), fields[0]);
+        } catch (NumberFormatException ignored) {
+        }
+      }
+    }
+    return userNames;
+  }
+
+  private void read(String path) throws IOException {
+    length = 0;
+    pos = 0;
+    try (FileInputStream input = new FileInputStream(path)) {
+      int read;
+      while ((read = input.read(buffer, length, buffer.length - length)) > 0) {
+        length += read;
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+    }
+  }
+
+  private boolean startsWith(String prefix) {
+    if (length - pos < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (buffer[pos + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void skipSpaces() {
+    while (pos < length && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+      pos++;
+    }
+  }
+
+  private void skipToken() {
+    skipSpaces();
+    while (pos < length && buffer[pos] != ' ' && buffer[pos] != '\t' && buffer[pos] != '\n') {
+      pos++;
+    }
+  }
+
+  private void skipLine() {
+    while (pos < length && buffer[pos] != '\n') {
+      pos++;
+    }
+    pos++;
+  }
+
+  private long nextLong() {
+    skipSpaces();
+    boolean negative = pos < length && buffer[pos] == '-';
+    if (negative) {
+      pos++;
+    }
+    long value = 0L;
+    while (pos < length && buffer[pos] >= '0' && buffer[pos] <= '9') {
+      value = value * 10 + (buffer[pos++] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  private double nextDecimal() {
+    long whole = nextLong();
+    if (pos >= length || buffer[pos] != '.') {
+      return whole;
+    }
+    pos++;
+    long fraction = 0L;
+    long scale = 1L;
+    while (pos < length && buffer[pos] >= '0' && buffer[pos] <= '9') {
+      fraction = fraction * 10 + (buffer[pos++] - '0');
+      scale *= 10;
+    }
+    return whole + (double) fraction / scale;
+  }
+
+  private static final class Cached {
+    final long startTicks;
+    final String command;
+    final String user;
+    ClientMain.ProcInfo last;
+    long generation;
+
+    Cached(long startTicks, String command, String user) {
+      this.startTicks = startTicks;
+      this.command = command;
+      this.user = user;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package monitor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+final class ProcessIndex {
+  private final Map<Long, Entry> byPid = new HashMap<>();
+  private long seq = -1L;
+  private long generation;
+  private long updatedAt;
+
+  synchronized boolean apply(StatusReport report, long now) {
+    if (!report.processesFull && (seq < 0 || report.processBase != seq)) {
+      return false;
+    }
+    generation++;
+    for (int i = 0; i < report.processCount; i++) {
+      Long pid = report.pids[i];
+      Entry entry = byPid.get(pid);
+      if (entry == null) {
+        entry = new Entry(report.pids[i]);
+        byPid.put(pid, entry);
+      }
+      entry.command = report.commands[i];
+      entry.user = report.users[i];
+      entry.startMs = report.startMs[i];
+      entry.cpuMs = report.cpuMs[i];
+      entry.generation = generation;
+    }
+    if (report.processesFull) {
+      Iterator<Entry> entries = byPid.values().iterator();
+      while (entries.hasNext()) {
+        if (entries.next().generation != generation) {
+          entries.remove();
+        }
+      }
+    } else {
+      for (int i = 0; i < report.removedCount; i++) {
+        byPid.remove(report.removed[i]);
+      }
+    }
+    seq = report.processSeq;
+    updatedAt = now;
+    if (report.processTotal >= 0 && report.processTotal != byPid.size()) {
+      seq = -1L;
+      return false;
+    }
+    return true;
+  }
+
+  synchronized int size() {
+    return byPid.size();
+  }
+
+  synchronized void appendJson(StringBuilder sb) {
+    Entry[] entries = byPid.values().toArray(new Entry[0]);
+    Arrays.sort(entries, (a, b) -> Long.compare(a.pid, b.pid));
+    sb.append("\"seq\":").append(seq).append(",");
+    sb.append("\"updatedAt\":").append(updatedAt).append(",");
+    sb.append("\"count\":").append(entries.length).append(",");
+    sb.append("\"processes\":[");
+    for (int i = 0; i < entries.length; i++) {
+      Entry entry = entries[i];
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append("{\"pid\":").append(entry.pid);
+      sb.append(",\"cmd\":\"").append(ServerMain.escape(entry.command)).append("\"");
+      sb.append(",\"user\":\"").append(ServerMain.escape(entry.user)).append("\"");
+      sb.append(",\"startMs\":").append(entry.startMs);
+      sb.append(",\"cpuMs\":").append(entry.cpuMs).append("}");
+    }
+    sb.append("]");
+  }
+
+  private static final class Entry {
+    final long pid;
+    String command;
+    String user;
+    long startMs;
+    long cpuMs;
+    long generation;
+
+    Entry(long pid) {
+      this.pid = pid;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package monitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+final class ProcessTable {
+  private Map<Long, ClientMain.ProcInfo> sent = new HashMap<>();
+  private long seq;
+  private boolean resync = true;
+
+  void reset() {
+    resync = true;
+  }
+
+  Delta diff(List<ClientMain.ProcInfo> current) {
+    Delta delta = new Delta();
+    delta.total = current.size();
+    delta.base = seq;
+    delta.seq = ++seq;
+    Map<Long, ClientMain.ProcInfo> next = new HashMap<>(current.size() * 2);
+    if (resync) {
+      resync = false;
+      delta.full = true;
+      delta.changed = current;
+      for (ClientMain.ProcInfo proc : current) {
+        next.put(proc.pid, proc);
+      }
+      sent = next;
+      return delta;
+    }
+    delta.changed = new ArrayList<>();
+    for (ClientMain.ProcInfo proc : current) {
+      next.put(proc.pid, proc);
+      ClientMain.ProcInfo previous = sent.remove(proc.pid);
+      if (previous == null || !sameAs(previous, proc)) {
+        delta.changed.add(proc);
+      }
+    }
+    delta.removed = new long[sent.size()];
+    int i = 0;
+    for (Long pid : sent.keySet()) {
+      delta.removed[i++] = pid;
+    }
+    sent = next;
+    return delta;
+  }
+
+  private static boolean sameAs(ClientMain.ProcInfo a, ClientMain.ProcInfo b) {
+    return a.cpuMs == b.cpuMs && a.startMs == b.startMs
+        && Objects.equals(a.cmd, b.cmd) && Objects.equals(a.user, b.user);
+  }
+
+  static final class Delta {
+    boolean full;
+    long base;
+    long seq;
+    int total;
+    List<ClientMain.ProcInfo> changed;
+    long[] removed = new long[0];
+  }
+}
@@ -0,0 +1,495 @@
+package monitor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+final class SampleStore {
+  static final byte SAMPLE = 1;
+  static final byte APPROVAL = 2;
+  static final byte STATE = 3;
+  static final byte SNAPSHOT = 4;
+  static final byte SNAPSHOT_END = 5;
+
+  private static final int MAGIC = 0x4d4f4e31;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int FLAG_COMPACTED = 1;
+  private static final int MAX_RECORD_BYTES = 64 * 1024;
+  private static final long COMPACT_STEP_MS = 60_000L;
+  private static final String SUFFIX = ".seg";
+  private static final long ROLL_RETRY_MS = 5000L;
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final long retentionMs;
+  private final long compactAfterMs;
+  private final CRC32 crc = new CRC32();
+  private final ByteBuffer scratch = ByteBuffer.allocate(MAX_RECORD_BYTES);
+  private final ByteBuffer snapshotScratch = ByteBuffer.allocate(MAX_RECORD_BYTES);
+  private final ScheduledExecutorService maintenance =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "store-maintenance");
+        thread.setDaemon(true);
+        return thread;
+      });
+  private SnapshotSource source;
+  private MappedByteBuffer active;
+  private FileChannel activeChannel;
+  private long nextSegmentId;
+  private long retryRollAt;
+  private long dropped;
+
+  interface Visitor {
+    void visit(Record record);
+  }
+
+  interface SnapshotSource {
+    void snapshot(Visitor sink);
+  }
+
+  static final class Record {
+    byte type;
+    long ts;
+    String clientId;
+    long timestamp;
+    double cpuLoad;
+    long ramUsedMb;
+    long ramTotalMb;
+    int processCount;
+    long lastSeen;
+    long lastChange;
+    byte flag;
+    boolean historyOnly;
+  }
+
+  SampleStore(Path dir, int segmentBytes, long retentionMs, long compactAfterMs) {
+    this.dir = dir;
+    this.segmentBytes = Math.max(1024 * 1024, segmentBytes);
+    this.retentionMs = retentionMs;
+    this.compactAfterMs = compactAfterMs;
+  }
+
+  long recover(long historySince, Visitor visitor) throws IOException {
+    Files.createDirectories(dir);
+    List<Path> segments = listSegments();
+    if (!segments.isEmpty()) {
+      nextSegmentId = segmentId(segments.get(segments.size() - 1)) + 1;
+    }
+    int checkpoint = -1;
+    for (int i = segments.size() - 1; i >= 0 && checkpoint < 0; i--) {
+      if (hasCompleteSnapshot(segments.get(i))) {
+        checkpoint = i;
+      }
+    }
+    long records = 0;
+    Record record = new Record();
+    for (int i = 0; i < segments.size(); i++) {
+      Path segment = segments.get(i);
+      if (i < checkpoint) {
+        long nextFirstTs = firstTs(segments.get(i + 1));
+        if (nextFirstTs < historySince) {
+          continue;
+        }
+        records += scan(segment, record, r -> {
+          if (r.type == SAMPLE && r.ts >= historySince) {
+            r.historyOnly = true;
+            visitor.visit(r);
+          }
+        });
+      } else {
+        boolean checkpointSegment = i == checkpoint;
+        records += scan(segment, record, r -> {
+          if (r.type == SNAPSHOT && !checkpointSegment) {
+            return;
+          }
+          r.historyOnly = false;
+          visitor.visit(r);
+        });
+      }
+    }
+    return records;
+  }
+
+  void open(SnapshotSource source) throws IOException {
+    synchronized (this) {
+      this.source = source;
+      roll();
+    }
+    maintenance.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+    maintenance.scheduleWithFixedDelay(this::maintain, 1, 10, TimeUnit.MINUTES);
+  }
+
+  synchronized void appendSample(String clientId, long ts, long timestamp, double cpuLoad,
+      long ramUsedMb, long ramTotalMb, int processCount) {
+    if (!ensureActive()) {
+      return;
+    }
+    scratch.clear();
+    scratch.put(SAMPLE).putLong(ts);
+    putString(clientId);
+    scratch.putLong(timestamp).putDouble(cpuLoad).putLong(ramUsedMb).putLong(ramTotalMb)
+        .putInt(processCount);
+    write();
+  }
+
+  synchronized void appendApproval(String clientId, long ts, boolean granted) {
+    if (!ensureActive()) {
+      return;
+    }
+    scratch.clear();
+    scratch.put(APPROVAL).putLong(ts);
+    putString(clientId);
+    scratch.put((byte) (granted ? 1 : 0));
+    write();
+  }
+
+  synchronized void appendState(String clientId, long ts, boolean online) {
+    if (!ensureActive()) {
+      return;
+    }
+    scratch.clear();
+    scratch.put(STATE).putLong(ts);
+    putString(clientId);
+    scratch.put((byte) (online ? 1 : 0));
+    write();
+  }
+
+  synchronized long dropped() {
+    return dropped;
+  }
+
+  private boolean ensureActive() {
+    if (active != null) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (source == null || now < retryRollAt || !tryRoll(now)) {
+      dropped++;
+      return false;
+    }
+    System.out.println("Store writes resumed in a new segment");
+    return true;
+  }
+
+  private boolean tryRoll(long now) {
+    try {
+      roll();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Store rollover failed, dropping records and retrying in "
+          + ROLL_RETRY_MS / 1000 + "s: " + e);
+      retryRollAt = now + ROLL_RETRY_MS;
+      return false;
+    }
+  }
+
+  private void appendRecord(Record record) {
+    snapshotScratch.clear();
+    snapshotScratch.put(SNAPSHOT).putLong(record.ts);
+    putString(snapshotScratch, record.clientId);
+    snapshotScratch.putLong(record.timestamp).putDouble(record.cpuLoad)
+        .putLong(record.ramUsedMb).putLong(record.ramTotalMb).putInt(record.processCount)
+        .putLong(record.lastSeen).putLong(record.lastChange).put(record.flag);
+    writeSnapshot();
+  }
+
+  private void putString(String value) {
+    putString(scratch, value);
+  }
+
+  private static void putString(ByteBuffer target, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, 4096);
+    target.putShort((short) length).put(bytes, 0, length);
+  }
+
+  private void write() {
+    int needed = 8 + scratch.position();
+    if (active.remaining() < needed && !tryRoll(System.currentTimeMillis())) {
+      dropped++;
+      return;
+    }
+    try {
+      reserve(needed);
+    } catch (IOException e) {
+      System.out.println("Store segment could not grow: " + e);
+      dropped++;
+      return;
+    }
+    writeTo(active, scratch);
+  }
+
+  private void writeSnapshot() {
+    try {
+      reserve(8 + snapshotScratch.position());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    writeTo(active, snapshotScratch);
+  }
+
+  // A snapshot of a large fleet may not fit one segment; the mapping then grows in place.
+  private void reserve(int needed) throws IOException {
+    if (active.remaining() >= needed) {
+      return;
+    }
+    int position = active.position();
+    long size = Math.max(2L * active.capacity(), (long) position + needed);
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("segment would exceed 2 GB");
+    }
+    active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    active.position(position);
+  }
+
+  private void writeTo(MappedByteBuffer target, ByteBuffer record) {
+    crc.reset();
+    crc.update(record.array(), 0, record.position());
+    int length = record.position();
+    int start = target.position();
+    target.position(start + 8);
+    target.put(record.array(), 0, length);
+    target.putInt(start + 4, (int) crc.getValue());
+    target.putInt(start, length);
+  }
+
+  private void roll() throws IOException {
+    if (active != null) {
+      active.force();
+      active = null;
+      activeChannel.close();
+    }
+    Path path = dir.resolve(String.format("%016x%s", nextSegmentId++, SUFFIX));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      activeChannel = channel;
+      active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      active.putInt(MAGIC).putInt(VERSION).putInt(0).putLong(System.currentTimeMillis());
+      active.position(HEADER_BYTES);
+      source.snapshot(this::appendRecord);
+      snapshotScratch.clear();
+      snapshotScratch.put(SNAPSHOT_END).putLong(System.currentTimeMillis());
+      writeSnapshot();
+    } catch (UncheckedIOException e) {
+      abandon(channel, path);
+      throw e.getCause();
+    } catch (IOException | RuntimeException e) {
+      abandon(channel, path);
+      throw e;
+    }
+  }
+
+  private void abandon(FileChannel channel, Path path) throws IOException {
+    active = null;
+    channel.close();
+    Files.deleteIfExists(path);
+  }
+
+  private synchronized void flush() {
+    if (active != null) {
+      active.force();
+    }
+  }
+
+  private void maintain() {
+    try {
+      long now = System.currentTimeMillis();
+      List<Path> segments = listSegments();
+      for (int i = 0; i + 1 < segments.size(); i++) {
+        Path segment = segments.get(i);
+        long lastTs = firstTs(segments.get(i + 1));
+        if (lastTs < now - retentionMs) {
+          Files.deleteIfExists(segment);
+          System.out.println("Store retention removed " + segment.getFileName());
+        } else if (lastTs < now - compactAfterMs && !isCompacted(segment)) {
+          compact(segment);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Store maintenance failed: " + e.getMessage());
+    }
+  }
+
+  private void compact(Path segment) throws IOException {
+    Path temp = segment.resolveSibling(segment.getFileName() + ".compact");
+    Map<String, Long> lastKept = new HashMap<>();
+    ByteBuffer header;
+    try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+      header = ByteBuffer.allocate(HEADER_BYTES);
+      in.read(header, 0);
+    }
+    header.putInt(8, FLAG_COMPACTED);
+    header.rewind();
+    long before = Files.size(segment);
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      out.write(header);
+      ByteBuffer mapped = map(segment);
+      int pos = HEADER_BYTES;
+      Record record = new Record();
+      while (true) {
+        int next = readRecord(mapped, pos, record);
+        if (next < 0) {
+          break;
+        }
+        boolean keep = true;
+        if (record.type == SAMPLE) {
+          Long kept = lastKept.get(record.clientId);
+          keep = kept == null || record.ts - kept >= COMPACT_STEP_MS;
+          if (keep) {
+            lastKept.put(record.clientId, record.ts);
+          }
+        }
+        if (keep) {
+          ByteBuffer raw = mapped.duplicate();
+          raw.position(pos).limit(next);
+          out.write(raw);
+        }
+        pos = next;
+      }
+      out.force(true);
+    }
+    Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    System.out.println("Store compacted " + segment.getFileName() + ": " + before + " -> "
+        + Files.size(segment) + " bytes");
+  }
+
+  private long scan(Path segment, Record record, Visitor visitor) throws IOException {
+    ByteBuffer mapped = map(segment);
+    long count = 0;
+    int pos = HEADER_BYTES;
+    while (true) {
+      int next = readRecord(mapped, pos, record);
+      if (next < 0) {
+        return count;
+      }
+      visitor.visit(record);
+      count++;
+      pos = next;
+    }
+  }
+
+  private int readRecord(ByteBuffer mapped, int pos, Record record) {
+    if (pos + 8 > mapped.limit()) {
+      return -1;
+    }
+    int length = mapped.getInt(pos);
+    if (length <= 0 || length > MAX_RECORD_BYTES || pos + 8 + length > mapped.limit()) {
+      return -1;
+    }
+    int expected = mapped.getInt(pos + 4);
+    ByteBuffer body = mapped.duplicate();
+    body.position(pos + 8).limit(pos + 8 + length);
+    CRC32 check = new CRC32();
+    check.update(body.duplicate());
+    if ((int) check.getValue() != expected) {
+      return -1;
+    }
+    record.type = body.get();
+    record.ts = body.getLong();
+    record.clientId = null;
+    if (record.type != SNAPSHOT_END) {
+      byte[] id = new byte[body.getShort() & 0xFFFF];
+      body.get(id);
+      record.clientId = new String(id, StandardCharsets.UTF_8);
+    }
+    switch (record.type) {
+      case SAMPLE:
+        record.timestamp = body.getLong();
+        record.cpuLoad = body.getDouble();
+        record.ramUsedMb = body.getLong();
+        record.ramTotalMb = body.getLong();
+        record.processCount = body.getInt();
+        break;
+      case APPROVAL:
+      case STATE:
+        record.flag = body.get();
+        break;
+      case SNAPSHOT:
+        record.timestamp = body.getLong();
+        record.cpuLoad = body.getDouble();
+        record.ramUsedMb = body.getLong();
+        record.ramTotalMb = body.getLong();
+        record.processCount = body.getInt();
+        record.lastSeen = body.getLong();
+        record.lastChange = body.getLong();
+        record.flag = body.get();
+        break;
+      default:
+        break;
+    }
+    return pos + 8 + length;
+  }
+
+  private boolean hasCompleteSnapshot(Path segment) throws IOException {
+    ByteBuffer mapped = map(segment);
+    int pos = HEADER_BYTES;
+    Record record = new Record();
+    while (true) {
+      int next = readRecord(mapped, pos, record);
+      if (next < 0) {
+        return false;
+      }
+      if (record.type == SNAPSHOT_END) {
+        return true;
+      }
+      if (record.type != SNAPSHOT) {
+        return false;
+      }
+      pos = next;
+    }
+  }
+
+  private ByteBuffer map(Path segment) throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (mapped.limit() < HEADER_BYTES || mapped.getInt(0) != MAGIC) {
+        throw new IOException("not a store segment: " + segment);
+      }
+      return mapped;
+    }
+  }
+
+  private long firstTs(Path segment) throws IOException {
+    return map(segment).getLong(12);
+  }
+
+  private boolean isCompacted(Path segment) throws IOException {
+    return (map(segment).getInt(8) & FLAG_COMPACTED) != 0;
+  }
+
+  private List<Path> listSegments() throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path path : stream) {
+        segments.add(path);
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private static long segmentId(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseUnsignedLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+  }
+}
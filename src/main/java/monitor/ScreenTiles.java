@@ -0,0 +1,235 @@
+package monitor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class ScreenTiles {
+  static final int TILE_SIZE = 64;
+  private static final int TILE_RAW_BYTES = TILE_SIZE * TILE_SIZE * 3;
+
+  private ScreenTiles() {
+  }
+
+  static int[] pixels(BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_INT_RGB
+        && image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+      return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+    return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+
+  static long hash(int[] pixels, int stride, int x, int y, int w, int h) {
+    long hash = 0xcbf29ce484222325L;
+    for (int row = y; row < y + h; row++) {
+      int offset = row * stride + x;
+      for (int i = 0; i < w; i++) {
+        hash ^= pixels[offset + i] & 0xFFFFFF;
+        hash *= 0x100000001b3L;
+      }
+    }
+    return hash ^ (hash >>> 29);
+  }
+
+  static int tilesAcross(int width) {
+    return (width + TILE_SIZE - 1) / TILE_SIZE;
+  }
+
+  static int tilesDown(int height) {
+    return (height + TILE_SIZE - 1) / TILE_SIZE;
+  }
+
+  static final class Encoder {
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] raw = new byte[TILE_RAW_BYTES];
+    private final byte[] packed = new byte[TILE_RAW_BYTES + 64];
+    private long[] ackedHashes;
+    private long[] sentHashes;
+    private long ackedFrameId;
+    private long sentFrameId;
+    private long nextFrameId = 1;
+    private int width;
+    private int height;
+
+    long baseFrameId() {
+      return ackedFrameId;
+    }
+
+    long prepare(int[] pixels, int width, int height) {
+      if (width != this.width || height != this.height) {
+        reset();
+        this.width = width;
+        this.height = height;
+      }
+      int count = tilesAcross(width) * tilesDown(height);
+      if (sentHashes == null || sentHashes.length != count) {
+        sentHashes = new long[count];
+      }
+      for (int ty = 0; ty < tilesDown(height); ty++) {
+        for (int tx = 0; tx < tilesAcross(width); tx++) {
+          int x = tx * TILE_SIZE;
+          int y = ty * TILE_SIZE;
+          sentHashes[ty * tilesAcross(width) + tx] = hash(pixels, width, x, y,
+              Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+        }
+      }
+      sentFrameId = nextFrameId++;
+      return sentFrameId;
+    }
+
+    boolean changed(int index) {
+      return ackedFrameId == 0 || ackedHashes == null || ackedHashes[index] != sentHashes[index];
+    }
+
+    void writeTile(DataOutputStream out, int[] pixels, int index) throws IOException {
+      int across = tilesAcross(width);
+      int x = (index % across) * TILE_SIZE;
+      int y = (index / across) * TILE_SIZE;
+      int w = Math.min(TILE_SIZE, width - x);
+      int h = Math.min(TILE_SIZE, height - y);
+      int pos = 0;
+      for (int row = y; row < y + h; row++) {
+        int offset = row * width + x;
+        for (int i = 0; i < w; i++) {
+          int rgb = pixels[offset + i];
+          raw[pos++] = (byte) (rgb >> 16);
+          raw[pos++] = (byte) (rgb >> 8);
+          raw[pos++] = (byte) rgb;
+        }
+      }
+      deflater.reset();
+      deflater.setInput(raw, 0, pos);
+      deflater.finish();
+      int length = deflater.deflate(packed);
+      out.writeInt(x);
+      out.writeInt(y);
+      out.writeInt(w);
+      out.writeInt(h);
+      out.writeInt(length);
+      out.write(packed, 0, length);
+    }
+
+    int tileCount() {
+      return sentHashes == null ? 0 : sentHashes.length;
+    }
+
+    void acknowledge(long frameId) {
+      if (frameId != sentFrameId) {
+        reset();
+        return;
+      }
+      ackedFrameId = frameId;
+      long[] swap = ackedHashes;
+      ackedHashes = sentHashes;
+      sentHashes = swap;
+    }
+
+    void reset() {
+      ackedFrameId = 0;
+      ackedHashes = null;
+    }
+  }
+
+  static final class Reference {
+    final int width;
+    final int height;
+    private final int[] pixels;
+    private final Inflater inflater = new Inflater();
+    private final byte[] raw = new byte[TILE_RAW_BYTES];
+    private long frameId;
+    private long updatedAt;
+    private long touchedAt = System.currentTimeMillis();
+    private boolean applying;
+
+    Reference(int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.pixels = new int[width * height];
+    }
+
+    static long footprint(int width, int height) {
+      return 4L * width * height + 1024L;
+    }
+
+    synchronized boolean idle(long now, long idleMs) {
+      return !applying && now - touchedAt > idleMs;
+    }
+
+    synchronized long frameId() {
+      return frameId;
+    }
+
+    synchronized long updatedAt() {
+      return applying ? 0 : updatedAt;
+    }
+
+    synchronized void begin() {
+      applying = true;
+      touchedAt = System.currentTimeMillis();
+    }
+
+    synchronized void applyTile(ByteBuffer frame) throws IOException {
+      int x = frame.getInt();
+      int y = frame.getInt();
+      int w = frame.getInt();
+      int h = frame.getInt();
+      int length = frame.getInt();
+      if (x < 0 || y < 0 || w <= 0 || h <= 0 || w > TILE_SIZE || h > TILE_SIZE
+          || x + w > width || y + h > height || length > frame.remaining()) {
+        throw new IOException("bad tile " + x + "," + y + " " + w + "x" + h);
+      }
+      inflater.reset();
+      inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), length);
+      frame.position(frame.position() + length);
+      int expected = w * h * 3;
+      try {
+        int read = 0;
+        while (read < expected && !inflater.finished()) {
+          int n = inflater.inflate(raw, read, expected - read);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          read += n;
+        }
+        if (read != expected) {
+          throw new IOException("short tile data");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("corrupt tile data", e);
+      }
+      int pos = 0;
+      for (int row = y; row < y + h; row++) {
+        int offset = row * width + x;
+        for (int i = 0; i < w; i++) {
+          pixels[offset + i] = ((raw[pos] & 0xFF) << 16) | ((raw[pos + 1] & 0xFF) << 8)
+              | (raw[pos + 2] & 0xFF);
+          pos += 3;
+        }
+      }
+    }
+
+    synchronized void end(long frameId, boolean ok) {
+      applying = false;
+      touchedAt = System.currentTimeMillis();
+      if (ok) {
+        this.frameId = frameId;
+        this.updatedAt = System.currentTimeMillis();
+      } else {
+        this.frameId = 0;
+        Arrays.fill(pixels, 0);
+      }
+    }
+
+    synchronized BufferedImage toImage() {
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      image.setRGB(0, 0, width, height, pixels, 0, width);
+      return image;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package monitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class ScreenshotBuffer {
+  static final int CHUNK_BYTES = 64 * 1024;
+  private static final long MAX_POOLED_BYTES =
+      Long.getLong("monitor.screenshot.poolBytes", 64L * 1024 * 1024);
+  private static final long READ_TIMEOUT_MS = 30000;
+  private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+  private static final AtomicLong POOLED_BYTES = new AtomicLong();
+
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private final AtomicInteger refs = new AtomicInteger(1);
+  private final Lock lock = new ReentrantLock();
+  private final Condition grown = lock.newCondition();
+  private long length;
+  private boolean complete;
+  private boolean failed;
+
+  static ScreenshotBuffer of(byte[] data) {
+    ScreenshotBuffer buffer = new ScreenshotBuffer();
+    buffer.write(ByteBuffer.wrap(data));
+    buffer.finish(true);
+    return buffer;
+  }
+
+  void write(ByteBuffer src) {
+    lock.lock();
+    try {
+      while (src.hasRemaining()) {
+        ByteBuffer tail = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (tail == null || !tail.hasRemaining()) {
+          tail = acquireChunk();
+          chunks.add(tail);
+        }
+        int count = Math.min(tail.remaining(), src.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + count);
+        tail.put(slice);
+        src.position(src.position() + count);
+        length += count;
+      }
+      grown.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  OutputStream asOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {
+        ScreenshotBuffer.this.write(ByteBuffer.wrap(new byte[] {(byte) b}));
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        ScreenshotBuffer.this.write(ByteBuffer.wrap(b, off, len));
+      }
+    };
+  }
+
+  InputStream asInputStream() {
+    List<ByteBuffer> views = new ArrayList<>(chunks.size());
+    lock.lock();
+    try {
+      for (ByteBuffer chunk : chunks) {
+        ByteBuffer view = chunk.duplicate();
+        view.flip();
+        views.add(view);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return new InputStream() {
+      private int index;
+
+      @Override
+      public int read() {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        while (index < views.size() && !views.get(index).hasRemaining()) {
+          index++;
+        }
+        if (index >= views.size()) {
+          return -1;
+        }
+        ByteBuffer view = views.get(index);
+        int count = Math.min(len, view.remaining());
+        view.get(b, off, count);
+        return count;
+      }
+    };
+  }
+
+  void finish(boolean ok) {
+    lock.lock();
+    try {
+      complete = true;
+      failed = !ok;
+      grown.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isComplete() {
+    lock.lock();
+    try {
+      return complete && !failed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isFailed() {
+    lock.lock();
+    try {
+      return failed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long length() {
+    lock.lock();
+    try {
+      return length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean retain() {
+    int current;
+    do {
+      current = refs.get();
+      if (current <= 0) {
+        return false;
+      }
+    } while (!refs.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  void release() {
+    if (refs.decrementAndGet() != 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      for (ByteBuffer chunk : chunks) {
+        releaseChunk(chunk);
+      }
+      chunks.clear();
+      failed = true;
+      grown.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long writeTo(WritableByteChannel out) throws IOException, InterruptedException {
+    long written = 0;
+    int index = 0;
+    while (true) {
+      ByteBuffer view;
+      lock.lock();
+      try {
+        long wait = TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS);
+        while (!failed && written == length && !complete) {
+          if (wait <= 0) {
+            throw new IOException("screenshot upload stalled");
+          }
+          wait = grown.awaitNanos(wait);
+        }
+        if (failed) {
+          throw new IOException("screenshot upload failed");
+        }
+        if (written == length) {
+          return written;
+        }
+        ByteBuffer chunk = chunks.get(index);
+        view = chunk.duplicate();
+        view.position((int) (written - (long) index * CHUNK_BYTES));
+        view.limit(chunk.position());
+      } finally {
+        lock.unlock();
+      }
+      while (view.hasRemaining()) {
+        written += out.write(view);
+      }
+      if (written == (long) (index + 1) * CHUNK_BYTES) {
+        index++;
+      }
+    }
+  }
+
+  private static ByteBuffer acquireChunk() {
+    ByteBuffer chunk = POOL.poll();
+    if (chunk == null) {
+      return ByteBuffer.allocateDirect(CHUNK_BYTES);
+    }
+    POOLED_BYTES.addAndGet(-CHUNK_BYTES);
+    chunk.clear();
+    return chunk;
+  }
+
+  private static void releaseChunk(ByteBuffer chunk) {
+    if (POOLED_BYTES.addAndGet(CHUNK_BYTES) <= MAX_POOLED_BYTES) {
+      POOL.add(chunk);
+    } else {
+      POOLED_BYTES.addAndGet(-CHUNK_BYTES);
+    }
+  }
+}
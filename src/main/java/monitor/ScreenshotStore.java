@@ -0,0 +1,589 @@
+package monitor;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.ImageIO;
+
+final class ScreenshotStore {
+  static final int FULL = 0;
+  static final String[] SIZES = {"full", "thumb", "medium"};
+  private static final int[] MAX_WIDTH = {0, 320, 1280};
+  private static final String SUFFIX = ".shot";
+  private static final long RENDER_WAIT_MS = 10000L;
+  private static final int RENDER_QUEUE = 64;
+
+  private final long budgetBytes;
+  private final long maxAgeMs;
+  private final Path spillDir;
+  private final long spillBudgetBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicLong spillIds = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder spills = new LongAdder();
+  private final LongAdder renders = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+  private final ThreadPoolExecutor renderPool;
+  private final Map<String, Long> referenceBytesByClient = new HashMap<>();
+  private final Map<String, CompletableFuture<Void>> encoding = new HashMap<>();
+  private long memoryBytes;
+  private long referenceBytes;
+  private long diskBytes;
+
+  ScreenshotStore(long budgetBytes, long maxAgeMs, Path spillDir, long spillBudgetBytes,
+      int renderThreads) throws IOException {
+    this.budgetBytes = budgetBytes;
+    this.maxAgeMs = maxAgeMs;
+    this.spillDir = spillDir;
+    this.spillBudgetBytes = spillBudgetBytes;
+    int threads = Math.max(1, renderThreads);
+    this.renderPool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(RENDER_QUEUE), runnable -> {
+          Thread thread = new Thread(runnable, "screenshot-render");
+          thread.setDaemon(true);
+          return thread;
+        });
+    renderPool.allowCoreThreadTimeOut(true);
+    if (spillDir != null) {
+      Files.createDirectories(spillDir);
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(spillDir, "*" + SUFFIX)) {
+        for (Path stale : stream) {
+          Files.deleteIfExists(stale);
+        }
+      }
+    }
+  }
+
+  void put(String clientId, String format, ScreenshotBuffer data, long ts) {
+    Entry entry = new Entry(clientId, (format == null || format.isEmpty()) ? "png" : format, ts);
+    entry.data = data;
+    entry.bytes = footprint(data.length());
+    Entry previous;
+    synchronized (this) {
+      previous = entries.put(clientId, entry);
+      memoryBytes += entry.bytes;
+      if (previous != null) {
+        detach(previous);
+      }
+    }
+    if (previous != null) {
+      discard(previous);
+    }
+    trim(System.currentTimeMillis());
+  }
+
+  void completed(String clientId, ScreenshotBuffer data) {
+    synchronized (this) {
+      Entry entry = entries.get(clientId);
+      if (entry == null || entry.data != data) {
+        return;
+      }
+      long bytes = footprint(data.length());
+      memoryBytes += bytes - entry.bytes;
+      entry.bytes = bytes;
+    }
+    trim(System.currentTimeMillis());
+  }
+
+  void remove(String clientId) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.remove(clientId);
+      if (entry != null) {
+        detach(entry);
+      }
+    }
+    if (entry != null) {
+      discard(entry);
+    }
+  }
+
+  void remove(String clientId, ScreenshotBuffer data) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(clientId);
+      if (entry == null || entry.data != data) {
+        return;
+      }
+      entries.remove(clientId);
+      detach(entry);
+    }
+    discard(entry);
+  }
+
+  // Tile references are raw pixel arrays owned by ServerMain; they count against the same
+  // memory budget but cannot be spilled, so only stored screenshots make room for them.
+  boolean reserveReference(String clientId, long bytes) {
+    synchronized (this) {
+      Long previous = referenceBytesByClient.remove(clientId);
+      if (previous != null) {
+        referenceBytes -= previous;
+      }
+      if (referenceBytes + bytes > budgetBytes) {
+        return false;
+      }
+      referenceBytesByClient.put(clientId, bytes);
+      referenceBytes += bytes;
+    }
+    trim(System.currentTimeMillis());
+    return true;
+  }
+
+  synchronized void releaseReference(String clientId) {
+    Long previous = referenceBytesByClient.remove(clientId);
+    if (previous != null) {
+      referenceBytes -= previous;
+    }
+  }
+
+  static int sizeIndex(String name) {
+    for (int i = 0; i < SIZES.length; i++) {
+      if (SIZES[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  synchronized long timestamp(String clientId) {
+    Entry entry = entries.get(clientId);
+    return entry == null ? 0L : entry.ts;
+  }
+
+  Shot open(String clientId) throws IOException {
+    synchronized (this) {
+      Entry entry = entries.get(clientId);
+      if (entry != null && entry.data != null && entry.data.retain()) {
+        hits.increment();
+        return new Shot(entry.format, entry.ts, FULL, entry.data, null);
+      }
+      if (entry != null && entry.file != null) {
+        diskHits.increment();
+        return new Shot(entry.format, entry.ts, FULL, null,
+            FileChannel.open(entry.file, StandardOpenOption.READ));
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  Shot open(String clientId, int size) throws IOException, InterruptedException {
+    if (size == FULL) {
+      return open(clientId);
+    }
+    CompletableFuture<?> pending;
+    synchronized (this) {
+      Entry entry = entries.get(clientId);
+      if (entry == null) {
+        misses.increment();
+        return null;
+      }
+      Shot shot = openVariant(entry, size);
+      if (shot != null) {
+        hits.increment();
+        return shot;
+      }
+      if (entry.unrenderable[size] || (entry.data != null && !entry.data.isComplete())) {
+        pending = null;
+      } else {
+        pending = entry.rendering[size];
+        if (pending == null) {
+          CompletableFuture<Void> task = new CompletableFuture<>();
+          renderPool.execute(() -> render(entry, size, task));
+          entry.rendering[size] = task;
+          pending = task;
+        }
+      }
+    }
+    if (pending == null) {
+      return open(clientId);
+    }
+    try {
+      pending.get(RENDER_WAIT_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (TimeoutException e) {
+      throw new RejectedExecutionException("render of " + clientId + " timed out");
+    }
+    synchronized (this) {
+      Entry entry = entries.get(clientId);
+      Shot shot = entry == null ? null : openVariant(entry, size);
+      if (shot != null) {
+        hits.increment();
+        return shot;
+      }
+    }
+    return open(clientId);
+  }
+
+  // Tile references are encoded on the render pool, one at a time per client, under the same
+  // queue bound and wait limit as scaled variants.
+  void encodeReference(String clientId, ScreenTiles.Reference reference)
+      throws IOException, InterruptedException {
+    long updatedAt = reference.updatedAt();
+    CompletableFuture<Void> pending;
+    synchronized (this) {
+      Entry entry = entries.get(clientId);
+      if (updatedAt == 0 || (entry != null && entry.ts >= updatedAt)) {
+        return;
+      }
+      pending = encoding.get(clientId);
+      if (pending == null) {
+        CompletableFuture<Void> task = new CompletableFuture<>();
+        renderPool.execute(() -> encode(clientId, reference, task));
+        encoding.put(clientId, task);
+        pending = task;
+      }
+    }
+    try {
+      pending.get(RENDER_WAIT_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } catch (TimeoutException e) {
+      throw new RejectedExecutionException("encode of " + clientId + " timed out");
+    }
+  }
+
+  private void encode(String clientId, ScreenTiles.Reference reference,
+      CompletableFuture<Void> task) {
+    try {
+      long updatedAt = reference.updatedAt();
+      if (updatedAt != 0 && timestamp(clientId) < updatedAt) {
+        ScreenshotBuffer buffer = new ScreenshotBuffer();
+        boolean ok = ImageIO.write(reference.toImage(), "png", buffer.asOutputStream());
+        buffer.finish(ok);
+        put(clientId, "png", buffer, updatedAt);
+      }
+      task.complete(null);
+    } catch (IOException | RuntimeException e) {
+      task.completeExceptionally(e);
+    } finally {
+      synchronized (this) {
+        encoding.remove(clientId, task);
+      }
+    }
+  }
+
+  void countNotModified() {
+    notModified.increment();
+  }
+
+  int renderQueued() {
+    return renderPool.getQueue().size();
+  }
+
+  int renderActive() {
+    return renderPool.getActiveCount();
+  }
+
+  private Shot openVariant(Entry entry, int size) {
+    ScreenshotBuffer variant = entry.variants[size];
+    if (variant != null && variant.retain()) {
+      return new Shot("jpg", entry.ts, size, variant, null);
+    }
+    return null;
+  }
+
+  private void render(Entry entry, int size, CompletableFuture<Void> task) {
+    ScreenshotBuffer variant = null;
+    try (Shot source = openSource(entry)) {
+      BufferedImage image = source == null ? null : ImageIO.read(source.inputStream());
+      if (image != null) {
+        variant = new ScreenshotBuffer();
+        boolean ok = ImageIO.write(scale(image, MAX_WIDTH[size]), "jpg", variant.asOutputStream());
+        variant.finish(ok);
+        if (!ok) {
+          variant.release();
+          variant = null;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Screenshot " + SIZES[size] + " render failed for " + entry.clientId
+          + ": " + e.getMessage());
+    }
+    boolean stored = false;
+    synchronized (this) {
+      entry.rendering[size] = null;
+      if (variant == null) {
+        entry.unrenderable[size] = true;
+      } else if (entry.live) {
+        entry.variants[size] = variant;
+        long bytes = footprint(variant.length());
+        entry.variantBytes += bytes;
+        memoryBytes += bytes;
+        stored = true;
+      }
+    }
+    if (stored) {
+      renders.increment();
+    } else if (variant != null) {
+      variant.release();
+    }
+    task.complete(null);
+    trim(System.currentTimeMillis());
+  }
+
+  private synchronized Shot openSource(Entry entry) throws IOException {
+    if (!entry.live) {
+      return null;
+    }
+    if (entry.data != null && entry.data.retain()) {
+      return new Shot(entry.format, entry.ts, FULL, entry.data, null);
+    }
+    if (entry.file != null) {
+      return new Shot(entry.format, entry.ts, FULL, null,
+          FileChannel.open(entry.file, StandardOpenOption.READ));
+    }
+    return null;
+  }
+
+  private static BufferedImage scale(BufferedImage image, int maxWidth) {
+    int width = Math.min(maxWidth, image.getWidth());
+    int height = Math.max(1, (int) ((long) image.getHeight() * width / image.getWidth()));
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = scaled.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      g.dispose();
+    }
+    return scaled;
+  }
+
+  void trim(long now) {
+    List<Entry> dropped = new ArrayList<>();
+    List<Entry> spilling = new ArrayList<>();
+    synchronized (this) {
+      long pending = 0L;
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        boolean expired = maxAgeMs > 0 && now - entry.ts > maxAgeMs;
+        boolean overDisk = entry.file != null && diskBytes > spillBudgetBytes;
+        boolean overMemory = entry.data != null && !entry.spilling
+            && memoryBytes + referenceBytes - pending > budgetBytes && entry.data.isComplete();
+        if (expired || overDisk || (overMemory && spillDir == null)) {
+          it.remove();
+          detach(entry);
+          dropped.add(entry);
+        } else if (overMemory) {
+          entry.spilling = true;
+          entry.data.retain();
+          pending += entry.bytes;
+          spilling.add(entry);
+        }
+      }
+    }
+    for (Entry entry : dropped) {
+      evictions.increment();
+      discard(entry);
+    }
+    for (Entry entry : spilling) {
+      spill(entry);
+    }
+    if (!spilling.isEmpty() && overDiskBudget()) {
+      trim(now);
+    }
+  }
+
+  private synchronized boolean overDiskBudget() {
+    return diskBytes > spillBudgetBytes;
+  }
+
+  private void spill(Entry entry) {
+    ScreenshotBuffer data = entry.data;
+    Path file = spillDir.resolve(spillIds.incrementAndGet() + SUFFIX);
+    boolean written = false;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      data.writeTo(channel);
+      written = true;
+    } catch (IOException e) {
+      System.out.println("Screenshot spill failed for " + entry.clientId + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    boolean kept = false;
+    synchronized (this) {
+      entry.spilling = false;
+      if (written && entry.live && entry.data == data) {
+        memoryBytes -= entry.bytes;
+        entry.data = null;
+        entry.file = file;
+        diskBytes += entry.bytes;
+        kept = true;
+      } else if (!written && entries.remove(entry.clientId, entry)) {
+        detach(entry);
+        evictions.increment();
+      }
+    }
+    data.release();
+    if (kept) {
+      spills.increment();
+      data.release();
+    } else {
+      delete(file);
+    }
+  }
+
+  private void detach(Entry entry) {
+    entry.live = false;
+    memoryBytes -= entry.variantBytes;
+    if (entry.data != null) {
+      memoryBytes -= entry.bytes;
+    } else if (entry.file != null) {
+      diskBytes -= entry.bytes;
+    }
+  }
+
+  private static void discard(Entry entry) {
+    for (ScreenshotBuffer variant : entry.variants) {
+      if (variant != null) {
+        variant.release();
+      }
+    }
+    if (entry.data != null) {
+      entry.data.release();
+    } else if (entry.file != null) {
+      delete(entry.file);
+    }
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      System.out.println("Screenshot spill cleanup failed: " + e.getMessage());
+    }
+  }
+
+  private static long footprint(long length) {
+    long chunks = (length + ScreenshotBuffer.CHUNK_BYTES - 1) / ScreenshotBuffer.CHUNK_BYTES;
+    return Math.max(1L, chunks) * ScreenshotBuffer.CHUNK_BYTES;
+  }
+
+  synchronized void appendJson(StringBuilder sb) {
+    int onDisk = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.file != null) {
+        onDisk++;
+      }
+    }
+    sb.append("\"entries\":").append(entries.size());
+    sb.append(",\"spilledEntries\":").append(onDisk);
+    sb.append(",\"memoryBytes\":").append(memoryBytes);
+    sb.append(",\"references\":").append(referenceBytesByClient.size());
+    sb.append(",\"referenceBytes\":").append(referenceBytes);
+    sb.append(",\"budgetBytes\":").append(budgetBytes);
+    sb.append(",\"diskBytes\":").append(diskBytes);
+    sb.append(",\"spillBudgetBytes\":").append(spillDir == null ? 0L : spillBudgetBytes);
+    sb.append(",\"hits\":").append(hits.sum());
+    sb.append(",\"diskHits\":").append(diskHits.sum());
+    sb.append(",\"misses\":").append(misses.sum());
+    sb.append(",\"evictions\":").append(evictions.sum());
+    sb.append(",\"spills\":").append(spills.sum());
+    sb.append(",\"renders\":").append(renders.sum());
+    sb.append(",\"notModified\":").append(notModified.sum());
+    sb.append(",\"renderQueue\":").append(renderPool.getQueue().size());
+  }
+
+  private static final class Entry {
+    final String clientId;
+    final String format;
+    final long ts;
+    ScreenshotBuffer data;
+    Path file;
+    final ScreenshotBuffer[] variants = new ScreenshotBuffer[SIZES.length];
+    final CompletableFuture<?>[] rendering = new CompletableFuture<?>[SIZES.length];
+    final boolean[] unrenderable = new boolean[SIZES.length];
+    long bytes;
+    long variantBytes;
+    boolean spilling;
+    boolean live = true;
+
+    Entry(String clientId, String format, long ts) {
+      this.clientId = clientId;
+      this.format = format;
+      this.ts = ts;
+    }
+  }
+
+  static final class Shot implements Closeable {
+    final String format;
+    final long ts;
+    final int size;
+    private final ScreenshotBuffer data;
+    private final FileChannel file;
+
+    Shot(String format, long ts, int size, ScreenshotBuffer data, FileChannel file) {
+      this.format = format;
+      this.ts = ts;
+      this.size = size;
+      this.data = data;
+      this.file = file;
+    }
+
+    long length() throws IOException {
+      if (file != null) {
+        return file.size();
+      }
+      return data.isComplete() ? data.length() : 0L;
+    }
+
+    InputStream inputStream() {
+      return data != null ? data.asInputStream() : Channels.newInputStream(file);
+    }
+
+    void writeTo(WritableByteChannel out) throws IOException, InterruptedException {
+      if (data != null) {
+        data.writeTo(out);
+        return;
+      }
+      MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+      while (mapped.hasRemaining()) {
+        out.write(mapped);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (data != null) {
+        data.release();
+      } else {
+        file.close();
+      }
+    }
+  }
+}
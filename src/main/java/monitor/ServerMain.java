@@ -1,35 +1,153 @@
 package monitor;
 
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class ServerMain {
   private static final int DEFAULT_PORT = 5050;
-  private static final long OFFLINE_MS = 15000;
+  private static final long OFFLINE_MS = Long.getLong("monitor.offlineMs", 15000L);
+  private static final long OFFLINE_TICK_MS = 100L;
+  private static final double FLEET_DEFAULT_ABOVE = 0.9;
+  private static final int TOP_DEFAULT_N = 20;
+  private static final int TOP_MAX_N = 1000;
+  private static final String ALERT_RULES = System.getProperty("monitor.alerts.rules");
+  private static final long ALERT_BUDGET_US = Long.getLong("monitor.alerts.budgetUs", 50L);
+  private static final int GZIP_MIN_BYTES = Integer.getInteger("monitor.http.gzipMinBytes", 1024);
+  private static final String STATIC_IMMUTABLE = "public, max-age=31536000, immutable";
+  private static final String CLUSTER_NODES = System.getProperty("monitor.cluster.nodes");
+  private static final String CLUSTER_NODE = System.getProperty("monitor.cluster.node");
+  private static final String SCREENSHOT_SPILL_DIR =
+      System.getProperty("monitor.screenshot.spillDir");
+  private static final long MAX_REFERENCE_PIXELS =
+      Long.getLong("monitor.screenshot.maxReferencePixels", 7680L * 2160L);
+  private static final long REFERENCE_IDLE_MS =
+      Long.getLong("monitor.screenshot.referenceIdleMs", 600_000L);
+  private static final long HISTORY_DEFAULT_RANGE_MS = 3600_000L;
+  private static final int HISTORY_MAX_BUCKETS = 2000;
+  private static final String RESYNC_PROCESSES = "RESYNC_PROCESSES";
+  private static final long TOMBSTONE_TTL_MS = 600_000L;
+  private static final long STREAM_KEEPALIVE_MS = 15000;
+  private static final long STREAM_RETRY_MS = 3000;
+  private static final int LIVE_DEFAULT_FPS = 5;
+  private static final int LIVE_MAX_FPS = 15;
+  private static final long LIVE_IDLE_MS = 15000;
+  private static final String LIVE_BOUNDARY = "frame";
+  private static final String STORE_DIR = System.getProperty("monitor.store.dir");
+  private static final byte SNAPSHOT_APPROVAL_KNOWN = 1;
+  private static final byte SNAPSHOT_APPROVED = 2;
+  private static final byte SNAPSHOT_ONLINE = 4;
+  private static final String INGEST_MODE = System.getProperty("monitor.ingest", "blocking");
+  private static final String EXECUTOR_MODE =
+      System.getProperty("monitor.executor", buildDefault("executor", "pool"));
+  private static final long COMMAND_TIMEOUT_MS = Long.getLong("monitor.command.timeoutMs", 60000L);
+  private static final long COMMAND_MAX_WAIT_MS = 60000L;
+  private static final int NIO_SELECTORS = Integer.getInteger("monitor.nio.selectors",
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
   private final Map<String, ClientStatus> statusByClient = new ConcurrentHashMap<>();
   private final Map<String, Boolean> monitoringAllowedByClient = new ConcurrentHashMap<>();
-  private final Map<String, String> pendingCommandByClient = new ConcurrentHashMap<>();
-  private final Map<String, Screenshot> screenshotByClient = new ConcurrentHashMap<>();
-  private final ExecutorService pool = Executors.newCachedThreadPool();
+  private final CommandQueue commands =
+      new CommandQueue(CLUSTER_NODE == null ? 0 : Cluster.commandPrefix(CLUSTER_NODE));
+  private final TimerWheel offlineTimers =
+      new TimerWheel(OFFLINE_TICK_MS, 512, System.currentTimeMillis());
+  private final List<PresenceListener> presenceListeners = new CopyOnWriteArrayList<>();
+  private final FleetAggregates fleet = new FleetAggregates();
+  private final TopIndex top = new TopIndex();
+  private final Map<String, ClientSession> pushSessionByClient = new ConcurrentHashMap<>();
+  private final Map<String, ScreenTiles.Reference> referenceByClient = new ConcurrentHashMap<>();
+  private final Map<String, ProcessIndex> processesByClient = new ConcurrentHashMap<>();
+  private final Map<String, LiveStream> liveStreamByClient = new ConcurrentHashMap<>();
+  private final MetricsHistory history = new MetricsHistory(
+      Long.getLong("monitor.history.rangeMs", HISTORY_DEFAULT_RANGE_MS),
+      Integer.getInteger("monitor.history.samples", 720),
+      Long.getLong("monitor.history.budgetMb", 128L) * 1024 * 1024);
+  private final StatusEvents statusEvents = new StatusEvents();
+  // Versions are allocated and logged under versionLock, so every version up to the one a reader
+  // sees under the same lock is already in changeLog or tombstones.
+  private final Object versionLock = new Object();
+  private final AtomicLong statusVersion = new AtomicLong();
+  private final ConcurrentSkipListMap<Long, String> changeLog = new ConcurrentSkipListMap<>();
+  private final ConcurrentSkipListMap<Long, Tombstone> tombstones = new ConcurrentSkipListMap<>();
+  private volatile long tombstonePrunedVersion;
+  private final ScheduledExecutorService sweeper =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "status-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      });
+  private SampleStore store;
+  private AlertEngine alerts;
+  private ScreenshotStore screenshots;
+  private Cluster cluster;
+  private final ExecutorService ingestExecutor = newExecutor("ingest");
+  private final ExecutorService httpExecutor = newExecutor("http");
   private HttpServer httpServer;
+  private NioIngestServer nioIngest;
+  private final Metrics metrics = new Metrics();
+  private final Metrics.Counter heartbeats =
+      metrics.counter("monitor_heartbeats_total", "Status reports received from agents");
+  private final Metrics.Histogram textParseTime = metrics.latency("monitor_status_parse_seconds",
+      "Time spent parsing a status report", "format", "text");
+  private final Metrics.Histogram binaryParseTime = metrics.latency(
+      "monitor_status_parse_seconds", "Time spent parsing a status report", "format", "binary");
+  private final Metrics.Histogram upsertTime = metrics.latency("monitor_status_upsert_seconds",
+      "Time spent merging a status report into the client table", null, null);
+  private final Metrics.Counter bytesRead =
+      metrics.counter("monitor_ingest_read_bytes_total", "Bytes read from agent connections");
+  private final Metrics.Histogram connectionBytes = metrics.size("monitor_connection_read_bytes",
+      "Bytes read over the lifetime of an agent connection", null, null);
+  private final Metrics.Histogram screenshotBytes = metrics.size("monitor_screenshot_bytes",
+      "Size of screenshots received from agents", null, null);
+  private final Metrics.Histogram screenshotDecodeTime = metrics.latency(
+      "monitor_screenshot_decode_seconds", "Time spent Base64-decoding text screenshots", null,
+      null);
+  private final AtomicInteger blockingConnections = new AtomicInteger();
+  private volatile double heartbeatRate;
+  private long heartbeatsSeen;
+  private long heartbeatsSeenAt = System.currentTimeMillis();
 
   public static void main(String[] args) throws Exception {
     new ServerMain().start(args);
@@ -38,6 +156,13 @@ public class ServerMain {
   private void start(String[] args) throws Exception {
     int port = DEFAULT_PORT;
     int httpPort = DEFAULT_PORT + 1;
+    if (CLUSTER_NODES != null && !CLUSTER_NODES.isEmpty()) {
+      cluster = new Cluster(CLUSTER_NODES, CLUSTER_NODE,
+          Long.getLong("monitor.cluster.timeoutMs", 2000L), COMMAND_MAX_WAIT_MS + 15000L);
+      port = cluster.self().ingestPort;
+      httpPort = cluster.self().httpPort;
+      System.out.println("Cluster node " + cluster.self() + " of " + cluster.nodes());
+    }
     if (args.length > 0) {
       try {
         port = Integer.parseInt(args[0]);
@@ -52,236 +177,1487 @@ public class ServerMain {
       } catch (NumberFormatException ignored) {
         httpPort = port + 1;
       }
-    } else {
+    } else if (cluster == null) {
       httpPort = port + 1;
     }
 
+    alerts = new AlertEngine(AlertEngine.load(ALERT_RULES), ALERT_BUDGET_US, this::publishAlert);
+    System.out.println("Loaded " + alerts.ruleCount() + " alert rules");
+    screenshots = new ScreenshotStore(
+        Long.getLong("monitor.screenshot.budgetMb", 256L) * 1024 * 1024,
+        Long.getLong("monitor.screenshot.maxAgeMs", 0L),
+        SCREENSHOT_SPILL_DIR == null || SCREENSHOT_SPILL_DIR.isEmpty()
+            ? null : Paths.get(SCREENSHOT_SPILL_DIR),
+        Long.getLong("monitor.screenshot.spillMb", 2048L) * 1024 * 1024,
+        Integer.getInteger("monitor.screenshot.renderThreads", 2));
+    openStore();
+    addPresenceListener(this::publishPresence);
+    addPresenceListener(alerts::presenceChanged);
+    addPresenceListener((clientId, online, at) -> fleet.setOnline(clientId, online));
+    addPresenceListener((clientId, online, at) -> top.setOnline(clientId, online));
+    sweeper.scheduleAtFixedRate(() -> {
+      long now = System.currentTimeMillis();
+      for (String clientId : offlineTimers.advance(now)) {
+        onHeartbeatMissed(clientId, now);
+      }
+      alerts.advance(now);
+    }, OFFLINE_TICK_MS, OFFLINE_TICK_MS, TimeUnit.MILLISECONDS);
+    sweeper.scheduleWithFixedDelay(() -> {
+      long now = System.currentTimeMillis();
+      pruneTombstones(now);
+      screenshots.trim(now);
+      expireReferences(now);
+      reloadCluster();
+      updateHeartbeatRate(now);
+      for (String clientId : commands.expire(now)) {
+        clientChanged(clientId);
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+    if ("nio".equalsIgnoreCase(INGEST_MODE)) {
+      nioIngest = new NioIngestServer(port, NIO_SELECTORS, this);
+    }
+    registerGauges();
     startHttpServer(httpPort);
 
+    if (nioIngest != null) {
+      System.out.println("Monitor server listening on port " + port
+          + " (nio, " + NIO_SELECTORS + " selectors)");
+      System.out.println("Web UI listening on http://localhost:" + httpPort);
+      nioIngest.run();
+      return;
+    }
+
+    Metrics.TrackedExecutor ingestTasks = metrics.track("ingest", ingestExecutor);
     try (ServerSocket server = new ServerSocket(port)) {
-      System.out.println("Monitor server listening on port " + port);
+      System.out.println("Monitor server listening on port " + port
+          + " (" + EXECUTOR_MODE + " executor)");
       System.out.println("Web UI listening on http://localhost:" + httpPort);
       while (true) {
         Socket socket = server.accept();
-        pool.submit(() -> handleClient(socket));
+        ingestTasks.execute(() -> handleClient(socket));
+      }
+    }
+  }
+
+  // Defaults baked in by the Maven build; the jdk21 profile switches the executor to virtual.
+  private static String buildDefault(String key, String fallback) {
+    try (InputStream input =
+             ServerMain.class.getClassLoader().getResourceAsStream("monitor-build.properties")) {
+      if (input != null) {
+        Properties properties = new Properties();
+        properties.load(input);
+        String value = properties.getProperty(key, "");
+        if (!value.isEmpty() && !value.startsWith("${")) {
+          return value;
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Could not read build defaults: " + e.getMessage());
+    }
+    return fallback;
+  }
+
+  private static ExecutorService newExecutor(String name) {
+    if ("virtual".equalsIgnoreCase(EXECUTOR_MODE)) {
+      try {
+        return (ExecutorService) Executors.class
+            .getMethod("newVirtualThreadPerTaskExecutor")
+            .invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads unavailable on this JDK, using pool for " + name);
       }
     }
+    return Executors.newCachedThreadPool();
   }
 
   private void startHttpServer(int httpPort) throws IOException {
     httpServer = HttpServer.create(new InetSocketAddress(httpPort), 0);
-    httpServer.createContext("/api/status", this::handleStatusApi);
-    httpServer.createContext("/api/command", this::handleCommandApi);
-    httpServer.createContext("/api/screenshot", this::handleScreenshotApi);
-    httpServer.createContext("/", exchange -> serveStatic(exchange, "web/index.html", "text/html"));
-    httpServer.createContext("/app.js", exchange -> serveStatic(exchange, "web/app.js", "text/javascript"));
-    httpServer.createContext("/app.css", exchange -> serveStatic(exchange, "web/app.css", "text/css"));
-    httpServer.setExecutor(pool);
+    context("/api/status", this::handleStatusApi);
+    context("/api/command", this::handleCommandApi);
+    context("/api/screenshot", this::handleScreenshotApi);
+    context("/api/live", this::handleLiveApi);
+    context("/api/history", this::handleHistoryApi);
+    context("/api/processes", this::handleProcessesApi);
+    context("/api/fleet", this::handleFleetApi);
+    context("/api/top", this::handleTopApi);
+    context("/api/alerts", this::handleAlertsApi);
+    context("/api/stream", this::handleStreamApi);
+    context("/api/metrics", this::handleMetricsApi);
+    StaticAsset script = loadStatic(readResource("web/app.js"), "text/javascript");
+    StaticAsset style = loadStatic(readResource("web/app.css"), "text/css");
+    byte[] page = readResource("web/index.html");
+    if (page != null) {
+      String html = new String(page, StandardCharsets.UTF_8);
+      if (script != null) {
+        html = html.replace("\"/app.js\"", "\"/app.js?v=" + script.version + "\"");
+      }
+      if (style != null) {
+        html = html.replace("\"/app.css\"", "\"/app.css?v=" + style.version + "\"");
+      }
+      page = html.getBytes(StandardCharsets.UTF_8);
+    }
+    StaticAsset index = loadStatic(page, "text/html");
+    context("/", exchange -> serveStatic(exchange, index, false));
+    context("/app.js", exchange -> serveStatic(exchange, script, true));
+    context("/app.css", exchange -> serveStatic(exchange, style, true));
+    httpServer.setExecutor(metrics.track("http", httpExecutor));
     httpServer.start();
   }
 
+  private void context(String path, HttpHandler handler) {
+    Metrics.Histogram latency = metrics.latency("monitor_http_request_seconds",
+        "HTTP request latency by context", "context", path);
+    httpServer.createContext(path, exchange -> {
+      long started = System.nanoTime();
+      try {
+        handler.handle(exchange);
+      } finally {
+        latency.observeSince(started);
+      }
+    });
+  }
+
+  private void registerGauges() {
+    metrics.gauge("monitor_heartbeats_per_second", "Status reports received over the last second",
+        () -> heartbeatRate);
+    metrics.gauge("monitor_open_connections", "Open agent connections",
+        () -> nioIngest != null ? nioIngest.openConnections() : blockingConnections.get());
+    metrics.gauge("monitor_clients", "Clients in the status table", statusByClient::size);
+    metrics.gauge("monitor_commands_pending", "Commands not yet finished, by state", "state",
+        "queued", () -> commands.count(CommandQueue.State.QUEUED));
+    metrics.gauge("monitor_commands_pending", "Commands not yet finished, by state", "state",
+        "sent", () -> commands.count(CommandQueue.State.SENT));
+    if (store != null) {
+      metrics.gauge("monitor_store_dropped_records",
+          "Records not persisted because the store could not roll a segment", store::dropped);
+    }
+    metrics.gauge("monitor_executor_queued", "Tasks submitted but not yet started", "executor",
+        "render", screenshots::renderQueued);
+    metrics.gauge("monitor_executor_active", "Tasks currently running", "executor", "render",
+        screenshots::renderActive);
+  }
+
+  private void updateHeartbeatRate(long now) {
+    long count = heartbeats.sum();
+    if (now > heartbeatsSeenAt) {
+      heartbeatRate = (count - heartbeatsSeen) * 1000.0 / (now - heartbeatsSeenAt);
+    }
+    heartbeatsSeen = count;
+    heartbeatsSeenAt = now;
+  }
+
   private void handleClient(Socket socket) {
-    String remote = String.valueOf(socket.getRemoteSocketAddress());
-    System.out.println("Client connected: " + remote);
-    String lastClientId = null;
-    try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))) {
+    ClientSession session = new ClientSession(String.valueOf(socket.getRemoteSocketAddress()));
+    System.out.println("Client connected: " + session.remote);
+    blockingConnections.incrementAndGet();
+    try (InputStream input =
+             new BufferedInputStream(new CountingInputStream(socket.getInputStream(), session));
+         OutputStream output = new BufferedOutputStream(socket.getOutputStream())) {
+      Lock writeLock = new ReentrantLock();
+      session.pusher = frame -> {
+        try {
+          writeFrame(output, writeLock, frame);
+          return true;
+        } catch (IOException e) {
+          return false;
+        }
+      };
       String line;
-      while ((line = reader.readLine()) != null) {
-        if (line.startsWith("APPROVAL ")) {
-          String clientId = extractTokenValue(line, "clientId");
-          String action = extractTokenValue(line, "action");
-          String grantedToken = extractTokenValue(line, "granted");
-          boolean granted = "true".equalsIgnoreCase(grantedToken);
-          if (clientId != null && "monitoring".equalsIgnoreCase(action)) {
-            pendingCommandByClient.remove(clientId);
-            monitoringAllowedByClient.put(clientId, granted);
-            if (!granted) {
-              screenshotByClient.remove(clientId);
-            }
+      while (!session.binary && !session.redirected
+          && (line = WireProtocol.readLine(input)) != null) {
+        writeFrame(output, writeLock, ByteBuffer.wrap(
+            (handleLine(session, line) + "\n").getBytes(StandardCharsets.UTF_8)));
+      }
+      if (session.binary && !session.redirected) {
+        DataInputStream frames = new DataInputStream(input);
+        ByteBuffer frame;
+        while (!session.redirected
+            && (frame = WireProtocol.readFrame(frames, session.identified)) != null) {
+          ByteBuffer reply = handleFrame(session, frame);
+          if (reply != null) {
+            writeFrame(output, writeLock, reply);
           }
-          writer.write("OK\n");
-          writer.flush();
-          continue;
         }
+      }
+      handleDisconnect(session);
+    } catch (IOException e) {
+      System.out.println("Client disconnected: " + session.remote + " (" + e.getMessage() + ")");
+      handleDisconnect(session);
+    } finally {
+      blockingConnections.decrementAndGet();
+    }
+  }
+
+  void onBytesRead(ClientSession session, int count) {
+    session.bytesRead += count;
+    bytesRead.add(count);
+  }
+
+  // A ReentrantLock rather than synchronized: a virtual thread blocked in write() while holding
+  // a monitor would pin its carrier thread.
+  private static void writeFrame(OutputStream output, Lock lock, ByteBuffer frame)
+      throws IOException {
+    lock.lock();
+    try {
+      output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+      output.flush();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  String handleLine(ClientSession session, String line) {
+    if (line.startsWith(WireProtocol.HELLO + " ")) {
+      String redirect = redirectIfRemote(session, extractTokenValue(line, "clientId"));
+      if (redirect != null) {
+        return redirect;
+      }
+      String helloClientId = extractTokenValue(line, "clientId");
+      session.identified |= helloClientId != null && !helloClientId.isEmpty();
+      String caps = extractTokenValue(line, "caps");
+      session.commandResults = WireProtocol.hasCap(caps, WireProtocol.CAP_RESULT);
+      String accepted = WireProtocol.hasCap(caps, WireProtocol.CAP_PROC_DELTA)
+          ? WireProtocol.CAP_PROC_DELTA : "";
+      if (WireProtocol.BINARY_V1.equals(extractTokenValue(line, "proto"))) {
+        session.binary = true;
+        session.pushCommands = WireProtocol.hasCap(caps, WireProtocol.CAP_PUSH);
+        if (session.pushCommands) {
+          accepted = accepted.isEmpty() ? WireProtocol.CAP_PUSH
+              : WireProtocol.CAP_PUSH + "," + accepted;
+        }
+        return WireProtocol.HELLO + " proto=" + WireProtocol.BINARY_V1
+            + (accepted.isEmpty() ? "" : " caps=" + accepted);
+      }
+      return accepted.isEmpty() ? "OK" : "OK caps=" + accepted;
+    }
+
+    if (line.startsWith("RESULT ")) {
+      int detail = line.indexOf(" detail=");
+      onCommandResult(parseLong(extractTokenValue(line, "id"), -1L),
+          "true".equalsIgnoreCase(extractTokenValue(line, "ok")),
+          detail < 0 ? "" : line.substring(detail + " detail=".length()));
+      return "OK";
+    }
 
-        if (line.startsWith("SCREENSHOT ")) {
-          String clientId = extractTokenValue(line, "clientId");
-          String grantedToken = extractTokenValue(line, "granted");
-          boolean granted = "true".equalsIgnoreCase(grantedToken);
-          System.out.println("Screenshot response from " + clientId + ": " + granted);
-          if (clientId != null) {
-            if (granted) {
-              String format = extractTokenValue(line, "format");
-              String data = extractTokenValue(line, "data");
-              if (data != null && !data.isEmpty()) {
-                try {
-                  byte[] bytes = Base64.getDecoder().decode(data);
-                  Screenshot shot = new Screenshot();
-                  shot.data = bytes;
-                  shot.format = (format == null || format.isEmpty()) ? "png" : format;
-                  shot.ts = System.currentTimeMillis();
-                  screenshotByClient.put(clientId, shot);
-                } catch (IllegalArgumentException ignored) {
-                  screenshotByClient.remove(clientId);
-                }
-              }
-            } else {
-              screenshotByClient.remove(clientId);
-            }
+    if (line.startsWith("APPROVAL ")) {
+      String clientId = extractTokenValue(line, "clientId");
+      String action = extractTokenValue(line, "action");
+      String grantedToken = extractTokenValue(line, "granted");
+      if (clientId != null && "monitoring".equalsIgnoreCase(action)) {
+        onApproval(clientId, "true".equalsIgnoreCase(grantedToken));
+      }
+      return "OK";
+    }
+
+    if (line.startsWith("SCREENSHOT ")) {
+      String clientId = extractTokenValue(line, "clientId");
+      String grantedToken = extractTokenValue(line, "granted");
+      boolean granted = "true".equalsIgnoreCase(grantedToken);
+      byte[] bytes = null;
+      if (granted) {
+        long started = System.nanoTime();
+        try {
+          bytes = decodeScreenshotData(line);
+          if (bytes != null) {
+            screenshotDecodeTime.observeSince(started);
           }
-          writer.write("OK\n");
-          writer.flush();
-          continue;
+        } catch (IllegalArgumentException ignored) {
+          granted = false;
+        }
+      }
+      onScreenshot(clientId, granted, extractTokenValue(line, "format"), bytes);
+      return "OK";
+    }
+
+    long started = System.nanoTime();
+    StatusReport report = parseStatus(session, line);
+    textParseTime.observeSince(started);
+    if (report != null && report.clientId != null && !report.clientId.isEmpty()) {
+      String pending = onStatus(session, report);
+      return pending == null ? "OK" : "CMD:" + pending;
+    }
+    System.out.println("Heartbeat from " + session.remote + ": " + line);
+    return "OK";
+  }
+
+  ByteBuffer handleFrame(ClientSession session, ByteBuffer frame) throws IOException {
+    try {
+      return dispatchFrame(session, frame);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("truncated frame");
+    }
+  }
+
+  private ByteBuffer dispatchFrame(ClientSession session, ByteBuffer frame) throws IOException {
+    byte type = frame.get();
+    switch (type) {
+      case WireProtocol.STATUS: {
+        long started = System.nanoTime();
+        StatusReport report = decodeStatus(frame, session.report);
+        binaryParseTime.observeSince(started);
+        if (report.clientId.isEmpty()) {
+          return WireProtocol.ack();
+        }
+        return WireProtocol.reply(onStatus(session, report));
+      }
+      case WireProtocol.STATUS_DELTA: {
+        long started = System.nanoTime();
+        StatusReport report = decodeStatusDelta(frame, session.report);
+        binaryParseTime.observeSince(started);
+        if (report.clientId.isEmpty()) {
+          return WireProtocol.ack();
+        }
+        return WireProtocol.reply(onStatus(session, report));
+      }
+      case WireProtocol.RESULT: {
+        long id = frame.getLong();
+        boolean ok = frame.get() != 0;
+        onCommandResult(id, ok, WireProtocol.readString(frame));
+        return WireProtocol.ack();
+      }
+      case WireProtocol.APPROVAL: {
+        String clientId = WireProtocol.readString(frame);
+        onApproval(clientId, frame.get() != 0);
+        return WireProtocol.ack();
+      }
+      case WireProtocol.SCREENSHOT: {
+        String clientId = WireProtocol.readString(frame);
+        boolean granted = frame.get() != 0;
+        String format = WireProtocol.readString(frame);
+        byte[] bytes = null;
+        if (granted && frame.hasRemaining()) {
+          bytes = new byte[frame.remaining()];
+          frame.get(bytes);
+        }
+        onScreenshot(clientId, granted, format, bytes);
+        return WireProtocol.ack();
+      }
+      case WireProtocol.SCREENSHOT_BEGIN:
+        onScreenshotBegin(session, WireProtocol.readString(frame), WireProtocol.readString(frame));
+        return null;
+      case WireProtocol.SCREENSHOT_CHUNK:
+        onScreenshotChunk(session, frame);
+        return null;
+      case WireProtocol.SCREENSHOT_END:
+        onScreenshotEnd(session, WireProtocol.readString(frame), frame.get() != 0);
+        return WireProtocol.ack();
+      case WireProtocol.TILES_BEGIN: {
+        String clientId = WireProtocol.readString(frame);
+        onTilesBegin(session, clientId, frame.getLong(), frame.getInt(), frame.getInt());
+        return null;
+      }
+      case WireProtocol.STREAM_FRAME: {
+        String clientId = WireProtocol.readString(frame);
+        LiveStream stream = liveStreamByClient.get(clientId);
+        if (stream != null && isMonitoringAllowed(clientId)) {
+          byte[] jpeg = new byte[frame.remaining()];
+          frame.get(jpeg);
+          stream.publish(jpeg);
+        }
+        return null;
+      }
+      case WireProtocol.TILE:
+        if (session.tileTarget != null) {
+          session.tileTarget.applyTile(frame);
+        }
+        return null;
+      case WireProtocol.TILES_END: {
+        String clientId = WireProtocol.readString(frame);
+        return WireProtocol.ack(onTilesEnd(session, clientId, frame.getLong()));
+      }
+      default:
+        throw new IOException("unknown frame type " + type);
+    }
+  }
+
+  private String onStatus(ClientSession session, StatusReport report) {
+    String redirect = redirectIfRemote(session, report.clientId);
+    if (redirect != null) {
+      return redirect;
+    }
+    heartbeats.increment();
+    long now = System.currentTimeMillis();
+    session.lastClientId = report.clientId;
+    session.identified = true;
+    ProcessIndex processes =
+        processesByClient.computeIfAbsent(report.clientId, id -> new ProcessIndex());
+    boolean processesInSync = processes.apply(report, now);
+    int processCount = processes.size();
+    boolean[] cameOnline = {false};
+    long started = System.nanoTime();
+    ClientStatus status = upsertStatus(report, processCount, now, cameOnline);
+    upsertTime.observeSince(started);
+    offlineTimers.schedule(report.clientId, now + OFFLINE_MS);
+    fleet.update(report.clientId, status.tag, true, status.cpuLoad, status.ramUsedMb,
+        status.ramTotalMb);
+    top.update(report.clientId, true, status.cpuLoad, status.ramUsedMb, status.ramTotalMb,
+        processCount);
+    alerts.evaluate(report.clientId, status.tag, report, processCount, now);
+    clientChanged(report.clientId);
+    if (cameOnline[0]) {
+      firePresence(report.clientId, true, now);
+    }
+    for (int i = 0; i < report.sampleCount; i++) {
+      history.record(report.clientId, report.sampleTs[i], report.sampleCpu[i],
+          report.sampleRam[i], processCount);
+      if (store != null) {
+        store.appendSample(report.clientId, now, report.sampleTs[i], report.sampleCpu[i],
+            report.sampleRam[i], report.ramTotalMb, processCount);
+      }
+    }
+    history.record(report.clientId, report.timestamp > 0 ? report.timestamp : now,
+        report.cpuLoad, report.ramUsedMb, processCount);
+    if (store != null) {
+      store.appendSample(report.clientId, now, report.timestamp, report.cpuLoad,
+          report.ramUsedMb, report.ramTotalMb, processCount);
+    }
+    System.out.println(status.toSummary());
+    if (session.pushCommands) {
+      pushSessionByClient.put(report.clientId, session);
+      deliverCommands(report.clientId);
+    }
+    if (!processesInSync) {
+      return RESYNC_PROCESSES;
+    }
+    return session.pushCommands ? null : takeCommand(session, report.clientId);
+  }
+
+  private void onCommandResult(long id, boolean ok, String detail) {
+    CommandQueue.Command command = commands.get(id);
+    if (command != null && commands.complete(id, ok, detail)) {
+      System.out.println("Command " + id + " (" + command.text + ") for " + command.clientId
+          + (ok ? " done: " : " failed: ") + detail);
+    }
+  }
+
+  private void onApproval(String clientId, boolean granted) {
+    monitoringAllowedByClient.put(clientId, granted);
+    clientChanged(clientId);
+    if (store != null) {
+      store.appendApproval(clientId, System.currentTimeMillis(), granted);
+    }
+    if (!granted) {
+      screenshots.remove(clientId);
+      dropReference(clientId);
+    }
+  }
+
+  private void onScreenshot(String clientId, boolean granted, String format, byte[] bytes) {
+    System.out.println("Screenshot response from " + clientId + ": " + granted);
+    if (clientId == null) {
+      return;
+    }
+    if (!granted) {
+      screenshots.remove(clientId);
+      dropReference(clientId);
+      return;
+    }
+    if (bytes != null) {
+      screenshotBytes.observe(bytes.length);
+      screenshots.put(clientId, format, ScreenshotBuffer.of(bytes), System.currentTimeMillis());
+    }
+  }
+
+  private void onScreenshotBegin(ClientSession session, String clientId, String format) {
+    abortUpload(session);
+    ScreenshotBuffer buffer = new ScreenshotBuffer();
+    session.upload = buffer;
+    session.uploadClientId = clientId;
+    screenshots.put(clientId, format, buffer, System.currentTimeMillis());
+  }
+
+  private void onScreenshotChunk(ClientSession session, ByteBuffer chunk) {
+    if (session.upload != null) {
+      session.upload.write(chunk);
+    }
+  }
+
+  private void onScreenshotEnd(ClientSession session, String clientId, boolean ok) {
+    ScreenshotBuffer buffer = session.upload;
+    session.upload = null;
+    if (buffer == null) {
+      return;
+    }
+    buffer.finish(ok);
+    System.out.println("Screenshot upload from " + clientId + ": "
+        + (ok ? buffer.length() + " bytes" : "failed"));
+    if (ok) {
+      screenshotBytes.observe(buffer.length());
+      screenshots.completed(clientId, buffer);
+    } else {
+      screenshots.remove(clientId, buffer);
+    }
+  }
+
+  private void onTilesBegin(ClientSession session, String clientId, long baseFrameId,
+      int width, int height) throws IOException {
+    abortTiles(session);
+    session.tileClientId = clientId;
+    if (width <= 0 || height <= 0) {
+      throw new IOException("bad screen size " + width + "x" + height);
+    }
+    if ((long) width * height > MAX_REFERENCE_PIXELS) {
+      dropReference(clientId);
+      System.out.println("Screenshot tiles from " + clientId + ": " + width + "x" + height
+          + " is larger than the tile reference limit");
+      session.tileRejected = true;
+      return;
+    }
+    ScreenTiles.Reference reference = referenceByClient.get(clientId);
+    boolean sameSize = reference != null && reference.width == width && reference.height == height;
+    if (baseFrameId == 0) {
+      if (!sameSize) {
+        if (!screenshots.reserveReference(clientId,
+            ScreenTiles.Reference.footprint(width, height))) {
+          referenceByClient.remove(clientId);
+          System.out.println("Screenshot tiles from " + clientId + ": " + width + "x" + height
+              + " reference does not fit the screenshot memory budget");
+          session.tileRejected = true;
+          return;
+        }
+        reference = new ScreenTiles.Reference(width, height);
+        referenceByClient.put(clientId, reference);
+      }
+    } else if (!sameSize || reference.frameId() != baseFrameId) {
+      session.tileRejected = true;
+      return;
+    }
+    reference.begin();
+    session.tileTarget = reference;
+  }
+
+  private long onTilesEnd(ClientSession session, String clientId, long frameId) {
+    ScreenTiles.Reference reference = session.tileTarget;
+    boolean rejected = session.tileRejected;
+    session.tileTarget = null;
+    session.tileRejected = false;
+    if (rejected || reference == null) {
+      System.out.println("Screenshot tiles from " + clientId + ": rejected, keyframe needed");
+      return -1;
+    }
+    reference.end(frameId, true);
+    System.out.println("Screenshot tiles from " + clientId + ": frame " + frameId);
+    return frameId;
+  }
+
+  private void abortTiles(ClientSession session) {
+    ScreenTiles.Reference reference = session.tileTarget;
+    session.tileTarget = null;
+    session.tileRejected = false;
+    if (reference != null) {
+      reference.end(0, false);
+    }
+  }
+
+  private long currentScreenshot(String clientId) throws IOException, InterruptedException {
+    ScreenTiles.Reference reference = referenceByClient.get(clientId);
+    if (reference != null) {
+      screenshots.encodeReference(clientId, reference);
+    }
+    return screenshots.timestamp(clientId);
+  }
+
+  private void abortUpload(ClientSession session) {
+    ScreenshotBuffer buffer = session.upload;
+    session.upload = null;
+    if (buffer != null) {
+      buffer.finish(false);
+      screenshots.remove(session.uploadClientId, buffer);
+    }
+  }
+
+  private String redirectIfRemote(ClientSession session, String clientId) {
+    if (cluster == null || clientId == null || clientId.isEmpty() || cluster.isLocal(clientId)) {
+      return null;
+    }
+    Cluster.Node owner = cluster.owner(clientId);
+    session.redirected = true;
+    System.out.println("Redirecting " + clientId + " to cluster node " + owner.id);
+    if (statusByClient.containsKey(clientId)) {
+      removeClient(clientId);
+    } else {
+      screenshots.remove(clientId);
+      dropReference(clientId);
+      closeLiveStream(clientId);
+    }
+    return owner.redirect();
+  }
+
+  private void reloadCluster() {
+    if (cluster == null) {
+      return;
+    }
+    try {
+      if (!cluster.reload()) {
+        return;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Cluster membership reload failed: " + e.getMessage());
+      return;
+    }
+    int moving = 0;
+    for (String clientId : statusByClient.keySet()) {
+      if (!cluster.isLocal(clientId)) {
+        moving++;
+      }
+    }
+    System.out.println("Cluster membership now " + cluster.nodes() + "; " + moving + " of "
+        + statusByClient.size() + " local clients move on their next report");
+  }
+
+  private boolean forwardToOwner(HttpExchange exchange, String clientId) throws IOException {
+    if (cluster == null || clientId == null || clientId.isEmpty() || cluster.isLocal(clientId)
+        || Cluster.isForwarded(exchange)) {
+      return false;
+    }
+    cluster.proxy(exchange, cluster.owner(clientId));
+    return true;
+  }
+
+  void handleDisconnect(ClientSession session) {
+    connectionBytes.observe(session.bytesRead);
+    abortUpload(session);
+    abortTiles(session);
+    if (session.lastClientId != null) {
+      pushSessionByClient.remove(session.lastClientId, session);
+      if (session.commandResults) {
+        commands.failSent(session.lastClientId, "disconnected");
+      }
+      markOffline(session.lastClientId, System.currentTimeMillis());
+    }
+    if (session.tileClientId != null) {
+      dropReference(session.tileClientId);
+    }
+  }
+
+  private void dropReference(String clientId) {
+    if (referenceByClient.remove(clientId) != null) {
+      screenshots.releaseReference(clientId);
+    }
+  }
+
+  private void expireReferences(long now) {
+    for (Map.Entry<String, ScreenTiles.Reference> entry : referenceByClient.entrySet()) {
+      if (entry.getValue().idle(now, REFERENCE_IDLE_MS)
+          && referenceByClient.remove(entry.getKey(), entry.getValue())) {
+        screenshots.releaseReference(entry.getKey());
+      }
+    }
+  }
+
+  private void closeLiveStream(String clientId) {
+    LiveStream stream = liveStreamByClient.remove(clientId);
+    if (stream != null) {
+      stream.close();
+    }
+  }
+
+  private void handleStatusApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    String query = exchange.getRequestURI().getRawQuery();
+    String since = extractQueryParam(query, "since");
+    if (cluster != null && !"1".equals(extractQueryParam(query, "local"))) {
+      sendJson(exchange, 200, cluster.mergeStatus(since, this::buildLocalStatusJson));
+      return;
+    }
+    sendJson(exchange, 200, buildLocalStatusJson(since));
+  }
+
+  private String buildLocalStatusJson(String since) {
+    return since == null ? buildStatusJson() : buildStatusJson(parseLong(since, 0L));
+  }
+
+  private void handleFleetApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    String query = exchange.getRequestURI().getRawQuery();
+    double threshold = FLEET_DEFAULT_ABOVE;
+    String above = extractQueryParam(query, "above");
+    if (above != null) {
+      try {
+        threshold = Math.max(0.0, Math.min(1.0, Double.parseDouble(above)));
+      } catch (NumberFormatException ignored) {
+        threshold = FLEET_DEFAULT_ABOVE;
+      }
+    }
+    StringBuilder sb = new StringBuilder(1024);
+    sb.append("{\"serverTime\":").append(System.currentTimeMillis()).append(",");
+    appendNode(sb);
+    fleet.appendJson(sb, extractQueryParam(query, "tag"), threshold);
+    sb.append("}");
+    sendJson(exchange, 200, sb.toString());
+  }
+
+  private void handleAlertsApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    long since = parseLongParam(exchange.getRequestURI().getRawQuery(), "since", 0L);
+    StringBuilder sb = new StringBuilder(4096);
+    sb.append("{\"serverTime\":").append(System.currentTimeMillis()).append(",");
+    appendNode(sb);
+    alerts.appendJson(sb, since);
+    sb.append("}");
+    sendJson(exchange, 200, sb.toString());
+  }
+
+  // Fleet, top and alerts are computed from this node's shard only; on a cluster the response
+  // names the node so callers can tell a partial answer from a fleet-wide one.
+  private void appendNode(StringBuilder sb) {
+    if (cluster != null) {
+      sb.append("\"node\":").append(formatJsonString(CLUSTER_NODE)).append(",");
+    }
+  }
+
+  private void handleMetricsApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    StringBuilder sb = new StringBuilder(16384);
+    metrics.write(sb);
+    sendText(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", sb.toString());
+  }
+
+  private void handleTopApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    String query = exchange.getRequestURI().getRawQuery();
+    String metricName = extractQueryParam(query, "metric");
+    int metric = TopIndex.metricIndex(metricName == null ? TopIndex.METRICS[0] : metricName);
+    if (metric < 0) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    int n = (int) Math.max(1L, Math.min(TOP_MAX_N, parseLongParam(query, "n", TOP_DEFAULT_N)));
+    boolean onlineOnly = "true".equalsIgnoreCase(extractQueryParam(query, "online"));
+    List<String> ids = top.top(metric, n, onlineOnly);
+    StringBuilder sb = new StringBuilder(128 + ids.size() * 512);
+    sb.append("{\"serverTime\":").append(System.currentTimeMillis()).append(",");
+    appendNode(sb);
+    sb.append("\"metric\":\"").append(TopIndex.METRICS[metric]).append("\",");
+    sb.append("\"online\":").append(onlineOnly).append(",");
+    sb.append("\"clients\":[");
+    boolean first = true;
+    for (String clientId : ids) {
+      ClientStatus status = statusByClient.get(clientId);
+      if (status == null) {
+        continue;
+      }
+      if (!first) {
+        sb.append(",");
+      }
+      first = false;
+      sb.append(clientJson(status));
+    }
+    sb.append("]}");
+    sendJson(exchange, 200, sb.toString());
+  }
+
+  private void handleCommandApi(HttpExchange exchange) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    long waitMs = Math.max(0L, Math.min(COMMAND_MAX_WAIT_MS, parseLongParam(query, "wait", 0L)));
+    if (forwardToOwner(exchange, extractQueryParam(query, "clientId"))) {
+      return;
+    }
+    if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      long id = parseLongParam(query, "id", -1L);
+      if (cluster != null && !Cluster.isForwarded(exchange)) {
+        Cluster.Node owner = cluster.commandOwner(id);
+        if (owner != null && !owner.id.equals(CLUSTER_NODE)) {
+          cluster.proxy(exchange, owner);
+          return;
+        }
+      }
+      CommandQueue.Command command = commands.get(id);
+      if (command == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      respondCommand(exchange, command, waitMs);
+      return;
+    }
+    if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    long timeoutMs = parseLongParam(query, "timeout", COMMAND_TIMEOUT_MS);
+    if (timeoutMs <= 0) {
+      timeoutMs = COMMAND_TIMEOUT_MS;
+    }
+    String clientId = extractQueryParam(query, "clientId");
+    String action = extractQueryParam(query, "action");
+    if (clientId == null || action == null || clientId.isEmpty()) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    if ("request_monitoring".equalsIgnoreCase(action)) {
+      respondCommand(exchange, queueCommand(clientId, "REQUEST_MONITORING", timeoutMs), waitMs);
+      return;
+    }
+    if ("forget".equalsIgnoreCase(action)) {
+      ClientStatus status = statusByClient.get(clientId);
+      if (status == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      if (status.online) {
+        exchange.sendResponseHeaders(409, -1);
+        return;
+      }
+      removeClient(clientId);
+      exchange.sendResponseHeaders(204, -1);
+      return;
+    }
+    if ("request_screenshot".equalsIgnoreCase(action)) {
+      if (!isMonitoringAllowed(clientId)) {
+        exchange.sendResponseHeaders(403, -1);
+        return;
+      }
+      respondCommand(exchange, queueCommand(clientId, "REQUEST_SCREENSHOT", timeoutMs), waitMs);
+      return;
+    }
+    exchange.sendResponseHeaders(404, -1);
+  }
+
+  private void respondCommand(HttpExchange exchange, CommandQueue.Command command, long waitMs)
+      throws IOException {
+    if (waitMs > 0 && !command.isFinished()) {
+      try {
+        command.completion.get(waitMs, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        // report the command as still pending
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    boolean finished = command.isFinished();
+    sendJson(exchange, finished ? 200 : 202, commandJson(command));
+  }
+
+  private static String commandJson(CommandQueue.Command command) {
+    CommandQueue.State state = command.state;
+    boolean finished = command.isFinished();
+    StringBuilder sb = new StringBuilder(192);
+    sb.append("{\"id\":").append(command.id).append(",");
+    sb.append("\"clientId\":").append(formatJsonString(command.clientId)).append(",");
+    sb.append("\"command\":").append(formatJsonString(command.text)).append(",");
+    sb.append("\"state\":\"").append(state.name().toLowerCase(Locale.ROOT)).append("\",");
+    sb.append("\"result\":").append(formatJsonString(command.result)).append(",");
+    sb.append("\"createdAt\":").append(command.createdAt).append(",");
+    sb.append("\"completedAt\":").append(finished ? Long.toString(command.completedAt) : "null");
+    sb.append("}");
+    return sb.toString();
+  }
+
+  private void handleScreenshotApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    if (exchange.getRequestURI().getPath().endsWith("/stats")) {
+      StringBuilder sb = new StringBuilder(256);
+      sb.append("{");
+      screenshots.appendJson(sb);
+      sb.append("}");
+      sendJson(exchange, 200, sb.toString());
+      return;
+    }
+    String query = exchange.getRequestURI().getRawQuery();
+    String clientId = extractQueryParam(query, "clientId");
+    if (clientId == null || clientId.isEmpty()) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    if (forwardToOwner(exchange, clientId)) {
+      return;
+    }
+    if (!isMonitoringAllowed(clientId)) {
+      exchange.sendResponseHeaders(403, -1);
+      return;
+    }
+    String sizeName = extractQueryParam(query, "size");
+    int size = ScreenshotStore.sizeIndex(sizeName == null ? "full" : sizeName);
+    if (size < 0) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    ScreenshotStore.Shot shot;
+    try {
+      long ts = currentScreenshot(clientId);
+      if (ts != 0 && isNotModified(exchange, screenshotTag(ts, size), ts)) {
+        screenshots.countNotModified();
+        exchange.getResponseHeaders().set("ETag", screenshotTag(ts, size));
+        exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      shot = screenshots.open(clientId, size);
+    } catch (RejectedExecutionException e) {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      exchange.sendResponseHeaders(503, -1);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exchange.sendResponseHeaders(503, -1);
+      return;
+    }
+    if (shot == null) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+    try {
+      long length = shot.length();
+      exchange.getResponseHeaders().set("Content-Type", contentTypeForFormat(shot.format));
+      if (length > 0) {
+        exchange.getResponseHeaders().set("ETag", screenshotTag(shot.ts, shot.size));
+        exchange.getResponseHeaders().set("Last-Modified", httpDate(shot.ts));
+        exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+      } else {
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+      }
+      exchange.sendResponseHeaders(200, length);
+      shot.writeTo(Channels.newChannel(exchange.getResponseBody()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      shot.close();
+      exchange.close();
+    }
+  }
+
+  private void handleLiveApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    String query = exchange.getRequestURI().getRawQuery();
+    String clientId = extractQueryParam(query, "clientId");
+    if (clientId == null || clientId.isEmpty()) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    if (forwardToOwner(exchange, clientId)) {
+      return;
+    }
+    if (!isMonitoringAllowed(clientId)) {
+      exchange.sendResponseHeaders(403, -1);
+      return;
+    }
+    int fps = LIVE_DEFAULT_FPS;
+    String fpsParam = extractQueryParam(query, "fps");
+    if (fpsParam != null) {
+      try {
+        fps = Math.max(1, Math.min(LIVE_MAX_FPS, Integer.parseInt(fpsParam)));
+      } catch (NumberFormatException ignored) {
+        fps = LIVE_DEFAULT_FPS;
+      }
+    }
+    LiveStream stream = joinLiveStream(clientId, fps);
+    try {
+      exchange.getResponseHeaders().set("Content-Type",
+          "multipart/x-mixed-replace; boundary=" + LIVE_BOUNDARY);
+      exchange.getResponseHeaders().set("Cache-Control", "no-store");
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream body = exchange.getResponseBody();
+      long seen = stream.sequence();
+      while (isMonitoringAllowed(clientId)) {
+        byte[] jpeg = stream.awaitNewer(seen, LIVE_IDLE_MS);
+        if (jpeg == null) {
+          break;
         }
+        seen = stream.sequence();
+        body.write(("--" + LIVE_BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+            + jpeg.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(jpeg);
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        body.flush();
+      }
+    } catch (IOException ignored) {
+      // viewer went away
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      leaveLiveStream(clientId, stream);
+      exchange.close();
+    }
+  }
+
+  private LiveStream joinLiveStream(String clientId, int fps) {
+    boolean[] first = {false};
+    LiveStream joined = liveStreamByClient.compute(clientId, (id, stream) -> {
+      LiveStream current = stream == null ? new LiveStream() : stream;
+      first[0] = current.addViewer() == 1;
+      return current;
+    });
+    if (first[0]) {
+      queueCommand(clientId, "START_STREAM fps=" + fps);
+    }
+    return joined;
+  }
+
+  private void leaveLiveStream(String clientId, LiveStream stream) {
+    boolean[] last = {false};
+    liveStreamByClient.computeIfPresent(clientId, (id, current) -> {
+      if (current != stream || current.removeViewer() > 0) {
+        return current;
+      }
+      last[0] = true;
+      return null;
+    });
+    if (last[0]) {
+      queueCommand(clientId, "STOP_STREAM");
+    }
+  }
+
+  private CommandQueue.Command queueCommand(String clientId, String text) {
+    return queueCommand(clientId, text, COMMAND_TIMEOUT_MS);
+  }
+
+  private CommandQueue.Command queueCommand(String clientId, String text, long timeoutMs) {
+    CommandQueue.Command command = commands.enqueue(clientId, text, timeoutMs);
+    clientChanged(clientId);
+    deliverCommands(clientId);
+    return command;
+  }
+
+  private void deliverCommands(String clientId) {
+    ClientSession session = pushSessionByClient.get(clientId);
+    if (session == null) {
+      return;
+    }
+    List<CommandQueue.Command> ready = commands.drain(clientId);
+    if (ready.isEmpty()) {
+      return;
+    }
+    for (CommandQueue.Command command : ready) {
+      if (!session.push(WireProtocol.pushCommand(command.id, command.text))) {
+        command.finish(CommandQueue.State.FAILED, "connection closed");
+      }
+    }
+    clientChanged(clientId);
+  }
+
+  private String takeCommand(ClientSession session, String clientId) {
+    CommandQueue.Command command = commands.poll(clientId);
+    if (command == null) {
+      return null;
+    }
+    clientChanged(clientId);
+    if (session.commandResults) {
+      return command.wireText();
+    }
+    command.finish(CommandQueue.State.DONE, "delivered");
+    return command.text;
+  }
+
+  private void handleHistoryApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    String query = exchange.getRequestURI().getRawQuery();
+    String clientId = extractQueryParam(query, "clientId");
+    if (clientId == null || clientId.isEmpty()) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    if (forwardToOwner(exchange, clientId)) {
+      return;
+    }
+    long to = parseLongParam(query, "to", System.currentTimeMillis());
+    long from = parseLongParam(query, "from", to - HISTORY_DEFAULT_RANGE_MS);
+    if (to <= from) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    long step = parseLongParam(query, "step", (to - from) / 120);
+    step = Math.max(Math.max(1, step), (to - from + HISTORY_MAX_BUCKETS - 1) / HISTORY_MAX_BUCKETS);
+    MetricsHistory.Buckets buckets = history.query(clientId, from, to, step);
+    if (buckets == null) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+    sendJson(exchange, 200, buildHistoryJson(clientId, from, to, step, buckets));
+  }
+
+  private void handleProcessesApi(HttpExchange exchange) throws IOException {
+    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    String clientId = extractQueryParam(exchange.getRequestURI().getRawQuery(), "clientId");
+    if (clientId == null || clientId.isEmpty()) {
+      exchange.sendResponseHeaders(400, -1);
+      return;
+    }
+    if (forwardToOwner(exchange, clientId)) {
+      return;
+    }
+    ProcessIndex processes = processesByClient.get(clientId);
+    if (processes == null) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+    StringBuilder sb = new StringBuilder(64 + processes.size() * 96);
+    sb.append("{\"clientId\":\"").append(escape(clientId)).append("\",");
+    processes.appendJson(sb);
+    sb.append("}");
+    sendJson(exchange, 200, sb.toString());
+  }
 
-        ClientStatus status = parseStatus(line);
-        if (status != null && status.clientId != null && !status.clientId.isEmpty()) {
-          status.lastSeen = System.currentTimeMillis();
-          lastClientId = status.clientId;
-          upsertStatus(status);
-          System.out.println(status.toSummary());
-          String pending = pendingCommandByClient.remove(status.clientId);
-          if (pending != null) {
-            writer.write("CMD:" + pending + "\n");
-          } else {
-            writer.write("OK\n");
-          }
-          writer.flush();
-          continue;
-        }
-        System.out.println("Heartbeat from " + remote + ": " + line);
-        writer.write("OK\n");
-        writer.flush();
+  private static String buildHistoryJson(String clientId, long from, long to, long step,
+      MetricsHistory.Buckets buckets) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"clientId\":\"").append(escape(clientId)).append("\",");
+    sb.append("\"from\":").append(from).append(",");
+    sb.append("\"to\":").append(to).append(",");
+    sb.append("\"step\":").append(step).append(",");
+    sb.append("\"buckets\":[");
+    boolean first = true;
+    for (int b = 0; b < buckets.count; b++) {
+      int n = buckets.samples[b];
+      if (n == 0) {
+        continue;
       }
-      if (lastClientId != null) {
-        markOffline(lastClientId, System.currentTimeMillis());
+      if (!first) {
+        sb.append(",");
       }
-    } catch (IOException e) {
-      System.out.println("Client disconnected: " + remote + " (" + e.getMessage() + ")");
-      if (lastClientId != null) {
-        markOffline(lastClientId, System.currentTimeMillis());
+      first = false;
+      sb.append("{\"ts\":").append(buckets.ts[b]).append(",");
+      sb.append("\"n\":").append(n).append(",");
+      if (buckets.cpuSamples[b] == 0) {
+        sb.append("\"cpuLoad\":null,");
+      } else {
+        sb.append("\"cpuLoad\":[")
+            .append(formatDouble(buckets.cpuMin[b])).append(",")
+            .append(formatDouble(buckets.cpuMax[b])).append(",")
+            .append(formatDouble(buckets.cpuSum[b] / buckets.cpuSamples[b])).append("],");
       }
+      sb.append("\"ramUsedMb\":[")
+          .append(buckets.ramMin[b]).append(",")
+          .append(buckets.ramMax[b]).append(",")
+          .append(buckets.ramSum[b] / n).append("],");
+      sb.append("\"processCount\":[")
+          .append(buckets.procMin[b]).append(",")
+          .append(buckets.procMax[b]).append(",")
+          .append(buckets.procSum[b] / n).append("]}");
     }
+    sb.append("]}");
+    return sb.toString();
   }
 
-  private void handleStatusApi(HttpExchange exchange) throws IOException {
+  private void handleStreamApi(HttpExchange exchange) throws IOException {
     if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
       exchange.sendResponseHeaders(405, -1);
       return;
     }
-    String body = buildStatusJson();
-    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
-    exchange.sendResponseHeaders(200, bytes.length);
-    exchange.getResponseBody().write(bytes);
-    exchange.close();
+    // The stream carries only this node's shard. 204 tells EventSource not to reconnect, so a
+    // clustered dashboard falls back to polling the merged /api/status.
+    if (cluster != null
+        && !"1".equals(extractQueryParam(exchange.getRequestURI().getRawQuery(), "local"))) {
+      exchange.sendResponseHeaders(204, -1);
+      return;
+    }
+    StatusEvents.Subscriber subscriber = statusEvents.subscribe();
+    try {
+      exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+      exchange.getResponseHeaders().set("Cache-Control", "no-store");
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream body = exchange.getResponseBody();
+      body.write(("retry: " + STREAM_RETRY_MS + "\nevent: snapshot\ndata: " + buildStatusJson()
+          + "\n\n").getBytes(StandardCharsets.UTF_8));
+      body.flush();
+      while (true) {
+        List<String> events = subscriber.await(STREAM_KEEPALIVE_MS);
+        if (events == null) {
+          body.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+        } else {
+          StringBuilder sb = new StringBuilder();
+          for (String event : events) {
+            sb.append(event);
+          }
+          body.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        body.flush();
+      }
+    } catch (IOException ignored) {
+      // dashboard went away
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      statusEvents.unsubscribe(subscriber);
+      exchange.close();
+    }
   }
 
-  private void handleCommandApi(HttpExchange exchange) throws IOException {
-    if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-      exchange.sendResponseHeaders(405, -1);
+  void clientChanged(String clientId) {
+    ClientStatus status = statusByClient.get(clientId);
+    if (status == null) {
       return;
     }
-    String query = exchange.getRequestURI().getRawQuery();
-    String clientId = extractQueryParam(query, "clientId");
-    String action = extractQueryParam(query, "action");
-    if (clientId == null || action == null || clientId.isEmpty()) {
-      exchange.sendResponseHeaders(400, -1);
-      return;
+    synchronized (versionLock) {
+      long version = statusVersion.incrementAndGet();
+      synchronized (status) {
+        changeLog.remove(status.version);
+        status.version = version;
+        changeLog.put(version, clientId);
+      }
     }
-    if ("request_monitoring".equalsIgnoreCase(action)) {
-      pendingCommandByClient.put(clientId, "REQUEST_MONITORING");
-      exchange.sendResponseHeaders(202, -1);
+    if (statusEvents.hasSubscribers()) {
+      statusEvents.publish(clientId, "event: client\ndata: " + clientJson(status) + "\n\n");
+    }
+  }
+
+  private void removeClient(String clientId) {
+    ClientStatus status = statusByClient.remove(clientId);
+    if (status == null) {
       return;
     }
-    if ("request_screenshot".equalsIgnoreCase(action)) {
-      if (!isMonitoringAllowed(clientId)) {
-        exchange.sendResponseHeaders(403, -1);
-        return;
+    synchronized (versionLock) {
+      long version = statusVersion.incrementAndGet();
+      synchronized (status) {
+        changeLog.remove(status.version);
+        status.version = version;
       }
-      pendingCommandByClient.put(clientId, "REQUEST_SCREENSHOT");
-      exchange.sendResponseHeaders(202, -1);
-      return;
+      tombstones.put(version, new Tombstone(clientId, System.currentTimeMillis()));
     }
-    exchange.sendResponseHeaders(404, -1);
+    offlineTimers.cancel(clientId);
+    fleet.remove(clientId);
+    top.remove(clientId);
+    alerts.remove(clientId);
+    history.remove(clientId);
+    processesByClient.remove(clientId);
+    screenshots.remove(clientId);
+    dropReference(clientId);
+    closeLiveStream(clientId);
+    commands.cancel(clientId, "client removed");
+    statusEvents.publish(clientId, "event: remove\ndata: " + formatJsonString(clientId) + "\n\n");
   }
 
-  private void handleScreenshotApi(HttpExchange exchange) throws IOException {
-    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-      exchange.sendResponseHeaders(405, -1);
-      return;
+  private void pruneTombstones(long now) {
+    while (!tombstones.isEmpty()) {
+      Map.Entry<Long, Tombstone> oldest = tombstones.firstEntry();
+      if (now - oldest.getValue().removedAt < TOMBSTONE_TTL_MS) {
+        return;
+      }
+      tombstonePrunedVersion = Math.max(tombstonePrunedVersion, oldest.getKey());
+      tombstones.remove(oldest.getKey());
     }
-    String query = exchange.getRequestURI().getRawQuery();
-    String clientId = extractQueryParam(query, "clientId");
-    if (clientId == null || clientId.isEmpty()) {
-      exchange.sendResponseHeaders(400, -1);
-      return;
+  }
+
+  private String clientJson(ClientStatus status) {
+    Fragment fragment = status.fragment;
+    long version = status.version;
+    if (fragment != null && fragment.version == version) {
+      return fragment.json;
     }
-    if (!isMonitoringAllowed(clientId)) {
-      exchange.sendResponseHeaders(403, -1);
-      return;
+    StringBuilder sb = new StringBuilder(256);
+    appendClientJson(sb, status);
+    String json = sb.toString();
+    status.fragment = new Fragment(version, json);
+    return json;
+  }
+
+  private long committedVersion() {
+    synchronized (versionLock) {
+      return statusVersion.get();
     }
-    Screenshot shot = screenshotByClient.get(clientId);
-    if (shot == null || shot.data == null) {
-      exchange.sendResponseHeaders(404, -1);
-      return;
+  }
+
+  String buildStatusJson() {
+    long version = committedVersion();
+    StringBuilder sb = new StringBuilder(64 + statusByClient.size() * 256);
+    sb.append("{\"serverTime\":").append(System.currentTimeMillis()).append(",");
+    sb.append("\"version\":").append(version).append(",");
+    sb.append("\"full\":true,");
+    sb.append("\"clients\":[");
+    boolean first = true;
+    for (ClientStatus status : statusByClient.values()) {
+      if (!first) {
+        sb.append(",");
+      }
+      first = false;
+      sb.append(clientJson(status));
     }
-    exchange.getResponseHeaders().set("Content-Type", contentTypeForFormat(shot.format));
-    exchange.getResponseHeaders().set("Cache-Control", "no-store");
-    exchange.sendResponseHeaders(200, shot.data.length);
-    exchange.getResponseBody().write(shot.data);
-    exchange.close();
+    sb.append("],\"removed\":[]}");
+    return sb.toString();
   }
 
-  private String buildStatusJson() {
-    refreshOnlineStates(System.currentTimeMillis());
-    List<ClientStatus> snapshot = new ArrayList<>(statusByClient.values());
+  String buildStatusJson(long since) {
+    long version = committedVersion();
+    if (since <= 0 || since <= tombstonePrunedVersion || since > version) {
+      return buildStatusJson();
+    }
     StringBuilder sb = new StringBuilder();
     sb.append("{\"serverTime\":").append(System.currentTimeMillis()).append(",");
+    sb.append("\"version\":").append(version).append(",");
+    sb.append("\"full\":false,");
     sb.append("\"clients\":[");
-    for (int i = 0; i < snapshot.size(); i++) {
-      ClientStatus status = snapshot.get(i);
-      if (i > 0) {
+    boolean first = true;
+    for (String clientId : changeLog.tailMap(since, false).values()) {
+      ClientStatus status = statusByClient.get(clientId);
+      if (status == null) {
+        continue;
+      }
+      if (!first) {
+        sb.append(",");
+      }
+      first = false;
+      sb.append(clientJson(status));
+    }
+    sb.append("],\"removed\":[");
+    first = true;
+    for (Tombstone tombstone : tombstones.tailMap(since, false).values()) {
+      if (statusByClient.containsKey(tombstone.clientId)) {
+        continue;
+      }
+      if (!first) {
         sb.append(",");
       }
-      sb.append("{\"clientId\":\"").append(escape(status.clientId)).append("\",");
-      sb.append("\"ts\":").append(status.timestamp).append(",");
-      sb.append("\"cpuLoad\":").append(formatDouble(status.cpuLoad)).append(",");
-      sb.append("\"ramUsedMb\":").append(status.ramUsedMb).append(",");
-      sb.append("\"ramTotalMb\":").append(status.ramTotalMb).append(",");
-      sb.append("\"processCount\":").append(status.processCount).append(",");
-      sb.append("\"lastSeen\":").append(status.lastSeen).append(",");
-      sb.append("\"online\":").append(status.online).append(",");
-      sb.append("\"lastChange\":").append(status.lastChange).append(",");
-      sb.append("\"monitoringAllowed\":")
-          .append(isMonitoringAllowed(status.clientId)).append(",");
-      sb.append("\"pendingCommand\":")
-          .append(formatJsonString(pendingCommandByClient.get(status.clientId)))
-          .append("}");
+      first = false;
+      sb.append(formatJsonString(tombstone.clientId));
     }
     sb.append("]}");
     return sb.toString();
   }
 
-  private void serveStatic(HttpExchange exchange, String resourcePath, String contentType)
+  private void appendClientJson(StringBuilder sb, ClientStatus status) {
+    sb.append("{\"clientId\":\"").append(escape(status.clientId)).append("\",");
+    sb.append("\"tag\":").append(formatJsonString(status.tag)).append(",");
+    sb.append("\"ts\":").append(status.timestamp).append(",");
+    sb.append("\"cpuLoad\":").append(formatDouble(status.cpuLoad)).append(",");
+    sb.append("\"ramUsedMb\":").append(status.ramUsedMb).append(",");
+    sb.append("\"ramTotalMb\":").append(status.ramTotalMb).append(",");
+    sb.append("\"processCount\":").append(status.processCount).append(",");
+    sb.append("\"loadAvg\":");
+    appendDoubles(sb, status.loadAvg);
+    sb.append(",\"cores\":");
+    appendDoubles(sb, status.coreLoads);
+    sb.append(",\"diskReadBps\":").append(status.diskReadBps).append(",");
+    sb.append("\"diskWriteBps\":").append(status.diskWriteBps).append(",");
+    sb.append("\"netRxBps\":").append(status.netRxBps).append(",");
+    sb.append("\"netTxBps\":").append(status.netTxBps).append(",");
+    sb.append("\"agent\":{\"collectUs\":").append(status.collectMicros)
+        .append(",\"cpuPct\":").append(formatDouble(status.agentCpuPct))
+        .append(",\"allocBps\":").append(status.agentAllocBps).append("},");
+    sb.append("\"lastSeen\":").append(status.lastSeen).append(",");
+    sb.append("\"online\":").append(status.online).append(",");
+    sb.append("\"lastChange\":").append(status.lastChange).append(",");
+    sb.append("\"monitoringAllowed\":")
+        .append(isMonitoringAllowed(status.clientId)).append(",");
+    sb.append("\"pendingCommand\":")
+        .append(formatJsonString(commands.peek(status.clientId)))
+        .append("}");
+  }
+
+  private static void appendDoubles(StringBuilder sb, double[] values) {
+    sb.append("[");
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(formatDouble(values[i]));
+    }
+    sb.append("]");
+  }
+
+  private static StaticAsset loadStatic(byte[] data, String contentType) {
+    if (data == null) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    String version = Long.toHexString(crc.getValue()) + Integer.toHexString(data.length);
+    byte[] gzipped = Gzip.compress(data, Deflater.BEST_COMPRESSION);
+    return new StaticAsset(data, gzipped.length < data.length ? gzipped : null,
+        contentType + "; charset=utf-8", version);
+  }
+
+  private static void serveStatic(HttpExchange exchange, StaticAsset asset, boolean versioned)
       throws IOException {
     if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
       exchange.sendResponseHeaders(405, -1);
       return;
     }
-    byte[] data = readResource(resourcePath);
-    if (data == null) {
+    if (asset == null) {
       exchange.sendResponseHeaders(404, -1);
       return;
     }
-    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
-    exchange.sendResponseHeaders(200, data.length);
-    exchange.getResponseBody().write(data);
+    String requested = extractQueryParam(exchange.getRequestURI().getRawQuery(), "v");
+    boolean gzip = asset.gzipped != null && acceptsGzip(exchange);
+    String etag = gzip ? asset.gzipEtag : asset.etag;
+    exchange.getResponseHeaders().set("ETag", etag);
+    exchange.getResponseHeaders().set("Cache-Control",
+        versioned && asset.version.equals(requested) ? STATIC_IMMUTABLE : "no-cache");
+    exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+    if (isNotModified(exchange, etag, 0L)) {
+      exchange.sendResponseHeaders(304, -1);
+      exchange.close();
+      return;
+    }
+    byte[] body = asset.data;
+    if (gzip) {
+      body = asset.gzipped;
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().set("Content-Type", asset.contentType);
+    exchange.sendResponseHeaders(200, body.length);
+    exchange.getResponseBody().write(body);
+    exchange.close();
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+    sendText(exchange, status, "application/json; charset=utf-8", json);
+  }
+
+  private static void sendText(HttpExchange exchange, int status, String contentType,
+      String text) throws IOException {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if (body.length >= GZIP_MIN_BYTES) {
+      exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+      if (acceptsGzip(exchange)) {
+        body = Gzip.compress(body, Deflater.BEST_SPEED);
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+    }
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
     exchange.close();
   }
 
-  private byte[] readResource(String resourcePath) throws IOException {
+  private static boolean acceptsGzip(HttpExchange exchange) {
+    String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (accept == null) {
+      return false;
+    }
+    for (String part : accept.split(",")) {
+      String[] params = part.trim().split(";");
+      if (!"gzip".equalsIgnoreCase(params[0].trim())) {
+        continue;
+      }
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=") && parseDouble(param.substring(2), 1.0) <= 0.0) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static byte[] readResource(String resourcePath) throws IOException {
     try (InputStream input = ServerMain.class.getClassLoader().getResourceAsStream(resourcePath)) {
       if (input == null) {
         return null;
@@ -296,146 +1672,346 @@ public class ServerMain {
     }
   }
 
-  private ClientStatus parseStatus(String json) {
-    ClientStatus status = new ClientStatus();
-    status.clientId = extractString(json, "clientId");
-    status.timestamp = extractLong(json, "ts", 0L);
-    status.cpuLoad = extractDouble(json, "cpuLoad", -1.0);
-    status.ramUsedMb = extractLong(json, "ramUsedMb", -1L);
-    status.ramTotalMb = extractLong(json, "ramTotalMb", -1L);
-    status.processCount = countOccurrences(json, "\"pid\":");
-    if (status.clientId == null) {
+  static byte[] decodeScreenshotData(String line) {
+    String data = extractTokenValue(line, "data");
+    if (data == null || data.isEmpty()) {
+      return null;
+    }
+    return Base64.getDecoder().decode(data);
+  }
+
+  static StatusReport parseStatus(ClientSession session, String json) {
+    StatusReport report = session.report;
+    if (!session.statusParser.parse(json, report) || report.clientId == null) {
       return null;
     }
-    return status;
+    return report;
+  }
+
+  private static StatusReport decodeStatus(ByteBuffer frame, StatusReport report)
+      throws IOException {
+    report.clear();
+    report.clientId = WireProtocol.readString(frame);
+    report.timestamp = frame.getLong();
+    report.cpuLoad = frame.getDouble();
+    report.ramUsedMb = frame.getLong();
+    report.ramTotalMb = frame.getLong();
+    int count = frame.getInt();
+    if (count < 0 || count > frame.remaining() / 12) {
+      throw new IOException("bad process count " + count);
+    }
+    for (int i = 0; i < count; i++) {
+      int index = report.reserveProcess();
+      report.pids[index] = frame.getLong();
+      report.commands[index] = WireProtocol.readString(frame);
+      report.users[index] = "";
+    }
+    return report;
+  }
+
+  private static StatusReport decodeStatusDelta(ByteBuffer frame, StatusReport report)
+      throws IOException {
+    report.clear();
+    report.clientId = WireProtocol.readString(frame);
+    report.timestamp = frame.getLong();
+    report.cpuLoad = frame.getDouble();
+    report.ramUsedMb = frame.getLong();
+    report.ramTotalMb = frame.getLong();
+    report.processesFull = frame.get() != 0;
+    report.processSeq = frame.getLong();
+    report.processBase = frame.getLong();
+    report.processTotal = frame.getInt();
+    int count = frame.getInt();
+    if (count < 0 || count > frame.remaining() / 32) {
+      throw new IOException("bad process count " + count);
+    }
+    for (int i = 0; i < count; i++) {
+      int index = report.reserveProcess();
+      report.pids[index] = frame.getLong();
+      report.startMs[index] = frame.getLong();
+      report.cpuMs[index] = frame.getLong();
+      report.users[index] = WireProtocol.readString(frame);
+      report.commands[index] = WireProtocol.readString(frame);
+    }
+    int removed = frame.getInt();
+    if (removed < 0 || removed > frame.remaining() / 8) {
+      throw new IOException("bad removed count " + removed);
+    }
+    for (int i = 0; i < removed; i++) {
+      report.addRemoved(frame.getLong());
+    }
+    if (!frame.hasRemaining()) {
+      return report;
+    }
+    for (int i = 0; i < report.loadAvg.length; i++) {
+      report.loadAvg[i] = frame.getDouble();
+    }
+    int cores = frame.getInt();
+    if (cores < 0 || cores > frame.remaining() / 8) {
+      throw new IOException("bad core count " + cores);
+    }
+    for (int i = 0; i < cores; i++) {
+      report.addCoreLoad(frame.getDouble());
+    }
+    report.diskReadBps = frame.getLong();
+    report.diskWriteBps = frame.getLong();
+    report.netRxBps = frame.getLong();
+    report.netTxBps = frame.getLong();
+    report.collectMicros = frame.getLong();
+    report.agentCpuPct = frame.getDouble();
+    report.agentAllocBps = frame.getLong();
+    if (!frame.hasRemaining()) {
+      return report;
+    }
+    int samples = frame.getInt();
+    if (samples < 0 || samples > frame.remaining() / 24) {
+      throw new IOException("bad sample count " + samples);
+    }
+    for (int i = 0; i < samples; i++) {
+      int index = report.reserveSample();
+      report.sampleTs[index] = frame.getLong();
+      report.sampleCpu[index] = frame.getDouble();
+      report.sampleRam[index] = frame.getLong();
+    }
+    if (frame.hasRemaining()) {
+      String tag = WireProtocol.readString(frame);
+      report.tag = tag.isEmpty() ? null : tag;
+    }
+    return report;
   }
 
-  private void upsertStatus(ClientStatus incoming) {
-    long now = incoming.lastSeen > 0 ? incoming.lastSeen : System.currentTimeMillis();
-    statusByClient.compute(incoming.clientId, (id, current) -> {
+  ClientStatus upsertStatus(StatusReport incoming, int processCount, long now,
+      boolean[] cameOnline) {
+    return statusByClient.compute(incoming.clientId, (id, current) -> {
       if (current == null) {
-        incoming.online = true;
-        incoming.lastChange = now;
-        return incoming;
+        current = new ClientStatus();
+        current.clientId = id;
+        current.online = true;
+        current.lastChange = now;
+        cameOnline[0] = true;
       }
       current.timestamp = incoming.timestamp;
       current.cpuLoad = incoming.cpuLoad;
       current.ramUsedMb = incoming.ramUsedMb;
       current.ramTotalMb = incoming.ramTotalMb;
-      current.processCount = incoming.processCount;
+      current.processCount = processCount;
+      current.loadAvg = incoming.loadAvg.clone();
+      current.coreLoads = Arrays.copyOf(incoming.coreLoads, incoming.coreCount);
+      current.diskReadBps = incoming.diskReadBps;
+      current.diskWriteBps = incoming.diskWriteBps;
+      current.netRxBps = incoming.netRxBps;
+      current.netTxBps = incoming.netTxBps;
+      current.collectMicros = incoming.collectMicros;
+      current.agentCpuPct = incoming.agentCpuPct;
+      current.agentAllocBps = incoming.agentAllocBps;
+      current.tag = incoming.tag;
       current.lastSeen = now;
       if (!current.online) {
         current.online = true;
         current.lastChange = now;
+        cameOnline[0] = true;
       }
       return current;
     });
   }
 
-  private void refreshOnlineStates(long now) {
-    for (ClientStatus status : statusByClient.values()) {
-      if (status.lastSeen > 0 && now - status.lastSeen > OFFLINE_MS) {
-        if (status.online) {
-          status.online = false;
-          status.lastChange = now;
-        }
-      }
+  private void onHeartbeatMissed(String clientId, long now) {
+    ClientStatus status = statusByClient.get(clientId);
+    if (status == null) {
+      return;
     }
+    if (now - status.lastSeen < OFFLINE_MS) {
+      offlineTimers.schedule(clientId, status.lastSeen + OFFLINE_MS);
+      return;
+    }
+    markOffline(clientId, now);
   }
 
   private void markOffline(String clientId, long now) {
+    offlineTimers.cancel(clientId);
     ClientStatus status = statusByClient.get(clientId);
     if (status != null && status.online) {
+      setOffline(status, now);
+    }
+  }
+
+  private void setOffline(ClientStatus status, long now) {
+    synchronized (status) {
+      if (!status.online) {
+        return;
+      }
       status.online = false;
       status.lastChange = now;
     }
+    if (store != null) {
+      store.appendState(status.clientId, now, false);
+    }
+    clientChanged(status.clientId);
+    firePresence(status.clientId, false, now);
   }
 
-  private static String extractString(String json, String key) {
-    String needle = "\"" + key + "\":\"";
-    int idx = json.indexOf(needle);
-    if (idx < 0) {
-      return null;
-    }
-    int start = idx + needle.length();
-    StringBuilder sb = new StringBuilder();
-    boolean escape = false;
-    for (int i = start; i < json.length(); i++) {
-      char c = json.charAt(i);
-      if (escape) {
-        sb.append(c);
-        escape = false;
-        continue;
-      }
-      if (c == '\\') {
-        escape = true;
-        continue;
-      }
-      if (c == '"') {
-        return sb.toString();
-      }
-      sb.append(c);
+  private void publishAlert(AlertEngine.Alert alert) {
+    System.out.println("Alert " + (alert.firing ? "firing" : "resolved") + " for "
+        + alert.clientId + ": " + alert.rule.describe(alert.value));
+    if (statusEvents.hasSubscribers()) {
+      statusEvents.publish("alert:" + alert.id, "event: alert\ndata: " + alert.toJson() + "\n\n");
     }
-    return null;
   }
 
-  private static long extractLong(String json, String key, long fallback) {
-    String token = extractNumberToken(json, key);
-    if (token == null) {
-      return fallback;
+  void addPresenceListener(PresenceListener listener) {
+    presenceListeners.add(listener);
+  }
+
+  private void firePresence(String clientId, boolean online, long at) {
+    for (PresenceListener listener : presenceListeners) {
+      listener.presenceChanged(clientId, online, at);
     }
-    try {
-      return Long.parseLong(token);
-    } catch (NumberFormatException e) {
-      return fallback;
+  }
+
+  private void publishPresence(String clientId, boolean online, long at) {
+    System.out.println("Client " + clientId + (online ? " online" : " offline"));
+    if (statusEvents.hasSubscribers()) {
+      statusEvents.publish("presence:" + clientId, "event: presence\ndata: {\"clientId\":"
+          + formatJsonString(clientId) + ",\"online\":" + online + ",\"at\":" + at + "}\n\n");
     }
   }
 
-  private static double extractDouble(String json, String key, double fallback) {
-    String token = extractNumberToken(json, key);
-    if (token == null) {
-      return fallback;
+  private void openStore() throws IOException {
+    if (STORE_DIR == null || STORE_DIR.isEmpty()) {
+      return;
     }
-    try {
-      return Double.parseDouble(token);
-    } catch (NumberFormatException e) {
-      return fallback;
+    SampleStore opened = new SampleStore(Paths.get(STORE_DIR),
+        Integer.getInteger("monitor.store.segmentMb", 64) * 1024 * 1024,
+        TimeUnit.HOURS.toMillis(Long.getLong("monitor.store.retentionHours", 24L * 14)),
+        TimeUnit.HOURS.toMillis(Long.getLong("monitor.store.compactAfterHours", 24L)));
+    long started = System.currentTimeMillis();
+    long records = opened.recover(started - HISTORY_DEFAULT_RANGE_MS, this::restore);
+    for (ClientStatus status : statusByClient.values()) {
+      if (status.online) {
+        status.online = false;
+        status.lastChange = started;
+      }
+    }
+    for (ClientStatus status : statusByClient.values()) {
+      fleet.update(status.clientId, status.tag, false, status.cpuLoad, status.ramUsedMb,
+          status.ramTotalMb);
+      top.update(status.clientId, false, status.cpuLoad, status.ramUsedMb, status.ramTotalMb,
+          status.processCount);
+      clientChanged(status.clientId);
     }
+    opened.open(this::snapshotState);
+    store = opened;
+    System.out.println("Store " + STORE_DIR + ": recovered " + statusByClient.size()
+        + " clients from " + records + " records in "
+        + (System.currentTimeMillis() - started) + " ms");
   }
 
-  private static String extractNumberToken(String json, String key) {
-    String needle = "\"" + key + "\":";
-    int idx = json.indexOf(needle);
-    if (idx < 0) {
-      return null;
-    }
-    int start = idx + needle.length();
-    int end = start;
-    while (end < json.length()) {
-      char c = json.charAt(end);
-      if ((c >= '0' && c <= '9') || c == '.' || c == '-') {
-        end++;
-      } else {
+  private void restore(SampleStore.Record record) {
+    switch (record.type) {
+      case SampleStore.SNAPSHOT: {
+        ClientStatus status = new ClientStatus();
+        status.clientId = record.clientId;
+        status.timestamp = record.timestamp;
+        status.cpuLoad = record.cpuLoad;
+        status.ramUsedMb = record.ramUsedMb;
+        status.ramTotalMb = record.ramTotalMb;
+        status.processCount = record.processCount;
+        status.lastSeen = record.lastSeen;
+        status.lastChange = record.lastChange;
+        status.online = (record.flag & SNAPSHOT_ONLINE) != 0;
+        if (status.lastSeen > 0) {
+          statusByClient.put(status.clientId, status);
+        }
+        if ((record.flag & SNAPSHOT_APPROVAL_KNOWN) != 0) {
+          monitoringAllowedByClient.put(record.clientId, (record.flag & SNAPSHOT_APPROVED) != 0);
+        }
+        break;
+      }
+      case SampleStore.SAMPLE: {
+        history.record(record.clientId, record.timestamp > 0 ? record.timestamp : record.ts,
+            record.cpuLoad, record.ramUsedMb, record.processCount);
+        if (record.historyOnly) {
+          break;
+        }
+        ClientStatus status = statusByClient.computeIfAbsent(record.clientId, id -> {
+          ClientStatus created = new ClientStatus();
+          created.clientId = id;
+          return created;
+        });
+        status.timestamp = record.timestamp;
+        status.cpuLoad = record.cpuLoad;
+        status.ramUsedMb = record.ramUsedMb;
+        status.ramTotalMb = record.ramTotalMb;
+        status.processCount = record.processCount;
+        status.lastSeen = record.ts;
+        if (!status.online) {
+          status.online = true;
+          status.lastChange = record.ts;
+        }
+        break;
+      }
+      case SampleStore.APPROVAL:
+        monitoringAllowedByClient.put(record.clientId, record.flag != 0);
+        break;
+      case SampleStore.STATE: {
+        ClientStatus status = statusByClient.get(record.clientId);
+        if (status != null) {
+          status.online = record.flag != 0;
+          status.lastChange = record.ts;
+        }
         break;
       }
+      default:
+        break;
     }
-    if (end == start) {
-      return null;
+  }
+
+  private void snapshotState(SampleStore.Visitor sink) {
+    SampleStore.Record record = new SampleStore.Record();
+    long now = System.currentTimeMillis();
+    for (ClientStatus status : statusByClient.values()) {
+      record.ts = now;
+      record.clientId = status.clientId;
+      record.timestamp = status.timestamp;
+      record.cpuLoad = status.cpuLoad;
+      record.ramUsedMb = status.ramUsedMb;
+      record.ramTotalMb = status.ramTotalMb;
+      record.processCount = status.processCount;
+      record.lastSeen = status.lastSeen;
+      record.lastChange = status.lastChange;
+      record.flag = snapshotFlags(status.clientId, status.online);
+      sink.visit(record);
+    }
+    for (Map.Entry<String, Boolean> entry : monitoringAllowedByClient.entrySet()) {
+      if (!statusByClient.containsKey(entry.getKey())) {
+        record.ts = now;
+        record.clientId = entry.getKey();
+        record.timestamp = 0;
+        record.cpuLoad = -1;
+        record.ramUsedMb = -1;
+        record.ramTotalMb = -1;
+        record.processCount = 0;
+        record.lastSeen = 0;
+        record.lastChange = 0;
+        record.flag = snapshotFlags(entry.getKey(), false);
+        sink.visit(record);
+      }
     }
-    return json.substring(start, end);
   }
 
-  private static int countOccurrences(String text, String token) {
-    int count = 0;
-    int idx = 0;
-    while ((idx = text.indexOf(token, idx)) >= 0) {
-      count++;
-      idx += token.length();
+  private byte snapshotFlags(String clientId, boolean online) {
+    Boolean allowed = monitoringAllowedByClient.get(clientId);
+    int flags = online ? SNAPSHOT_ONLINE : 0;
+    if (allowed != null) {
+      flags |= SNAPSHOT_APPROVAL_KNOWN;
+      if (allowed) {
+        flags |= SNAPSHOT_APPROVED;
+      }
     }
-    return count;
+    return (byte) flags;
   }
 
-  private static String escape(String value) {
+  static String escape(String value) {
     if (value == null) {
       return "";
     }
@@ -470,14 +2046,14 @@ public class ServerMain {
     return Boolean.TRUE.equals(allowed);
   }
 
-  private static String formatJsonString(String value) {
+  static String formatJsonString(String value) {
     if (value == null) {
       return "null";
     }
     return "\"" + escape(value) + "\"";
   }
 
-  private static String extractQueryParam(String query, String key) {
+  static String extractQueryParam(String query, String key) {
     if (query == null || query.isEmpty()) {
       return null;
     }
@@ -491,6 +2067,32 @@ public class ServerMain {
     return null;
   }
 
+  private static long parseLongParam(String query, String key, long fallback) {
+    return parseLong(extractQueryParam(query, key), fallback);
+  }
+
+  private static long parseLong(String value, long fallback) {
+    if (value == null || value.isEmpty()) {
+      return fallback;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return fallback;
+    }
+  }
+
+  private static double parseDouble(String value, double fallback) {
+    if (value == null || value.isEmpty()) {
+      return fallback;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return fallback;
+    }
+  }
+
   private static String decodeComponent(String value) {
     if (value == null) {
       return null;
@@ -498,7 +2100,7 @@ public class ServerMain {
     return value.replace("+", " ");
   }
 
-  private static String extractTokenValue(String line, String key) {
+  static String extractTokenValue(String line, String key) {
     String token = key + "=";
     int idx = line.indexOf(token);
     if (idx < 0) {
@@ -512,13 +2114,49 @@ public class ServerMain {
     return line.substring(start, end);
   }
 
-  private static String formatDouble(double value) {
+  static String formatDouble(double value) {
     if (value < 0) {
       return "null";
     }
     return String.format(java.util.Locale.US, "%.4f", value);
   }
 
+  private static String screenshotTag(long ts, int size) {
+    return "\"" + Long.toString(ts, 36) + "-" + ScreenshotStore.SIZES[size] + "\"";
+  }
+
+  private static String httpDate(long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+        Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+  }
+
+  private static boolean isNotModified(HttpExchange exchange, String etag, long modified) {
+    String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+    if (match != null) {
+      for (String candidate : match.split(",")) {
+        String tag = candidate.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals(etag) || tag.equals("*")) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String since = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+    if (since == null || modified <= 0) {
+      return false;
+    }
+    try {
+      long sinceMillis = ZonedDateTime.parse(since, DateTimeFormatter.RFC_1123_DATE_TIME)
+          .toInstant().toEpochMilli();
+      return modified / 1000 <= sinceMillis / 1000;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
   private static String contentTypeForFormat(String format) {
     if (format == null) {
       return "application/octet-stream";
@@ -533,16 +2171,28 @@ public class ServerMain {
     return "application/octet-stream";
   }
 
-  private static class ClientStatus {
+  static class ClientStatus {
     String clientId;
     long timestamp;
     double cpuLoad;
     long ramUsedMb;
     long ramTotalMb;
     int processCount;
+    double[] loadAvg = {-1.0, -1.0, -1.0};
+    double[] coreLoads = new double[0];
+    long diskReadBps = -1L;
+    long diskWriteBps = -1L;
+    long netRxBps = -1L;
+    long netTxBps = -1L;
+    long collectMicros = -1L;
+    double agentCpuPct = -1.0;
+    long agentAllocBps = -1L;
+    String tag;
     long lastSeen;
     boolean online;
     long lastChange;
+    volatile long version;
+    volatile Fragment fragment;
 
     String toSummary() {
       String cpu = cpuLoad < 0 ? "n/a" : String.format("%.1f%%", cpuLoad * 100.0);
@@ -556,9 +2206,72 @@ public class ServerMain {
     }
   }
 
-  private static class Screenshot {
-    byte[] data;
-    String format;
-    long ts;
+  interface PresenceListener {
+    void presenceChanged(String clientId, boolean online, long at);
+  }
+
+  private static final class Fragment {
+    final long version;
+    final String json;
+
+    Fragment(long version, String json) {
+      this.version = version;
+      this.json = json;
+    }
+  }
+
+  private static final class StaticAsset {
+    final byte[] data;
+    final byte[] gzipped;
+    final String contentType;
+    final String version;
+    final String etag;
+    final String gzipEtag;
+
+    StaticAsset(byte[] data, byte[] gzipped, String contentType, String version) {
+      this.data = data;
+      this.gzipped = gzipped;
+      this.contentType = contentType;
+      this.version = version;
+      this.etag = "\"" + version + "\"";
+      this.gzipEtag = "\"" + version + "-gz\"";
+    }
+  }
+
+  private static final class Tombstone {
+    final String clientId;
+    final long removedAt;
+
+    Tombstone(String clientId, long removedAt) {
+      this.clientId = clientId;
+      this.removedAt = removedAt;
+    }
+  }
+
+  private final class CountingInputStream extends FilterInputStream {
+    private final ClientSession session;
+
+    CountingInputStream(InputStream input, ClientSession session) {
+      super(input);
+      this.session = session;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        onBytesRead(session, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        onBytesRead(session, read);
+      }
+      return read;
+    }
   }
 }
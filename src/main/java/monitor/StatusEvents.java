@@ -0,0 +1,70 @@
+package monitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class StatusEvents {
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+  boolean hasSubscribers() {
+    return !subscribers.isEmpty();
+  }
+
+  Subscriber subscribe() {
+    Subscriber subscriber = new Subscriber();
+    subscribers.add(subscriber);
+    return subscriber;
+  }
+
+  void unsubscribe(Subscriber subscriber) {
+    subscribers.remove(subscriber);
+  }
+
+  void publish(String key, String event) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.offer(key, event);
+    }
+  }
+
+  static final class Subscriber {
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    void offer(String key, String event) {
+      lock.lock();
+      try {
+        pending.put(key, event);
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    List<String> await(long timeoutMs) throws InterruptedException {
+      lock.lock();
+      try {
+        long wait = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (pending.isEmpty()) {
+          if (wait <= 0) {
+            return null;
+          }
+          wait = changed.awaitNanos(wait);
+        }
+        List<String> events = new ArrayList<>(pending.values());
+        pending.clear();
+        return events;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,803 @@
+package monitor;
+
+import java.util.Arrays;
+
+final class StatusParser {
+  private static final int MAX_DEPTH = 64;
+  private static final int KEY_OTHER = 0;
+  private static final int KEY_CLIENT_ID = 1;
+  private static final int KEY_TS = 2;
+  private static final int KEY_CPU_LOAD = 3;
+  private static final int KEY_RAM_USED = 4;
+  private static final int KEY_RAM_TOTAL = 5;
+  private static final int KEY_PROCESSES = 6;
+  private static final int KEY_PID = 7;
+  private static final int KEY_CMD = 8;
+  private static final int KEY_USER = 9;
+  private static final int KEY_START_MS = 10;
+  private static final int KEY_CPU_MS = 11;
+  private static final int KEY_PROC_SEQ = 12;
+  private static final int KEY_PROC_BASE = 13;
+  private static final int KEY_PROCESS_COUNT = 14;
+  private static final int KEY_PROC_CHANGED = 15;
+  private static final int KEY_PROC_REMOVED = 16;
+  private static final int KEY_LOAD_AVG = 17;
+  private static final int KEY_CORES = 18;
+  private static final int KEY_DISK_READ = 19;
+  private static final int KEY_DISK_WRITE = 20;
+  private static final int KEY_NET_RX = 21;
+  private static final int KEY_NET_TX = 22;
+  private static final int KEY_COLLECT_US = 23;
+  private static final int KEY_AGENT_CPU = 24;
+  private static final int KEY_AGENT_ALLOC = 25;
+  private static final int KEY_SAMPLES = 26;
+  private static final int KEY_TAG = 27;
+  private static final double[] POW10 = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private char[] scratch = new char[128];
+  private char[] compare = new char[128];
+  private char[] compareOther = new char[128];
+  private int scratchLength;
+  private String text;
+  private String previousClientId;
+  private String previousTag;
+  private int pos;
+  private int escapeAt;
+  private int end;
+  private int numberStart;
+  private long mantissa;
+  private int digits;
+  private int fractionDigits;
+  private boolean negative;
+  private boolean exponent;
+
+  boolean parse(String json, StatusReport report) {
+    text = json;
+    pos = 0;
+    escapeAt = -1;
+    end = json.length();
+    previousClientId = report.clientId;
+    previousTag = report.tag;
+    report.clear();
+    try {
+      skipWhitespace();
+      expect('{');
+      parseStatus(report);
+      skipWhitespace();
+      return pos == end;
+    } catch (MalformedException e) {
+      return false;
+    } finally {
+      text = null;
+      previousClientId = null;
+      previousTag = null;
+    }
+  }
+
+  private void parseStatus(StatusReport report) throws MalformedException {
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+      return;
+    }
+    while (true) {
+      skipWhitespace();
+      int key = readKey();
+      skipWhitespace();
+      expect(':');
+      skipWhitespace();
+      char c = peek();
+      if (key == KEY_CLIENT_ID && c == '"') {
+        pos++;
+        report.clientId = readString(previousClientId);
+      } else if (key == KEY_TAG && c == '"') {
+        pos++;
+        report.tag = readString(previousTag);
+      } else if (key == KEY_TS && isNumberStart(c)) {
+        report.timestamp = readLong();
+      } else if (key == KEY_CPU_LOAD && isNumberStart(c)) {
+        report.cpuLoad = readDouble();
+      } else if (key == KEY_RAM_USED && isNumberStart(c)) {
+        report.ramUsedMb = readLong();
+      } else if (key == KEY_RAM_TOTAL && isNumberStart(c)) {
+        report.ramTotalMb = readLong();
+      } else if (key == KEY_PROC_SEQ && isNumberStart(c)) {
+        report.processSeq = readLong();
+      } else if (key == KEY_PROC_BASE && isNumberStart(c)) {
+        report.processBase = readLong();
+      } else if (key == KEY_PROCESS_COUNT && isNumberStart(c)) {
+        report.processTotal = (int) readLong();
+      } else if ((key == KEY_PROCESSES || key == KEY_PROC_CHANGED) && c == '[') {
+        pos++;
+        if (key == KEY_PROC_CHANGED) {
+          report.processesFull = false;
+        }
+        parseProcesses(report);
+      } else if (key == KEY_PROC_REMOVED && c == '[') {
+        pos++;
+        report.processesFull = false;
+        parseRemoved(report);
+      } else if ((key == KEY_LOAD_AVG || key == KEY_CORES) && c == '[') {
+        pos++;
+        parseLoads(report, key == KEY_CORES);
+      } else if (key == KEY_SAMPLES && c == '[') {
+        pos++;
+        parseSamples(report);
+      } else if (key == KEY_DISK_READ && isNumberStart(c)) {
+        report.diskReadBps = readLong();
+      } else if (key == KEY_DISK_WRITE && isNumberStart(c)) {
+        report.diskWriteBps = readLong();
+      } else if (key == KEY_NET_RX && isNumberStart(c)) {
+        report.netRxBps = readLong();
+      } else if (key == KEY_NET_TX && isNumberStart(c)) {
+        report.netTxBps = readLong();
+      } else if (key == KEY_COLLECT_US && isNumberStart(c)) {
+        report.collectMicros = readLong();
+      } else if (key == KEY_AGENT_CPU && isNumberStart(c)) {
+        report.agentCpuPct = readDouble();
+      } else if (key == KEY_AGENT_ALLOC && isNumberStart(c)) {
+        report.agentAllocBps = readLong();
+      } else {
+        skipValue(1);
+      }
+      if (!endMember('}')) {
+        return;
+      }
+    }
+  }
+
+  private void parseProcesses(StatusReport report) throws MalformedException {
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return;
+    }
+    while (true) {
+      skipWhitespace();
+      if (peek() == '{') {
+        pos++;
+        parseProcess(report, report.reserveProcess());
+      } else {
+        skipValue(2);
+      }
+      if (!endMember(']')) {
+        return;
+      }
+    }
+  }
+
+  private void parseLoads(StatusReport report, boolean cores) throws MalformedException {
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return;
+    }
+    int index = 0;
+    while (true) {
+      skipWhitespace();
+      if (isNumberStart(peek())) {
+        double load = readDouble();
+        if (cores) {
+          report.addCoreLoad(load);
+        } else if (index < report.loadAvg.length) {
+          report.loadAvg[index] = load;
+        }
+      } else {
+        skipValue(2);
+      }
+      index++;
+      if (!endMember(']')) {
+        return;
+      }
+    }
+  }
+
+  private void parseSamples(StatusReport report) throws MalformedException {
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return;
+    }
+    while (true) {
+      skipWhitespace();
+      if (peek() == '[') {
+        pos++;
+        parseSample(report, report.reserveSample());
+      } else {
+        skipValue(2);
+      }
+      if (!endMember(']')) {
+        return;
+      }
+    }
+  }
+
+  private void parseSample(StatusReport report, int index) throws MalformedException {
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return;
+    }
+    int field = 0;
+    while (true) {
+      skipWhitespace();
+      char c = peek();
+      if (field == 0 && isNumberStart(c)) {
+        report.sampleTs[index] = readLong();
+      } else if (field == 1 && isNumberStart(c)) {
+        report.sampleCpu[index] = readDouble();
+      } else if (field == 2 && isNumberStart(c)) {
+        report.sampleRam[index] = readLong();
+      } else {
+        skipValue(3);
+      }
+      field++;
+      if (!endMember(']')) {
+        return;
+      }
+    }
+  }
+
+  private void parseRemoved(StatusReport report) throws MalformedException {
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return;
+    }
+    while (true) {
+      skipWhitespace();
+      if (isNumberStart(peek())) {
+        report.addRemoved(readLong());
+      } else {
+        skipValue(2);
+      }
+      if (!endMember(']')) {
+        return;
+      }
+    }
+  }
+
+  private void parseProcess(StatusReport report, int index) throws MalformedException {
+    String previous = report.commands[index];
+    String previousUser = report.users[index];
+    report.commands[index] = "";
+    report.users[index] = "";
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+      return;
+    }
+    while (true) {
+      skipWhitespace();
+      int key = readKey();
+      skipWhitespace();
+      expect(':');
+      skipWhitespace();
+      char c = peek();
+      if (key == KEY_PID && isNumberStart(c)) {
+        report.pids[index] = readLong();
+      } else if (key == KEY_CMD && c == '"') {
+        pos++;
+        report.commands[index] = readString(previous);
+      } else if (key == KEY_USER && c == '"') {
+        pos++;
+        report.users[index] = readString(previousUser);
+      } else if (key == KEY_START_MS && isNumberStart(c)) {
+        report.startMs[index] = readLong();
+      } else if (key == KEY_CPU_MS && isNumberStart(c)) {
+        report.cpuMs[index] = readLong();
+      } else {
+        skipValue(3);
+      }
+      if (!endMember('}')) {
+        return;
+      }
+    }
+  }
+
+  private boolean endMember(char close) throws MalformedException {
+    skipWhitespace();
+    char c = next();
+    if (c == ',') {
+      return true;
+    }
+    if (c == close) {
+      return false;
+    }
+    throw new MalformedException();
+  }
+
+  private int readKey() throws MalformedException {
+    expect('"');
+    String json = text;
+    int start = pos;
+    for (int i = start; i < end; i++) {
+      char c = json.charAt(i);
+      if (c == '"') {
+        pos = i + 1;
+        return keyAt(start, i - start);
+      }
+      if (c == '\\' || c < 0x20) {
+        break;
+      }
+    }
+    readString(null);
+    return KEY_OTHER;
+  }
+
+  private int keyAt(int start, int length) {
+    switch (length) {
+      case 2:
+        return matches(start, "ts") ? KEY_TS : KEY_OTHER;
+      case 3:
+        if (matches(start, "pid")) {
+          return KEY_PID;
+        }
+        if (matches(start, "tag")) {
+          return KEY_TAG;
+        }
+        return matches(start, "cmd") ? KEY_CMD : KEY_OTHER;
+      case 4:
+        return matches(start, "user") ? KEY_USER : KEY_OTHER;
+      case 5:
+        if (matches(start, "cpuMs")) {
+          return KEY_CPU_MS;
+        }
+        return matches(start, "cores") ? KEY_CORES : KEY_OTHER;
+      case 7:
+        if (matches(start, "cpuLoad")) {
+          return KEY_CPU_LOAD;
+        }
+        if (matches(start, "startMs")) {
+          return KEY_START_MS;
+        }
+        if (matches(start, "loadAvg")) {
+          return KEY_LOAD_AVG;
+        }
+        if (matches(start, "samples")) {
+          return KEY_SAMPLES;
+        }
+        return matches(start, "procSeq") ? KEY_PROC_SEQ : KEY_OTHER;
+      case 8:
+        if (matches(start, "clientId")) {
+          return KEY_CLIENT_ID;
+        }
+        if (matches(start, "netRxBps")) {
+          return KEY_NET_RX;
+        }
+        if (matches(start, "netTxBps")) {
+          return KEY_NET_TX;
+        }
+        return matches(start, "procBase") ? KEY_PROC_BASE : KEY_OTHER;
+      case 9:
+        if (matches(start, "ramUsedMb")) {
+          return KEY_RAM_USED;
+        }
+        if (matches(start, "collectUs")) {
+          return KEY_COLLECT_US;
+        }
+        return matches(start, "processes") ? KEY_PROCESSES : KEY_OTHER;
+      case 10:
+        return matches(start, "ramTotalMb") ? KEY_RAM_TOTAL : KEY_OTHER;
+      case 11:
+        if (matches(start, "procChanged")) {
+          return KEY_PROC_CHANGED;
+        }
+        if (matches(start, "diskReadBps")) {
+          return KEY_DISK_READ;
+        }
+        if (matches(start, "agentCpuPct")) {
+          return KEY_AGENT_CPU;
+        }
+        return matches(start, "procRemoved") ? KEY_PROC_REMOVED : KEY_OTHER;
+      case 12:
+        if (matches(start, "diskWriteBps")) {
+          return KEY_DISK_WRITE;
+        }
+        return matches(start, "processCount") ? KEY_PROCESS_COUNT : KEY_OTHER;
+      case 13:
+        return matches(start, "agentAllocBps") ? KEY_AGENT_ALLOC : KEY_OTHER;
+      default:
+        return KEY_OTHER;
+    }
+  }
+
+  private boolean matches(int start, String key) {
+    return sameChars(text, start, key, key.length());
+  }
+
+  private static boolean sameChars(String json, int start, String other, int length) {
+    for (int i = 0; i < length; i++) {
+      if (json.charAt(start + i) != other.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Finds the closing quote and the next backslash with String.indexOf, which is intrinsified,
+  // instead of walking the body one char at a time. Control characters only need checking when
+  // the value differs from the previous one; an identical value was already validated.
+  private String readString(String previous) throws MalformedException {
+    String json = text;
+    int start = pos;
+    int close = json.indexOf('"', start);
+    if (close < 0) {
+      throw new MalformedException();
+    }
+    if (nextEscape(start) < close) {
+      scratchLength = 0;
+      return readEscapedString(previous);
+    }
+    pos = close + 1;
+    int length = close - start;
+    if (previous != null && previous.length() == length
+        && sameRegion(start, previous, length)) {
+      return previous;
+    }
+    for (int i = start; i < close; i++) {
+      if (json.charAt(i) < 0x20) {
+        throw new MalformedException();
+      }
+    }
+    return json.substring(start, close);
+  }
+
+  private int nextEscape(int from) {
+    if (escapeAt < from) {
+      escapeAt = text.indexOf('\\', from);
+      if (escapeAt < 0) {
+        escapeAt = end;
+      }
+    }
+    return escapeAt;
+  }
+
+  // getChars and Arrays.equals are vectorized, unlike a charAt or regionMatches loop.
+  private boolean sameRegion(int start, String other, int length) {
+    if (length < 16) {
+      return sameChars(text, start, other, length);
+    }
+    ensureCompare(length);
+    text.getChars(start, start + length, compare, 0);
+    return sameChars(compare, other, length);
+  }
+
+  private boolean sameChars(char[] chars, String other, int length) {
+    ensureCompare(length);
+    other.getChars(0, length, compareOther, 0);
+    return Arrays.equals(chars, 0, length, compareOther, 0, length);
+  }
+
+  private void ensureCompare(int length) {
+    if (compare.length < length) {
+      compare = new char[Math.max(length, compare.length * 2)];
+      compareOther = new char[compare.length];
+    }
+  }
+
+  private void appendScratch(String json, int from, int to) {
+    ensureScratch(to - from);
+    json.getChars(from, to, scratch, scratchLength);
+    scratchLength += to - from;
+  }
+
+  private void appendScratch(char c) {
+    ensureScratch(1);
+    scratch[scratchLength++] = c;
+  }
+
+  private void ensureScratch(int extra) {
+    if (scratchLength + extra > scratch.length) {
+      scratch = Arrays.copyOf(scratch, Math.max(scratchLength + extra, scratch.length * 2));
+    }
+  }
+
+  // Copies the runs between backslashes in bulk rather than a char at a time.
+  private String readEscapedString(String previous) throws MalformedException {
+    String json = text;
+    while (pos < end) {
+      int close = json.indexOf('"', pos);
+      if (close < 0) {
+        throw new MalformedException();
+      }
+      int stop = Math.min(close, nextEscape(pos));
+      for (int i = pos; i < stop; i++) {
+        if (json.charAt(i) < 0x20) {
+          throw new MalformedException();
+        }
+      }
+      appendScratch(json, pos, stop);
+      pos = stop + 1;
+      if (stop == close) {
+        if (previous != null && previous.length() == scratchLength
+            && sameChars(scratch, previous, scratchLength)) {
+          return previous;
+        }
+        return new String(scratch, 0, scratchLength);
+      }
+      char escaped = next();
+      switch (escaped) {
+        case '"':
+        case '\\':
+        case '/':
+          appendScratch(escaped);
+          break;
+        case 'b':
+          appendScratch('\b');
+          break;
+        case 'f':
+          appendScratch('\f');
+          break;
+        case 'n':
+          appendScratch('\n');
+          break;
+        case 'r':
+          appendScratch('\r');
+          break;
+        case 't':
+          appendScratch('\t');
+          break;
+        case 'u':
+          appendScratch(readHexChar());
+          break;
+        default:
+          throw new MalformedException();
+      }
+    }
+    throw new MalformedException();
+  }
+
+  private char readHexChar() throws MalformedException {
+    if (end - pos < 4) {
+      throw new MalformedException();
+    }
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(text.charAt(pos++), 16);
+      if (digit < 0) {
+        throw new MalformedException();
+      }
+      value = (value << 4) | digit;
+    }
+    return (char) value;
+  }
+
+  // Plain non-negative integers (pids, timestamps, counters) take a loop with no field writes;
+  // anything with a sign, fraction, exponent or leading zero goes through scanNumber.
+  private long readLong() throws MalformedException {
+    String json = text;
+    int i = pos;
+    long value = 0L;
+    while (i < end && i - pos < 18) {
+      int digit = json.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      value = value * 10 + digit;
+      i++;
+    }
+    if (i > pos && (i == pos + 1 || json.charAt(pos) != '0')
+        && (i == end || !isNumberTail(json.charAt(i)))) {
+      pos = i;
+      return value;
+    }
+    scanNumber();
+    if (!exponent && fractionDigits == 0 && digits <= 18) {
+      return negative ? -mantissa : mantissa;
+    }
+    return (long) Double.parseDouble(text.substring(numberStart, pos));
+  }
+
+  private double readDouble() throws MalformedException {
+    scanNumber();
+    if (!exponent && digits <= 15) {
+      double value = mantissa / POW10[fractionDigits];
+      return negative ? -value : value;
+    }
+    return Double.parseDouble(text.substring(numberStart, pos));
+  }
+
+  private void scanNumber() throws MalformedException {
+    numberStart = pos;
+    mantissa = 0L;
+    digits = 0;
+    fractionDigits = 0;
+    exponent = false;
+    negative = peek() == '-';
+    if (negative) {
+      pos++;
+    }
+    if (peek() == '0') {
+      pos++;
+    } else if (!scanDigits(false)) {
+      throw new MalformedException();
+    }
+    if (pos < end && text.charAt(pos) == '.') {
+      pos++;
+      int before = pos;
+      scanDigits(true);
+      if (pos == before) {
+        throw new MalformedException();
+      }
+    }
+    if (pos < end && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+      exponent = true;
+      pos++;
+      if (pos < end && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+        pos++;
+      }
+      int before = pos;
+      while (pos < end && isDigit(text.charAt(pos))) {
+        pos++;
+      }
+      if (pos == before) {
+        throw new MalformedException();
+      }
+    }
+  }
+
+  private boolean scanDigits(boolean fraction) {
+    String json = text;
+    long value = mantissa;
+    int count = digits;
+    int i = pos;
+    for (; i < end; i++) {
+      char c = json.charAt(i);
+      if (!isDigit(c)) {
+        break;
+      }
+      if (count < 18) {
+        value = value * 10 + (c - '0');
+        if (fraction) {
+          fractionDigits++;
+        }
+      }
+      count++;
+    }
+    boolean scanned = i > pos;
+    mantissa = value;
+    digits = count;
+    pos = i;
+    return scanned;
+  }
+
+  private void skipValue(int depth) throws MalformedException {
+    if (depth > MAX_DEPTH) {
+      throw new MalformedException();
+    }
+    char c = peek();
+    switch (c) {
+      case '"':
+        pos++;
+        skipString();
+        return;
+      case '{':
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+          pos++;
+          return;
+        }
+        do {
+          skipWhitespace();
+          expect('"');
+          skipString();
+          skipWhitespace();
+          expect(':');
+          skipWhitespace();
+          skipValue(depth + 1);
+        } while (endMember('}'));
+        return;
+      case '[':
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+          pos++;
+          return;
+        }
+        do {
+          skipWhitespace();
+          skipValue(depth + 1);
+        } while (endMember(']'));
+        return;
+      case 't':
+        expectLiteral("true");
+        return;
+      case 'f':
+        expectLiteral("false");
+        return;
+      case 'n':
+        expectLiteral("null");
+        return;
+      default:
+        if (!isNumberStart(c)) {
+          throw new MalformedException();
+        }
+        scanNumber();
+    }
+  }
+
+  private void skipString() throws MalformedException {
+    while (pos < end) {
+      char c = text.charAt(pos++);
+      if (c == '"') {
+        return;
+      }
+      if (c < 0x20) {
+        throw new MalformedException();
+      }
+      if (c == '\\') {
+        char escaped = next();
+        if (escaped == 'u') {
+          readHexChar();
+        } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+          throw new MalformedException();
+        }
+      }
+    }
+    throw new MalformedException();
+  }
+
+  private void expectLiteral(String literal) throws MalformedException {
+    if (!text.startsWith(literal, pos)) {
+      throw new MalformedException();
+    }
+    pos += literal.length();
+  }
+
+  private void skipWhitespace() {
+    String json = text;
+    int i = pos;
+    while (i < end) {
+      char c = json.charAt(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        break;
+      }
+      i++;
+    }
+    pos = i;
+  }
+
+  private void expect(char expected) throws MalformedException {
+    if (next() != expected) {
+      throw new MalformedException();
+    }
+  }
+
+  private char next() throws MalformedException {
+    if (pos >= end) {
+      throw new MalformedException();
+    }
+    return text.charAt(pos++);
+  }
+
+  private char peek() throws MalformedException {
+    if (pos >= end) {
+      throw new MalformedException();
+    }
+    return text.charAt(pos);
+  }
+
+  private static boolean isNumberStart(char c) {
+    return c == '-' || isDigit(c);
+  }
+
+  private static boolean isNumberTail(char c) {
+    return isDigit(c) || c == '.' || c == 'e' || c == 'E';
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static final class MalformedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    MalformedException() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package monitor;
+
+import java.util.Arrays;
+
+class StatusReport {
+  String clientId;
+  String tag;
+  long timestamp;
+  double cpuLoad;
+  long ramUsedMb;
+  long ramTotalMb;
+  boolean processesFull;
+  long processSeq;
+  long processBase;
+  int processTotal;
+  int processCount;
+  long[] pids = new long[64];
+  String[] commands = new String[64];
+  String[] users = new String[64];
+  long[] startMs = new long[64];
+  long[] cpuMs = new long[64];
+  int removedCount;
+  long[] removed = new long[16];
+  final double[] loadAvg = new double[3];
+  int coreCount;
+  double[] coreLoads = new double[8];
+  long diskReadBps;
+  long diskWriteBps;
+  long netRxBps;
+  long netTxBps;
+  long collectMicros;
+  double agentCpuPct;
+  long agentAllocBps;
+  int sampleCount;
+  long[] sampleTs = new long[16];
+  double[] sampleCpu = new double[16];
+  long[] sampleRam = new long[16];
+
+  void clear() {
+    clientId = null;
+    tag = null;
+    timestamp = 0L;
+    cpuLoad = -1.0;
+    ramUsedMb = -1L;
+    ramTotalMb = -1L;
+    processesFull = true;
+    processSeq = -1L;
+    processBase = -1L;
+    processTotal = -1;
+    processCount = 0;
+    removedCount = 0;
+    Arrays.fill(loadAvg, -1.0);
+    coreCount = 0;
+    diskReadBps = -1L;
+    diskWriteBps = -1L;
+    netRxBps = -1L;
+    netTxBps = -1L;
+    collectMicros = -1L;
+    agentCpuPct = -1.0;
+    agentAllocBps = -1L;
+    sampleCount = 0;
+  }
+
+  int reserveProcess() {
+    if (processCount == pids.length) {
+      int capacity = pids.length * 2;
+      pids = Arrays.copyOf(pids, capacity);
+      commands = Arrays.copyOf(commands, capacity);
+      users = Arrays.copyOf(users, capacity);
+      startMs = Arrays.copyOf(startMs, capacity);
+      cpuMs = Arrays.copyOf(cpuMs, capacity);
+    }
+    pids[processCount] = 0L;
+    startMs[processCount] = -1L;
+    cpuMs[processCount] = -1L;
+    return processCount++;
+  }
+
+  void addCoreLoad(double load) {
+    if (coreCount == coreLoads.length) {
+      coreLoads = Arrays.copyOf(coreLoads, coreCount * 2);
+    }
+    coreLoads[coreCount++] = load;
+  }
+
+  int reserveSample() {
+    if (sampleCount == sampleTs.length) {
+      int capacity = sampleCount * 2;
+      sampleTs = Arrays.copyOf(sampleTs, capacity);
+      sampleCpu = Arrays.copyOf(sampleCpu, capacity);
+      sampleRam = Arrays.copyOf(sampleRam, capacity);
+    }
+    sampleTs[sampleCount] = 0L;
+    sampleCpu[sampleCount] = -1.0;
+    sampleRam[sampleCount] = -1L;
+    return sampleCount++;
+  }
+
+  void addRemoved(long pid) {
+    if (removedCount == removed.length) {
+      removed = Arrays.copyOf(removed, removedCount * 2);
+    }
+    removed[removedCount++] = pid;
+  }
+}
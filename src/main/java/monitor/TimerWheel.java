@@ -0,0 +1,111 @@
+package monitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class TimerWheel {
+  private final long tickMs;
+  private final Entry[] slots;
+  private final int mask;
+  private final Map<String, Entry> byKey = new HashMap<>();
+  private long currentTick;
+
+  TimerWheel(long tickMs, int slotCount, long now) {
+    int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+    this.tickMs = tickMs;
+    this.slots = new Entry[size];
+    this.mask = size - 1;
+    this.currentTick = now / tickMs;
+  }
+
+  synchronized void schedule(String key, long deadline) {
+    Entry entry = byKey.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      entry.deadline = deadline;
+      byKey.put(key, entry);
+      link(entry);
+      return;
+    }
+    if (deadline >= entry.deadline) {
+      entry.deadline = deadline;
+      return;
+    }
+    unlink(entry);
+    entry.deadline = deadline;
+    link(entry);
+  }
+
+  synchronized void cancel(String key) {
+    Entry entry = byKey.remove(key);
+    if (entry != null) {
+      unlink(entry);
+    }
+  }
+
+  synchronized int size() {
+    return byKey.size();
+  }
+
+  synchronized List<String> advance(long now) {
+    List<String> due = new ArrayList<>(0);
+    long target = now / tickMs;
+    while (true) {
+      Entry entry = slots[(int) (currentTick & mask)];
+      while (entry != null) {
+        Entry next = entry.next;
+        if (entry.deadline <= now) {
+          unlink(entry);
+          byKey.remove(entry.key);
+          due.add(entry.key);
+        } else if (entry.deadline / tickMs != currentTick) {
+          unlink(entry);
+          link(entry);
+        }
+        entry = next;
+      }
+      if (currentTick >= target) {
+        return due;
+      }
+      currentTick++;
+    }
+  }
+
+  private void link(Entry entry) {
+    int index = (int) (Math.max(entry.deadline / tickMs, currentTick) & mask);
+    entry.slot = index;
+    entry.prev = null;
+    entry.next = slots[index];
+    if (entry.next != null) {
+      entry.next.prev = entry;
+    }
+    slots[index] = entry;
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.prev != null) {
+      entry.prev.next = entry.next;
+    } else {
+      slots[entry.slot] = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.prev = entry.prev;
+    }
+    entry.prev = null;
+    entry.next = null;
+  }
+
+  private static final class Entry {
+    final String key;
+    long deadline;
+    int slot;
+    Entry prev;
+    Entry next;
+
+    Entry(String key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package monitor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+final class TopIndex {
+  static final String[] METRICS = {"cpuLoad", "ramUsedMb", "ramPct", "processCount"};
+
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final List<TreeSet<Entry>> all = new ArrayList<>(METRICS.length);
+  private final List<TreeSet<Entry>> online = new ArrayList<>(METRICS.length);
+
+  TopIndex() {
+    for (int i = 0; i < METRICS.length; i++) {
+      int metric = i;
+      Comparator<Entry> order = (a, b) -> {
+        int byValue = Double.compare(b.values[metric], a.values[metric]);
+        return byValue != 0 ? byValue : a.clientId.compareTo(b.clientId);
+      };
+      all.add(new TreeSet<>(order));
+      online.add(new TreeSet<>(order));
+    }
+  }
+
+  static int metricIndex(String name) {
+    for (int i = 0; i < METRICS.length; i++) {
+      if (METRICS[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  synchronized void update(String clientId, boolean isOnline, double cpuLoad, long ramUsedMb,
+      long ramTotalMb, int processCount) {
+    Entry entry = entries.get(clientId);
+    if (entry == null) {
+      entry = new Entry(clientId);
+      entries.put(clientId, entry);
+    }
+    double ramPct = ramTotalMb > 0 && ramUsedMb >= 0 ? (double) ramUsedMb / ramTotalMb : -1.0;
+    set(entry, 0, cpuLoad);
+    set(entry, 1, ramUsedMb);
+    set(entry, 2, ramPct);
+    set(entry, 3, processCount);
+    setOnline(entry, isOnline);
+  }
+
+  synchronized void setOnline(String clientId, boolean isOnline) {
+    Entry entry = entries.get(clientId);
+    if (entry != null) {
+      setOnline(entry, isOnline);
+    }
+  }
+
+  synchronized void remove(String clientId) {
+    Entry entry = entries.remove(clientId);
+    if (entry == null) {
+      return;
+    }
+    for (int i = 0; i < METRICS.length; i++) {
+      all.get(i).remove(entry);
+      online.get(i).remove(entry);
+    }
+  }
+
+  synchronized List<String> top(int metric, int n, boolean onlineOnly) {
+    List<String> ids = new ArrayList<>(Math.min(n, entries.size()));
+    for (Entry entry : (onlineOnly ? online : all).get(metric)) {
+      if (ids.size() >= n) {
+        break;
+      }
+      ids.add(entry.clientId);
+    }
+    return ids;
+  }
+
+  private void set(Entry entry, int metric, double value) {
+    if (entry.indexed && entry.values[metric] == value) {
+      return;
+    }
+    if (entry.indexed) {
+      all.get(metric).remove(entry);
+      if (entry.online) {
+        online.get(metric).remove(entry);
+      }
+    }
+    entry.values[metric] = value;
+    if (entry.indexed) {
+      all.get(metric).add(entry);
+      if (entry.online) {
+        online.get(metric).add(entry);
+      }
+    }
+  }
+
+  private void setOnline(Entry entry, boolean isOnline) {
+    if (!entry.indexed) {
+      entry.indexed = true;
+      entry.online = isOnline;
+      for (int i = 0; i < METRICS.length; i++) {
+        all.get(i).add(entry);
+        if (isOnline) {
+          online.get(i).add(entry);
+        }
+      }
+      return;
+    }
+    if (entry.online == isOnline) {
+      return;
+    }
+    entry.online = isOnline;
+    for (int i = 0; i < METRICS.length; i++) {
+      if (isOnline) {
+        online.get(i).add(entry);
+      } else {
+        online.get(i).remove(entry);
+      }
+    }
+  }
+
+  private static final class Entry {
+    final String clientId;
+    final double[] values = new double[METRICS.length];
+    boolean indexed;
+    boolean online;
+
+    Entry(String clientId) {
+      this.clientId = clientId;
+    }
+  }
+}
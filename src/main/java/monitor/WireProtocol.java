@@ -0,0 +1,180 @@
+package monitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class WireProtocol {
+  static final String HELLO = "HELLO";
+  static final String BINARY_V1 = "bin1";
+  static final String TEXT = "text";
+  static final String CAP_PUSH = "push";
+  static final String CAP_RESULT = "result";
+  static final String CAP_PROC_DELTA = "procdelta";
+  static final String REDIRECT = "REDIRECT";
+  static final int MAX_FRAME_BYTES = Integer.getInteger("monitor.maxFrameBytes", 64 * 1024 * 1024);
+  static final int MAX_CONTROL_FRAME_BYTES =
+      Integer.getInteger("monitor.maxControlFrameBytes", 1024 * 1024);
+  static final int MAX_LINE_BYTES = Integer.getInteger("monitor.maxLineBytes",
+      Integer.getInteger("monitor.nio.maxLineBytes", 64 * 1024 * 1024));
+
+  static final byte STATUS = 1;
+  static final byte APPROVAL = 2;
+  static final byte SCREENSHOT = 3;
+  static final byte COMMAND = 4;
+  static final byte ACK = 5;
+  static final byte SCREENSHOT_BEGIN = 6;
+  static final byte SCREENSHOT_CHUNK = 7;
+  static final byte SCREENSHOT_END = 8;
+  static final byte TILES_BEGIN = 9;
+  static final byte TILE = 10;
+  static final byte TILES_END = 11;
+  static final byte STREAM_FRAME = 12;
+  static final byte STATUS_DELTA = 13;
+  static final byte PUSH_COMMAND = 14;
+  static final byte RESULT = 15;
+
+  private static final byte[] ACK_FRAME = {0, 0, 0, 1, ACK};
+
+  private WireProtocol() {
+  }
+
+  static String helloLine(String proto, String clientId) {
+    return HELLO + " proto=" + proto + " clientId=" + clientId;
+  }
+
+  static String helloLine(String proto, String clientId, String caps) {
+    return helloLine(proto, clientId) + " caps=" + caps;
+  }
+
+  static String redirectLine(String host, int port) {
+    return REDIRECT + " host=" + host + " port=" + port;
+  }
+
+  static String token(String line, String key) {
+    String prefix = key + "=";
+    for (String part : line.split(" ")) {
+      if (part.startsWith(prefix)) {
+        return part.substring(prefix.length());
+      }
+    }
+    return null;
+  }
+
+  static boolean hasCap(String caps, String cap) {
+    if (caps == null) {
+      return false;
+    }
+    for (String value : caps.split(",")) {
+      if (value.trim().equalsIgnoreCase(cap)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static ByteBuffer ack() {
+    return ByteBuffer.wrap(ACK_FRAME);
+  }
+
+  static ByteBuffer ack(long value) {
+    ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8);
+    frame.putInt(1 + 8).put(ACK).putLong(value);
+    frame.flip();
+    return frame;
+  }
+
+  static ByteBuffer command(String command) {
+    byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4 + bytes.length);
+    frame.putInt(1 + 4 + bytes.length).put(COMMAND).putInt(bytes.length).put(bytes);
+    frame.flip();
+    return frame;
+  }
+
+  static ByteBuffer pushCommand(long id, String command) {
+    byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8 + 4 + bytes.length);
+    frame.putInt(1 + 8 + 4 + bytes.length).put(PUSH_COMMAND).putLong(id)
+        .putInt(bytes.length).put(bytes);
+    frame.flip();
+    return frame;
+  }
+
+  static ByteBuffer reply(String command) {
+    return command == null ? ack() : command(command);
+  }
+
+  static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(ByteBuffer in) throws IOException {
+    int length = in.getInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("bad string length " + length);
+    }
+    String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+        StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  static boolean isBulk(byte type) {
+    return type == SCREENSHOT || type == SCREENSHOT_CHUNK || type == TILE || type == STREAM_FRAME;
+  }
+
+  // Only image payloads from a session that has named its client may use the full frame size;
+  // everything else is capped small so a stray length prefix cannot force a large allocation.
+  static int checkFrameLength(int length, byte type, boolean identified) throws IOException {
+    int max = identified && isBulk(type) ? MAX_FRAME_BYTES : MAX_CONTROL_FRAME_BYTES;
+    if (length < 1 || length > max) {
+      throw new IOException("bad frame length " + length + " for type " + type);
+    }
+    return length;
+  }
+
+  static ByteBuffer readFrame(DataInputStream in, boolean identified) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 1) {
+      throw new IOException("bad frame length " + length);
+    }
+    byte type = in.readByte();
+    byte[] frame = new byte[checkFrameLength(length, type, identified)];
+    frame[0] = type;
+    in.readFully(frame, 1, length - 1);
+    return ByteBuffer.wrap(frame);
+  }
+
+  static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == '\n') {
+        return toLine(line);
+      }
+      if (line.size() >= MAX_LINE_BYTES) {
+        throw new IOException("line exceeds " + MAX_LINE_BYTES + " bytes");
+      }
+      line.write(b);
+    }
+    return line.size() == 0 ? null : toLine(line);
+  }
+
+  private static String toLine(ByteArrayOutputStream line) {
+    String text = line.toString(StandardCharsets.UTF_8);
+    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+  }
+}
@@ -1,6 +1,7 @@
 const cards = document.getElementById("cards");
 const statClients = document.getElementById("statClients");
 const statCpu = document.getElementById("statCpu");
+const statHot = document.getElementById("statHot");
 const statUpdated = document.getElementById("statUpdated");
 const connectionState = document.getElementById("connectionState");
 const toastStack = document.getElementById("toastStack");
@@ -12,12 +13,16 @@ const cardByClient = new Map();
 const statusByClient = new Map();
 
 const POLL_MS = 2000;
+const FLEET_POLL_MS = 5000;
 const TOAST_MS = 5000;
 const SCREENSHOT_ATTEMPTS = 8;
+const SCREENSHOT_WAIT_MS = 20000;
+const LIVE_FPS = 5;
 
 let activeScreenClient = null;
 let screenObjectUrl = null;
 let screenPollTimer = null;
+let liveActive = false;
 
 function formatPercent(value) {
   if (value == null || Number.isNaN(value)) {
@@ -137,6 +142,32 @@ function showToast(message, type) {
   }, TOAST_MS);
 }
 
+function stopLiveView() {
+  if (!liveActive) {
+    return;
+  }
+  liveActive = false;
+  if (screenImage) {
+    screenImage.removeAttribute("src");
+  }
+}
+
+function startLiveView(clientId) {
+  if (!clientId || !screenImage) {
+    return;
+  }
+  if (screenPollTimer) {
+    clearTimeout(screenPollTimer);
+    screenPollTimer = null;
+  }
+  clearScreenImage();
+  liveActive = true;
+  screenImage.src = `/api/live?clientId=${encodeURIComponent(clientId)}&fps=${LIVE_FPS}`;
+  if (screenStatus) {
+    screenStatus.textContent = "Live view (starting...)";
+  }
+}
+
 function clearScreenImage() {
   if (screenObjectUrl) {
     URL.revokeObjectURL(screenObjectUrl);
@@ -172,6 +203,7 @@ function closeScreenModal() {
     clearTimeout(screenPollTimer);
     screenPollTimer = null;
   }
+  stopLiveView();
   clearScreenImage();
   activeScreenClient = null;
 }
@@ -182,13 +214,20 @@ async function requestScreenshot(clientId) {
   }
   try {
     const response = await fetch(
-      `/api/command?clientId=${encodeURIComponent(clientId)}&action=request_screenshot`,
+      `/api/command?clientId=${encodeURIComponent(clientId)}`
+        + `&action=request_screenshot&wait=${SCREENSHOT_WAIT_MS}`,
       { method: "POST" },
     );
     if (!response.ok) {
       throw new Error("Request failed");
     }
-    showToast(`${clientId}: screenshot requested`, "online");
+    const command = await response.json();
+    if (command.state === "failed" || command.state === "expired") {
+      showToast(`${clientId}: screenshot ${command.result || command.state}`, "offline");
+      return false;
+    }
+    showToast(`${clientId}: screenshot ${command.state === "done" ? "received" : "requested"}`,
+      "online");
     return true;
   } catch (err) {
     showToast(`${clientId}: screenshot request failed`, "offline");
@@ -198,7 +237,8 @@ async function requestScreenshot(clientId) {
 
 async function fetchScreenshot(clientId) {
   const response = await fetch(
-    `/api/screenshot?clientId=${encodeURIComponent(clientId)}&ts=${Date.now()}`,
+    `/api/screenshot?clientId=${encodeURIComponent(clientId)}`,
+    { cache: "no-cache" },
   );
   if (!response.ok) {
     return null;
@@ -242,12 +282,6 @@ function waitForScreenshot(clientId, attempts = SCREENSHOT_ATTEMPTS) {
 function render(data) {
   const clients = data.clients || [];
   statClients.textContent = clients.length;
-  const avgCpu =
-    clients.length === 0
-      ? null
-      : clients.reduce((sum, client) => sum + (client.cpuLoad || 0), 0) /
-        clients.length;
-  statCpu.textContent = formatPercent(avgCpu);
   statUpdated.textContent = formatTime(data.serverTime);
 
   const ordered = clients.sort(
@@ -353,10 +387,23 @@ if (screenModal) {
     const action = target.dataset.action;
     if (action === "close") {
       closeScreenModal();
+    } else if (action === "live") {
+      if (!activeScreenClient) {
+        return;
+      }
+      if (liveActive) {
+        stopLiveView();
+        if (screenStatus) {
+          screenStatus.textContent = "Live view stopped.";
+        }
+      } else {
+        startLiveView(activeScreenClient);
+      }
     } else if (action === "refresh") {
       if (!activeScreenClient) {
         return;
       }
+      stopLiveView();
       if (screenStatus) {
         screenStatus.textContent = "Requesting screenshot...";
       }
@@ -371,27 +418,159 @@ if (screenModal) {
   });
 }
 
+if (screenImage) {
+  screenImage.addEventListener("load", () => {
+    if (liveActive && screenStatus) {
+      screenStatus.textContent = "Live view";
+    }
+  });
+}
+
 document.addEventListener("keydown", (event) => {
   if (event.key === "Escape" && screenModal && screenModal.classList.contains("is-open")) {
     closeScreenModal();
   }
 });
 
+const liveClients = new Map();
+let pollTimer = null;
+let renderQueued = false;
+let lastServerTime = null;
+let statusVersion = 0;
+let clustered = false;
+
+function setConnection(connected, label) {
+  connectionState.textContent = label || (connected ? "Connected" : "Disconnected");
+  connectionState.style.color = connected ? "#22c55e" : "#f97316";
+}
+
+function queueRender() {
+  if (renderQueued) {
+    return;
+  }
+  renderQueued = true;
+  requestAnimationFrame(() => {
+    renderQueued = false;
+    render({ serverTime: lastServerTime, clients: Array.from(liveClients.values()) });
+  });
+}
+
+function applySnapshot(data) {
+  if (data.full !== false) {
+    liveClients.clear();
+  }
+  (data.clients || []).forEach((client) => liveClients.set(client.clientId, client));
+  (data.removed || []).forEach((clientId) => liveClients.delete(clientId));
+  lastServerTime = data.serverTime;
+  statusVersion = data.version || 0;
+  clustered = Array.isArray(data.unavailable);
+  queueRender();
+}
+
 async function poll() {
   try {
-    const response = await fetch("/api/status");
+    const response = await fetch(statusVersion ? `/api/status?since=${statusVersion}` : "/api/status");
     if (!response.ok) {
       throw new Error("Bad response");
     }
     const data = await response.json();
-    render(data);
-    connectionState.textContent = "Connected";
-    connectionState.style.color = "#22c55e";
+    applySnapshot(data);
+    setConnection(true, "Connected (polling)");
+  } catch (err) {
+    setConnection(false);
+  }
+}
+
+function startPolling() {
+  if (pollTimer) {
+    return;
+  }
+  poll();
+  pollTimer = setInterval(poll, POLL_MS);
+}
+
+function stopPolling() {
+  if (pollTimer) {
+    clearInterval(pollTimer);
+    pollTimer = null;
+  }
+}
+
+function connectStream() {
+  if (!window.EventSource) {
+    startPolling();
+    return;
+  }
+  const source = new EventSource("/api/stream");
+  source.addEventListener("open", () => {
+    stopPolling();
+    setConnection(true, "Connected (live)");
+  });
+  source.addEventListener("snapshot", (event) => {
+    applySnapshot(JSON.parse(event.data));
+  });
+  source.addEventListener("client", (event) => {
+    const client = JSON.parse(event.data);
+    liveClients.set(client.clientId, client);
+    lastServerTime = Date.now();
+    queueRender();
+  });
+  source.addEventListener("presence", (event) => {
+    const change = JSON.parse(event.data);
+    showToast(`${change.clientId}: ${change.online ? "back online" : "went offline"}`,
+      change.online ? "online" : "offline");
+  });
+  source.addEventListener("alert", (event) => {
+    const alert = JSON.parse(event.data);
+    showToast(`${alert.clientId}: ${alert.state === "firing" ? "ALERT" : "resolved"} `
+      + alert.message, alert.state === "firing" ? "offline" : "online");
+  });
+  source.addEventListener("remove", (event) => {
+    liveClients.delete(JSON.parse(event.data));
+    queueRender();
+  });
+  source.addEventListener("error", () => {
+    statusVersion = 0;
+    startPolling();
+  });
+}
+
+function clusterFleet() {
+  let sum = 0;
+  let count = 0;
+  let above = 0;
+  liveClients.forEach((client) => {
+    if (client.online === false || client.cpuLoad == null || client.cpuLoad < 0) {
+      return;
+    }
+    sum += client.cpuLoad;
+    count += 1;
+    above += client.cpuLoad >= 0.9 ? 1 : 0;
+  });
+  return { cpu: { mean: count === 0 ? null : sum / count, count, above } };
+}
+
+async function refreshFleet() {
+  if (clustered) {
+    // /api/fleet only covers one node's shard; the merged status list covers the whole fleet.
+    const fleet = clusterFleet();
+    statCpu.textContent = formatPercent(fleet.cpu.mean);
+    statHot.textContent = fleet.cpu.count === 0 ? "--" : fleet.cpu.above;
+    return;
+  }
+  try {
+    const response = await fetch("/api/fleet?above=0.9");
+    if (!response.ok) {
+      return;
+    }
+    const fleet = (await response.json()).fleet;
+    statCpu.textContent = formatPercent(fleet.cpu.mean);
+    statHot.textContent = fleet.cpu.count === 0 ? "--" : fleet.cpu.above;
   } catch (err) {
-    connectionState.textContent = "Disconnected";
-    connectionState.style.color = "#f97316";
+    // keep the last figures until the server answers again
   }
 }
 
-poll();
-setInterval(poll, POLL_MS);
+connectStream();
+refreshFleet();
+setInterval(refreshFleet, FLEET_POLL_MS);